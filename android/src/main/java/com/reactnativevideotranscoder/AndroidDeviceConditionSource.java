@@ -0,0 +1,142 @@
+package com.reactnativevideotranscoder;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Reads the condition from {@link PowerManager} and the sticky battery
+ * broadcast. The thermal status is only known from Android 10 on.
+ */
+class AndroidDeviceConditionSource implements DeviceConditionSource {
+    private static final String TAG = "DeviceConditionSource";
+
+    private final Context context;
+    @Nullable private final PowerManager powerManager;
+
+    private int mThermalStatus = DeviceCondition.THERMAL_UNKNOWN;
+    private int mBatteryLevel = -1;
+    private boolean mCharging = false;
+    private boolean mPowerSave = false;
+
+    @Nullable private Listener mListener;
+    @Nullable private PowerManager.OnThermalStatusChangedListener mThermalListener;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                readBattery(intent);
+            } else {
+                readPowerSave();
+            }
+            notifyListener();
+        }
+    };
+
+    AndroidDeviceConditionSource(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        this.powerManager = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    @NonNull
+    @Override
+    public synchronized DeviceCondition getCondition() {
+        return new DeviceCondition(mThermalStatus, mBatteryLevel, mCharging, mPowerSave);
+    }
+
+    @Override
+    public void start(@NonNull Listener listener) {
+        synchronized (this) {
+            if (mListener != null) {
+                return;
+            }
+            mListener = listener;
+        }
+
+        readPowerSave();
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        try {
+            // the battery broadcast is sticky, its last value comes back right away
+            Intent battery = context.registerReceiver(mReceiver, filter);
+            if (battery != null) {
+                readBattery(battery);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Can not watch the battery", e);
+        }
+
+        if (powerManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            synchronized (this) {
+                mThermalStatus = powerManager.getCurrentThermalStatus();
+            }
+            mThermalListener = new PowerManager.OnThermalStatusChangedListener() {
+                @Override
+                public void onThermalStatusChanged(int status) {
+                    synchronized (AndroidDeviceConditionSource.this) {
+                        mThermalStatus = status;
+                    }
+                    notifyListener();
+                }
+            };
+            powerManager.addThermalStatusListener(mThermalListener);
+        }
+
+        notifyListener();
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if (mListener == null) {
+                return;
+            }
+            mListener = null;
+        }
+
+        try {
+            context.unregisterReceiver(mReceiver);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Can not stop watching the battery", e);
+        }
+
+        if (mThermalListener != null && powerManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            powerManager.removeThermalStatusListener(mThermalListener);
+            mThermalListener = null;
+        }
+    }
+
+    private synchronized void readBattery(@NonNull Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        mBatteryLevel = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+        mCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private synchronized void readPowerSave() {
+        mPowerSave = powerManager != null && powerManager.isPowerSaveMode();
+    }
+
+    private void notifyListener() {
+        Listener listener;
+        DeviceCondition condition;
+        synchronized (this) {
+            listener = mListener;
+            condition = getCondition();
+        }
+
+        if (listener != null) {
+            listener.onConditionChanged(condition);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * What happens to the audio track of an output. AAC that already fits is
+ * copied, anything else is encoded to AAC with the requested bitrate,
+ * channel count and sample rate, or the track is left out entirely.
+ */
+class AudioOptions {
+    /** Sample rates AAC encoders take, lowest first. */
+    private static final int[] AAC_SAMPLE_RATES = new int[] {
+            8000, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000
+    };
+
+    /** Leaves the audio track out of the output. */
+    boolean drop = false;
+    /** Copies AAC audio when nothing has to be reduced. */
+    boolean allowPassthrough = true;
+    /** Bitrate of encoded audio, 0 keeps the one of the source. */
+    int bitrate = 0;
+    /** Channels audio is mixed down to, 0 keeps them. */
+    int maxChannels = 0;
+    /** Highest sample rate of the output, 0 keeps the one of the source. */
+    int maxSampleRate = 0;
+
+    void validate() {
+        if (bitrate < 0 || maxChannels < 0 || maxChannels > 2 || maxSampleRate < 0) {
+            throw new IllegalArgumentException(String.format("Invalid audio options: bitrate %d, channels %d, sample rate %d",
+                    bitrate, maxChannels, maxSampleRate));
+        }
+        if (maxSampleRate > 0 && maxSampleRate < AAC_SAMPLE_RATES[0]) {
+            throw new IllegalArgumentException(String.format("Audio sample rate %d is below %d", maxSampleRate, AAC_SAMPLE_RATES[0]));
+        }
+    }
+
+    /**
+     * @return AAC format the audio is encoded into, or null when the source is copied
+     */
+    @Nullable
+    MediaFormat getTargetFormat(@NonNull MediaFormat sourceFormat) {
+        int sourceChannels = getInt(sourceFormat, MediaFormat.KEY_CHANNEL_COUNT, 2);
+        int sourceSampleRate = getInt(sourceFormat, MediaFormat.KEY_SAMPLE_RATE, 44100);
+        int sourceBitrate = getInt(sourceFormat, MediaFormat.KEY_BIT_RATE, -1);
+
+        int channels = maxChannels > 0 ? Math.min(maxChannels, sourceChannels) : sourceChannels;
+        int sampleRate = maxSampleRate > 0 && sourceSampleRate > maxSampleRate ? getAacSampleRate(maxSampleRate) : sourceSampleRate;
+        // a higher bitrate than the source has adds size but no quality
+        int targetBitrate = bitrate > 0 && (sourceBitrate <= 0 || bitrate < sourceBitrate) ? bitrate : sourceBitrate;
+
+        boolean aac = MediaFormat.MIMETYPE_AUDIO_AAC.equals(sourceFormat.getString(MediaFormat.KEY_MIME));
+        if (allowPassthrough && aac && channels == sourceChannels && sampleRate == sourceSampleRate
+                && targetBitrate == sourceBitrate) {
+            return null;
+        }
+
+        MediaFormat targetFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+        // the bitrate of the source is not always known
+        targetFormat.setInteger(MediaFormat.KEY_BIT_RATE, targetBitrate > 0
+                ? targetBitrate
+                : Math.min(OutputSizeBudget.DEFAULT_AUDIO_BITRATE, OutputSizeBudget.DEFAULT_AUDIO_BITRATE * channels / 2));
+        if (sourceFormat.containsKey(MediaFormat.KEY_DURATION)) {
+            targetFormat.setLong(MediaFormat.KEY_DURATION, sourceFormat.getLong(MediaFormat.KEY_DURATION));
+        }
+        return targetFormat;
+    }
+
+    /**
+     * @return true if encoding into the target format needs more than a new bitrate
+     */
+    static boolean changesLayout(@NonNull MediaFormat sourceFormat, @NonNull MediaFormat targetFormat) {
+        return getInt(sourceFormat, MediaFormat.KEY_CHANNEL_COUNT, -1) != targetFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                || getInt(sourceFormat, MediaFormat.KEY_SAMPLE_RATE, -1) != targetFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+    }
+
+    /**
+     * @return highest AAC sample rate that does not exceed the given one
+     */
+    private static int getAacSampleRate(int maxSampleRate) {
+        int sampleRate = AAC_SAMPLE_RATES[0];
+        for (int candidate : AAC_SAMPLE_RATES) {
+            if (candidate <= maxSampleRate) {
+                sampleRate = candidate;
+            }
+        }
+        return sampleRate;
+    }
+
+    private static int getInt(@NonNull MediaFormat mediaFormat, @NonNull String key, int defaultValue) {
+        return mediaFormat.containsKey(key) ? mediaFormat.getInteger(key) : defaultValue;
+    }
+}
@@ -0,0 +1,345 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Codecs of the device, read from MediaCodecList once per process. Picks
+ * encoders for target formats, hardware ones first, and keeps formats within
+ * the size, frame rate and bitrate ranges the chosen encoder supports, so a
+ * transformation does not end up on a slow software codec or fail to configure.
+ * Whether an encoder accepts a set of tuning keys is tried once and remembered;
+ * trying configures a codec, so it only happens when a job starts, off the
+ * thread of the bridge.
+ */
+class CodecCatalog {
+    /** HEVC reaches the quality of H.264 at about this share of the bitrate. */
+    static final float HEVC_BITRATE_FACTOR = 0.6f;
+
+    /** Sizes are shrunk in steps of this factor until the encoder accepts them. */
+    private static final double SHRINK_STEP = 0.9;
+    private static final int MAX_SHRINK_STEPS = 20;
+
+    static class Codec {
+        final String name;
+        final String mimeType;
+        final boolean encoder;
+        final boolean hardware;
+        final int maxInstances;
+        final MediaCodecInfo.CodecCapabilities capabilities;
+        @Nullable final MediaCodecInfo.VideoCapabilities videoCapabilities;
+
+        Codec(
+                @NonNull String name,
+                @NonNull String mimeType,
+                boolean encoder,
+                boolean hardware,
+                @NonNull MediaCodecInfo.CodecCapabilities capabilities
+        ) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.encoder = encoder;
+            this.hardware = hardware;
+            this.capabilities = capabilities;
+            this.maxInstances = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? capabilities.getMaxSupportedInstances() : 1;
+            this.videoCapabilities = mimeType.startsWith("video") ? capabilities.getVideoCapabilities() : null;
+        }
+
+        boolean supportsSize(int width, int height) {
+            return videoCapabilities != null && videoCapabilities.isSizeSupported(width, height);
+        }
+
+        boolean supportsProfile(int profile) {
+            return supportsLevel(profile, 0);
+        }
+
+        /**
+         * @return true if the codec advertises the profile at the level or a higher one
+         */
+        boolean supportsLevel(int profile, int level) {
+            if (capabilities.profileLevels == null) {
+                return false;
+            }
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+                if (profileLevel.profile == profile && profileLevel.level >= level) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean supportsBitrateMode(int bitrateMode) {
+            MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+            return encoderCapabilities != null && encoderCapabilities.isBitrateModeSupported(bitrateMode);
+        }
+    }
+
+    @Nullable private static CodecCatalog sInstance;
+
+    /** Hardware codecs come first, in the order of MediaCodecList otherwise. */
+    private final List<Codec> mCodecs;
+    /** Whether an encoder could be configured with tuning keys, by encoder and keys. */
+    private final Map<String, Boolean> mAccepted = new HashMap<>();
+
+    private CodecCatalog(@NonNull List<Codec> codecs) {
+        mCodecs = Collections.unmodifiableList(codecs);
+    }
+
+    @NonNull
+    static synchronized CodecCatalog get() {
+        if (sInstance == null) {
+            sInstance = new CodecCatalog(readCodecs());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return how many instances of codecs for the given mime type can run at once, at least 1
+     */
+    int getMaxInstances(@NonNull String mimeType, boolean encoder) {
+        int maxInstances = 0;
+        for (Codec codec : mCodecs) {
+            if (codec.encoder == encoder && codec.mimeType.equalsIgnoreCase(mimeType)) {
+                maxInstances = Math.max(maxInstances, codec.maxInstances);
+            }
+        }
+        return Math.max(1, maxInstances);
+    }
+
+    /**
+     * @return video encoder for the mime type that accepts the size, hardware ones first, or null
+     */
+    @Nullable
+    Codec findVideoEncoder(@NonNull String mimeType, int width, int height, boolean hardwareOnly) {
+        for (Codec codec : mCodecs) {
+            if (codec.encoder && codec.mimeType.equalsIgnoreCase(mimeType)
+                    && (codec.hardware || !hardwareOnly) && codec.supportsSize(width, height)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a hardware HEVC encoder accepts the size, so it can replace H.264
+     */
+    boolean canEncodeHevc(int width, int height) {
+        return findVideoEncoder(MediaFormat.MIMETYPE_VIDEO_HEVC, width, height, true) != null;
+    }
+
+    /**
+     * Brings size, frame rate and bitrate of a video format into the ranges of the best
+     * encoder for its mime type. Sizes keep their aspect ratio when they have to shrink.
+     *
+     * @return the encoder the format was fitted to, or null when the device lists none
+     */
+    @Nullable
+    Codec fit(@NonNull MediaFormat format) {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+
+        Codec codec = findVideoEncoder(mimeType, width, height, true);
+        if (codec == null) {
+            codec = findVideoEncoder(mimeType, width, height, false);
+        }
+        if (codec == null) {
+            // nothing takes the size as is, shrink it for the preferred encoder
+            codec = getFirstVideoEncoder(mimeType);
+        }
+        if (codec == null || codec.videoCapabilities == null) {
+            return null;
+        }
+
+        MediaCodecInfo.VideoCapabilities capabilities = codec.videoCapabilities;
+
+        int[] size = fitSize(capabilities, width, height);
+        format.setInteger(MediaFormat.KEY_WIDTH, size[0]);
+        format.setInteger(MediaFormat.KEY_HEIGHT, size[1]);
+
+        if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            Range<Double> frameRates = capabilities.getSupportedFrameRatesFor(size[0], size[1]);
+            int maxFrameRate = (int) Math.floor(frameRates.getUpper());
+            if (format.getInteger(MediaFormat.KEY_FRAME_RATE) > maxFrameRate) {
+                format.setInteger(MediaFormat.KEY_FRAME_RATE, Math.max(1, maxFrameRate));
+            }
+        }
+
+        if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, capabilities.getBitrateRange().clamp(format.getInteger(MediaFormat.KEY_BIT_RATE)));
+        }
+
+        return codec;
+    }
+
+    /**
+     * @return the encoder {@link #fit} would choose for the format, or null when the device lists none
+     */
+    @Nullable
+    Codec getVideoEncoder(@NonNull MediaFormat format) {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+
+        Codec codec = findVideoEncoder(mimeType, width, height, true);
+        return codec != null ? codec : findVideoEncoder(mimeType, width, height, false);
+    }
+
+    /**
+     * Creates the encoder {@link #fit} would choose for the format, or the default one for its mime type.
+     */
+    @NonNull
+    MediaCodec createVideoEncoder(@NonNull MediaFormat format) throws IOException {
+        Codec codec = getVideoEncoder(format);
+        return codec != null
+                ? MediaCodec.createByCodecName(codec.name)
+                : MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+    }
+
+    /**
+     * Configures the encoder with the format plus the tuning keys, and remembers the answer for
+     * the encoder and keys; size and bitrate of the format do not decide whether a profile or a
+     * bitrate mode is taken. A codec that can not be tried right now, e.g. because all of its
+     * instances are in use, gets the benefit of the doubt and is tried again next time.
+     * Blocks while the codec is configured.
+     *
+     * @return true if the encoder took the configuration
+     */
+    boolean accepts(@NonNull Codec encoder, @NonNull MediaFormat format, @NonNull Map<String, Integer> tuning) {
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+
+        String description = String.format(Locale.ROOT, "%s|%s", encoder.name, new TreeMap<>(tuning));
+        synchronized (mAccepted) {
+            Boolean accepted = mAccepted.get(description);
+            if (accepted != null) {
+                return accepted;
+            }
+        }
+
+        MediaFormat probeFormat = MediaFormat.createVideoFormat(encoder.mimeType, width, height);
+        probeFormat.setInteger(MediaFormat.KEY_BIT_RATE, format.getInteger(MediaFormat.KEY_BIT_RATE));
+        probeFormat.setInteger(MediaFormat.KEY_FRAME_RATE, format.getInteger(MediaFormat.KEY_FRAME_RATE));
+        probeFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL));
+        probeFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        for (Map.Entry<String, Integer> entry : tuning.entrySet()) {
+            probeFormat.setInteger(entry.getKey(), entry.getValue());
+        }
+
+        boolean accepted;
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createByCodecName(encoder.name);
+            codec.configure(probeFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            accepted = true;
+        } catch (MediaCodec.CodecException e) {
+            if (e.isTransient() || e.isRecoverable()) {
+                return true;
+            }
+            accepted = false;
+        } catch (IllegalArgumentException e) {
+            accepted = false;
+        } catch (IOException | RuntimeException e) {
+            // the codec could not be created or was in a bad state, that says nothing about the keys
+            return true;
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+        }
+
+        synchronized (mAccepted) {
+            mAccepted.put(description, accepted);
+        }
+        return accepted;
+    }
+
+    @Nullable
+    private Codec getFirstVideoEncoder(@NonNull String mimeType) {
+        for (Codec codec : mCodecs) {
+            if (codec.encoder && codec.mimeType.equalsIgnoreCase(mimeType) && codec.videoCapabilities != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private static int[] fitSize(@NonNull MediaCodecInfo.VideoCapabilities capabilities, int width, int height) {
+        int widthAlignment = capabilities.getWidthAlignment();
+        int heightAlignment = capabilities.getHeightAlignment();
+
+        double scale = Math.min(1.0, Math.min(
+                (double) capabilities.getSupportedWidths().getUpper() / width,
+                (double) capabilities.getSupportedHeights().getUpper() / height));
+
+        int fittedWidth = width;
+        int fittedHeight = height;
+        for (int step = 0; step <= MAX_SHRINK_STEPS; step++) {
+            fittedWidth = align(width * scale, widthAlignment);
+            fittedHeight = align(height * scale, heightAlignment);
+            if (capabilities.isSizeSupported(fittedWidth, fittedHeight)) {
+                break;
+            }
+            scale *= SHRINK_STEP;
+        }
+
+        return new int[] { fittedWidth, fittedHeight };
+    }
+
+    private static int align(double value, int alignment) {
+        return Math.max(alignment, (int) (value / alignment) * alignment);
+    }
+
+    @NonNull
+    private static List<Codec> readCodecs() {
+        List<Codec> hardware = new ArrayList<>();
+        List<Codec> software = new ArrayList<>();
+
+        for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            boolean isHardware = isHardware(codecInfo);
+
+            for (String type : codecInfo.getSupportedTypes()) {
+                MediaCodecInfo.CodecCapabilities capabilities;
+                try {
+                    capabilities = codecInfo.getCapabilitiesForType(type);
+                } catch (IllegalArgumentException e) {
+                    // some vendors list types they can not describe
+                    continue;
+                }
+
+                Codec codec = new Codec(codecInfo.getName(), type, codecInfo.isEncoder(), isHardware, capabilities);
+                (isHardware ? hardware : software).add(codec);
+            }
+        }
+
+        hardware.addAll(software);
+        return hardware;
+    }
+
+    private static boolean isHardware(@NonNull MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated();
+        }
+
+        // before Q only the names tell, software codecs of the platform and of vendors follow these patterns
+        String name = codecInfo.getName().toLowerCase(Locale.ROOT);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+}
@@ -0,0 +1,1409 @@
+package com.reactnativevideotranscoder;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.opengl.Matrix;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.linkedin.android.litr.TransformationListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decode, render and encode pipeline driven directly on MediaCodec, for
+ * what MediaTransformer can not do: frames can be dropped between decoder
+ * and encoder so they are never rendered or encoded, only the selected
+ * ranges of a source are read at all, and several clips can be fed one
+ * after another into the same encoders and muxer. Encoded video goes
+ * through a decoder, a GL surface and an encoder; audio can be resampled
+ * and mixed down on its way to the encoder. Either track of a single clip
+ * can also be copied, and audio can be left out. The output can be written as
+ * fragmented MP4 that is readable while it grows. Several outputs of other sizes
+ * or bitrates can be made from one decode, every decoded frame is drawn into
+ * the encoder of each of them. A single output can be kept within a size budget
+ * by lowering the video bitrate while it is encoded. Events are reported through a
+ * {@link TransformationListener} on the main thread, like MediaTransformer
+ * does, without track infos.
+ */
+class CodecPipeline {
+    static class Options {
+        /** Frames per second the output must not exceed, 0 for no limit. */
+        int maxFrameRate = 0;
+        /** Leaves the audio of the clips out of the output. */
+        boolean dropAudio = false;
+        /** Writes fragmented MP4 with fragments of about this length, 0 for a plain MP4. */
+        long fragmentDurationUs = 0;
+        /** Told about every fragment written, only used for fragmented output. */
+        @Nullable FragmentedMp4Muxer.Listener fragmentListener;
+        /** Gets the time taken to finish the output. */
+        @Nullable TranscodeTrace trace;
+        /**
+         * Video encoders fed from one decoder at the same time, 0 for no limit. Outputs beyond
+         * it are encoded in further passes over the clips.
+         */
+        int maxEncoders = 0;
+        /**
+         * Size the output should stay within, null for no limit. Only for a single target; the
+         * finished size is checked by {@link SizeCappedTransform}.
+         */
+        @Nullable OutputSizeBudget sizeBudget;
+        /** Bitrate of the audio in the output, the video bitrate is corrected around it. */
+        int audioBitrate = 0;
+    }
+
+    /**
+     * One output of the pipeline. Every output is made from the same clips and audio.
+     */
+    static class Target {
+        final String outputPath;
+        /** Format video is encoded into, null to copy it. */
+        @Nullable final MediaFormat videoFormat;
+
+        Target(@NonNull String outputPath, @Nullable MediaFormat videoFormat) {
+            this.outputPath = outputPath;
+            this.videoFormat = videoFormat;
+        }
+    }
+
+    /**
+     * One source of the output. Clips follow each other without gaps.
+     */
+    static class Clip {
+        final Uri uri;
+        /** Rotation of the source in degrees, clips of another rotation than the output are turned while drawn. */
+        final int rotation;
+        /** Time the clip takes in the output. */
+        final long durationUs;
+        /** Parts of the source to keep, null for all of it. */
+        @Nullable final SourceRanges ranges;
+
+        Clip(@NonNull Uri uri, int rotation, long durationUs, @Nullable SourceRanges ranges) {
+            this.uri = uri;
+            this.rotation = rotation;
+            this.durationUs = ranges != null ? ranges.getDurationUs() : durationUs;
+            this.ranges = ranges;
+        }
+
+        /**
+         * @return time of a source sample relative to the start of the clip, or -1 if it is dropped
+         */
+        long toClipTimeUs(long sourceTimeUs) {
+            return ranges != null ? ranges.toOutputTimeUs(sourceTimeUs) : sourceTimeUs;
+        }
+    }
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    private static final long AUDIO_LEAD_US = 500_000;
+    /** Video samples decode out of order, samples shortly after a range may still belong into it. */
+    private static final long REORDER_MARGIN_US = 200_000;
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    /** Frames of silence per buffer for clips without audio. */
+    private static final int SILENCE_FRAMES = 1024;
+    private static final float PROGRESS_STEP = 0.01f;
+
+    private static final String[] VIDEO_ENCODER_KEYS = new String[] {
+            MediaFormat.KEY_BIT_RATE,
+            MediaFormat.KEY_FRAME_RATE,
+            MediaFormat.KEY_I_FRAME_INTERVAL,
+            MediaFormat.KEY_LEVEL,
+            MediaFormat.KEY_PROFILE,
+            MediaFormat.KEY_LATENCY,
+            MediaFormat.KEY_OPERATING_RATE,
+            MediaFormat.KEY_PRIORITY,
+            MediaFormat.KEY_BITRATE_MODE,
+            MediaFormat.KEY_MAX_B_FRAMES
+    };
+    private static final String[] AUDIO_ENCODER_KEYS = new String[] {
+            MediaFormat.KEY_BIT_RATE,
+            MediaFormat.KEY_AAC_PROFILE,
+            MediaFormat.KEY_MAX_INPUT_SIZE
+    };
+
+    private final Context context;
+    private final String id;
+    private final List<Clip> clips;
+    private final List<Target> targets;
+    @Nullable private final MediaFormat targetAudioFormat;
+    private final int rotation;
+    private final Options options;
+    private final TransformationListener listener;
+
+    /** Time every clip starts at in the output. */
+    private final long[] clipStartsUs;
+    private final long durationUs;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mCancelled = false;
+    private float mReportedProgress = 0;
+
+    /**
+     * @param targetVideoFormat format video is encoded into, null to copy it; clips can only be joined when it is encoded
+     * @param targetAudioFormat format audio is encoded into, null to copy it; clips can only be joined when it is encoded
+     * @param rotation orientation hint of the output
+     */
+    CodecPipeline(
+            @NonNull Context context,
+            @NonNull String id,
+            @NonNull List<Clip> clips,
+            @NonNull String outputPath,
+            @Nullable MediaFormat targetVideoFormat,
+            @Nullable MediaFormat targetAudioFormat,
+            int rotation,
+            @NonNull Options options,
+            @NonNull TransformationListener listener
+    ) {
+        this(context, id, clips, Collections.singletonList(new Target(outputPath, targetVideoFormat)),
+                targetAudioFormat, rotation, options, listener);
+    }
+
+    /**
+     * @param targets outputs made from the clips, video is decoded once for all of them
+     * @param targetAudioFormat format audio is encoded into, null to copy it; clips can only be joined when it is encoded
+     * @param rotation orientation hint of the outputs
+     */
+    CodecPipeline(
+            @NonNull Context context,
+            @NonNull String id,
+            @NonNull List<Clip> clips,
+            @NonNull List<Target> targets,
+            @Nullable MediaFormat targetAudioFormat,
+            int rotation,
+            @NonNull Options options,
+            @NonNull TransformationListener listener
+    ) {
+        if (clips.isEmpty()) {
+            throw new IllegalArgumentException("No clips given");
+        }
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No targets given");
+        }
+        for (Target target : targets) {
+            if (target.videoFormat == null && (clips.size() > 1 || options.maxFrameRate > 0)) {
+                throw new IllegalArgumentException("Clips can only be joined or decimated with video encoded");
+            }
+        }
+        if (targets.size() > 1 && options.fragmentDurationUs > 0) {
+            throw new IllegalArgumentException("Fragmented output is written for a single target only");
+        }
+        if (targets.size() > 1 && options.sizeBudget != null) {
+            throw new IllegalArgumentException("A size budget applies to a single target only");
+        }
+
+        this.context = context;
+        this.id = id;
+        this.clips = new ArrayList<>(clips);
+        this.targets = new ArrayList<>(targets);
+        this.targetAudioFormat = targetAudioFormat;
+        this.rotation = rotation;
+        this.options = options;
+        this.listener = listener;
+
+        clipStartsUs = new long[clips.size()];
+        long startUs = 0;
+        for (int clip = 0; clip < clips.size(); clip++) {
+            clipStartsUs[clip] = startUs;
+            startUs += clips.get(clip).durationUs;
+        }
+        durationUs = startUs;
+    }
+
+    void start() {
+        EXECUTOR.execute(() -> {
+            try {
+                run();
+                mHandler.post(() -> listener.onCompleted(id, null));
+            } catch (CancellationException e) {
+                deleteOutputs();
+                mHandler.post(() -> listener.onCancelled(id, null));
+            } catch (Throwable e) {
+                deleteOutputs();
+                mHandler.post(() -> listener.onError(id, e, null));
+            }
+        });
+    }
+
+    private void deleteOutputs() {
+        for (Target target : targets) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(target.outputPath).delete();
+        }
+    }
+
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private void run() throws Exception {
+        List<List<Target>> passes = planPasses();
+        for (int pass = 0; pass < passes.size(); pass++) {
+            runPass(passes.get(pass), pass, passes.size());
+        }
+    }
+
+    /**
+     * Splits the targets into passes that each feed at most {@link Options#maxEncoders}
+     * encoders. Copied video needs no encoder and goes into the first pass.
+     */
+    @NonNull
+    private List<List<Target>> planPasses() {
+        List<List<Target>> passes = new ArrayList<>();
+        List<Target> pass = new ArrayList<>();
+        int encoders = 0;
+
+        for (Target target : targets) {
+            if (target.videoFormat != null) {
+                if (options.maxEncoders > 0 && encoders == options.maxEncoders) {
+                    passes.add(pass);
+                    pass = new ArrayList<>();
+                    encoders = 0;
+                }
+                encoders++;
+            }
+            pass.add(target);
+        }
+        passes.add(pass);
+        return passes;
+    }
+
+    private void runPass(@NonNull List<Target> passTargets, int pass, int passCount) throws Exception {
+        List<MuxerSink> sinks = new ArrayList<>();
+        List<Track> videos = new ArrayList<>();
+        VideoTrack encodedVideo = null;
+        Track audio = null;
+
+        try {
+            boolean hasAudio = hasAudio();
+            List<Target> encoded = new ArrayList<>();
+            List<MuxerSink> encodedSinks = new ArrayList<>();
+
+            for (Target target : passTargets) {
+                MuxerSink sink = new MuxerSink(createOutput(target.outputPath), hasAudio ? 2 : 1);
+                sinks.add(sink);
+
+                if (target.videoFormat != null) {
+                    encoded.add(target);
+                    encodedSinks.add(sink);
+                } else {
+                    Track copy = createCopyTrack("video", REORDER_MARGIN_US, sink);
+                    if (copy == null) {
+                        throw new IOException("No video track found");
+                    }
+                    videos.add(copy);
+                }
+            }
+            if (!encoded.isEmpty()) {
+                encodedVideo = new VideoTrack(encoded, encodedSinks);
+                videos.add(encodedVideo);
+            }
+            if (hasAudio) {
+                // audio is decoded once and written into every output of the pass
+                audio = createAudioTrack(sinks.size() == 1 ? sinks.get(0) : new FanOutSink(sinks));
+            }
+
+            for (Track video : videos) {
+                video.start();
+            }
+            if (audio != null) {
+                audio.start();
+            }
+            if (pass == 0) {
+                // like MediaTransformer, the job counts as started once its codecs are
+                mHandler.post(() -> listener.onStarted(id));
+            }
+            // copied video can not be corrected, its size is only checked at the end
+            SizeWatch sizeWatch = options.sizeBudget != null && encodedVideo != null
+                    ? new SizeWatch(sinks.get(0), encodedVideo.encoders.get(0))
+                    : null;
+
+            while (!isDone(videos) || (audio != null && !audio.isDone())) {
+                if (mCancelled) {
+                    throw new CancellationException();
+                }
+
+                boolean progressed = false;
+                long videoPositionUs = Long.MAX_VALUE;
+                float videoProgress = 1f;
+                for (Track video : videos) {
+                    progressed |= video.step();
+                    videoPositionUs = Math.min(videoPositionUs, video.getPositionUs());
+                    videoProgress = Math.min(videoProgress, video.getProgress(durationUs));
+                }
+                if (audio != null && !audio.isDone()
+                        && (isDone(videos) || audio.getPositionUs() <= videoPositionUs + AUDIO_LEAD_US)) {
+                    // audio is kept close to video, so the muxer can interleave both
+                    progressed |= audio.step();
+                }
+
+                reportProgress((pass + videoProgress) / passCount);
+                if (sizeWatch != null) {
+                    sizeWatch.check(videoProgress);
+                }
+
+                if (!progressed) {
+                    Thread.sleep(1);
+                }
+            }
+
+            if (options.trace != null) {
+                options.trace.begin(TranscodeTrace.Stage.MUX);
+            }
+            for (MuxerSink sink : sinks) {
+                sink.finish();
+            }
+            if (options.trace != null) {
+                options.trace.end(TranscodeTrace.Stage.MUX);
+            }
+        } finally {
+            for (Track video : videos) {
+                video.release();
+            }
+            if (audio != null) {
+                audio.release();
+            }
+            for (MuxerSink sink : sinks) {
+                sink.release();
+            }
+        }
+    }
+
+    private static boolean isDone(@NonNull List<Track> tracks) {
+        for (Track track : tracks) {
+            if (!track.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private Output createOutput(@NonNull String outputPath) throws IOException {
+        if (options.fragmentDurationUs > 0) {
+            final FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(outputPath, options.fragmentDurationUs,
+                    options.fragmentListener);
+            muxer.setOrientationHint(rotation);
+            return new Output() {
+                @Override
+                public int addTrack(@NonNull MediaFormat format) {
+                    return muxer.addTrack(format);
+                }
+
+                @Override
+                public void start() throws IOException {
+                    muxer.start();
+                }
+
+                @Override
+                public void write(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException {
+                    muxer.writeSampleData(track, data, info);
+                }
+
+                @Override
+                public void stop() throws IOException {
+                    muxer.stop();
+                }
+
+                @Override
+                public void release() {
+                    muxer.release();
+                }
+            };
+        }
+
+        final MediaMuxer muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        muxer.setOrientationHint(rotation);
+        return new Output() {
+            @Override
+            public int addTrack(@NonNull MediaFormat format) {
+                return muxer.addTrack(format);
+            }
+
+            @Override
+            public void start() {
+                muxer.start();
+            }
+
+            @Override
+            public void write(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) {
+                muxer.writeSampleData(track, data, info);
+            }
+
+            @Override
+            public void stop() {
+                muxer.stop();
+            }
+
+            @Override
+            public void release() {
+                muxer.release();
+            }
+        };
+    }
+
+    /**
+     * @return whether the outputs get an audio track
+     */
+    private boolean hasAudio() throws IOException {
+        if (options.dropAudio) {
+            return false;
+        }
+        if (clips.size() > 1) {
+            if (targetAudioFormat == null) {
+                throw new IllegalArgumentException("Clips can only be joined with audio encoded");
+            }
+            // clips without audio are filled with silence
+            return true;
+        }
+
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, clips.get(0).uri, null);
+            return findTrack(extractor, "audio") >= 0;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    @Nullable
+    private Track createAudioTrack(@NonNull Sink sink) throws IOException {
+        return targetAudioFormat != null ? new AudioTranscodeTrack(sink) : createCopyTrack("audio", 0, sink);
+    }
+
+    /**
+     * @return track copying the samples of the given kind of the only clip, or null if it has none
+     */
+    @Nullable
+    private Track createCopyTrack(@NonNull String kind, long marginUs, @NonNull Sink sink) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(context, clips.get(0).uri, null);
+        int track = findTrack(extractor, kind);
+        if (track < 0) {
+            extractor.release();
+            return null;
+        }
+
+        extractor.selectTrack(track);
+        return new CopyTrack(extractor, extractor.getTrackFormat(track), marginUs, sink);
+    }
+
+    private void reportProgress(float progress) {
+        if (progress - mReportedProgress >= PROGRESS_STEP) {
+            mReportedProgress = progress;
+            mHandler.post(() -> listener.onProgress(id, progress));
+        }
+    }
+
+    /**
+     * @return where a sample of the given clip ends up in the output, or -1 if it is dropped
+     */
+    private long toOutputTimeUs(int clip, long sourceTimeUs) {
+        Clip current = clips.get(clip);
+        long clipTimeUs = current.toClipTimeUs(sourceTimeUs);
+        // samples running over the end of a clip would collide with the next one
+        if (clipTimeUs < 0 || (clip < clips.size() - 1 && clipTimeUs >= current.durationUs)) {
+            return -1;
+        }
+        return clipStartsUs[clip] + clipTimeUs;
+    }
+
+    private static int findTrack(@NonNull MediaExtractor mediaExtractor, @NonNull String kind) {
+        for (int track = 0; track < mediaExtractor.getTrackCount(); track++) {
+            String mimeType = mediaExtractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME);
+            if (mimeType != null && mimeType.startsWith(kind)) {
+                return track;
+            }
+        }
+        return -1;
+    }
+
+    private static void copyKeys(@NonNull MediaFormat from, @NonNull MediaFormat to, @NonNull String[] keys) {
+        for (String key : keys) {
+            if (from.containsKey(key)) {
+                to.setInteger(key, from.getInteger(key));
+            }
+        }
+    }
+
+    /**
+     * @return matrix that turns a decoded frame by the given rotation and fits it into
+     * the output, keeping its aspect ratio
+     */
+    @NonNull
+    static float[] getFitMatrix(int frameWidth, int frameHeight, int rotation, int outputWidth, int outputHeight) {
+        boolean turned = rotation % 180 != 0;
+        float width = turned ? frameHeight : frameWidth;
+        float height = turned ? frameWidth : frameHeight;
+        float scale = Math.min(outputWidth / width, outputHeight / height);
+
+        float[] matrix = new float[16];
+        Matrix.setIdentityM(matrix, 0);
+        Matrix.scaleM(matrix, 0, width * scale / outputWidth, height * scale / outputHeight, 1);
+        // rotation metadata turns clockwise, GL angles turn counterclockwise
+        Matrix.rotateM(matrix, 0, -rotation, 0, 0, 1);
+        return matrix;
+    }
+
+    /**
+     * Reads the samples of the selected ranges only. Every range starts at the
+     * keyframe preceding it, samples before the range are dropped after decoding.
+     */
+    private static class RangeReader {
+        private final MediaExtractor extractor;
+        @Nullable private final SourceRanges ranges;
+        private final long marginUs;
+
+        private int mRange = 0;
+
+        RangeReader(@NonNull MediaExtractor extractor, @Nullable SourceRanges ranges, long marginUs) {
+            this.extractor = extractor;
+            this.ranges = ranges;
+            this.marginUs = marginUs;
+
+            if (ranges != null) {
+                extractor.seekTo(ranges.getStartUs(0), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+        }
+
+        /**
+         * @return size of the sample read into the buffer, -1 after the last range
+         */
+        int read(@NonNull ByteBuffer buffer) {
+            while (true) {
+                int size = extractor.readSampleData(buffer, 0);
+                if (ranges == null || (size >= 0 && extractor.getSampleTime() < ranges.getEndUs(mRange) + marginUs)) {
+                    return size;
+                }
+
+                if (++mRange >= ranges.size()) {
+                    return -1;
+                }
+                extractor.seekTo(ranges.getStartUs(mRange), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+        }
+
+        long getSampleTime() {
+            return extractor.getSampleTime();
+        }
+
+        int getSampleFlags() {
+            return extractor.getSampleFlags();
+        }
+
+        void advance() {
+            extractor.advance();
+        }
+    }
+
+    /**
+     * File the samples end up in.
+     */
+    private interface Output {
+        int addTrack(@NonNull MediaFormat format);
+
+        void start() throws IOException;
+
+        void write(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException;
+
+        void stop() throws IOException;
+
+        void release();
+    }
+
+    /**
+     * Where a track writes its samples.
+     */
+    private interface Sink {
+        int addTrack(@NonNull MediaFormat format) throws IOException;
+
+        void write(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException;
+    }
+
+    /**
+     * Holds samples back until every track announced its format, then writes through.
+     */
+    private static class MuxerSink implements Sink {
+        private final Output output;
+        private final int expectedTracks;
+
+        private final List<PendingSample> mPending = new ArrayList<>();
+        private int mAddedTracks = 0;
+        private boolean mStarted = false;
+        private long mWrittenBytes = 0;
+
+        private static class PendingSample {
+            final int track;
+            final ByteBuffer data;
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+            PendingSample(int track, ByteBuffer source, MediaCodec.BufferInfo sourceInfo) {
+                this.track = track;
+                this.data = ByteBuffer.allocate(sourceInfo.size);
+                source.position(sourceInfo.offset);
+                source.limit(sourceInfo.offset + sourceInfo.size);
+                this.data.put(source);
+                this.data.flip();
+                this.info.set(0, sourceInfo.size, sourceInfo.presentationTimeUs, sourceInfo.flags);
+            }
+        }
+
+        MuxerSink(@NonNull Output output, int expectedTracks) {
+            this.output = output;
+            this.expectedTracks = expectedTracks;
+        }
+
+        @Override
+        public int addTrack(@NonNull MediaFormat format) throws IOException {
+            int track = output.addTrack(format);
+            if (++mAddedTracks == expectedTracks) {
+                output.start();
+                mStarted = true;
+
+                for (PendingSample sample : mPending) {
+                    output.write(sample.track, sample.data, sample.info);
+                }
+                mPending.clear();
+            }
+            return track;
+        }
+
+        @Override
+        public void write(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException {
+            mWrittenBytes += info.size;
+            if (mStarted) {
+                output.write(track, data, info);
+            } else {
+                mPending.add(new PendingSample(track, data, info));
+            }
+        }
+
+        /**
+         * @return bytes of all samples written so far, held back ones included
+         */
+        long getWrittenBytes() {
+            return mWrittenBytes;
+        }
+
+        void finish() throws IOException {
+            if (!mStarted) {
+                throw new IllegalStateException("Output has no samples");
+            }
+            mStarted = false;
+            output.stop();
+        }
+
+        void release() {
+            if (mStarted) {
+                try {
+                    output.stop();
+                } catch (IOException | RuntimeException ignored) {
+                    // the output is deleted anyway
+                }
+            }
+            output.release();
+        }
+    }
+
+    /**
+     * Writes one track into several sinks, for the audio all outputs of a pass share.
+     */
+    private static class FanOutSink implements Sink {
+        private final List<? extends Sink> sinks;
+        /** Track in every sink, by track of this sink. */
+        private final List<int[]> mTracks = new ArrayList<>();
+
+        FanOutSink(@NonNull List<? extends Sink> sinks) {
+            this.sinks = sinks;
+        }
+
+        @Override
+        public int addTrack(@NonNull MediaFormat format) throws IOException {
+            int[] tracks = new int[sinks.size()];
+            for (int sink = 0; sink < sinks.size(); sink++) {
+                tracks[sink] = sinks.get(sink).addTrack(format);
+            }
+            mTracks.add(tracks);
+            return mTracks.size() - 1;
+        }
+
+        @Override
+        public void write(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException {
+            int[] tracks = mTracks.get(track);
+            for (int sink = 0; sink < sinks.size(); sink++) {
+                // every sink may move the position of the buffer it gets
+                sinks.get(sink).write(tracks[sink], data.duplicate(), info);
+            }
+        }
+    }
+
+    private abstract static class Track {
+        abstract void start() throws IOException;
+
+        /**
+         * Moves samples through the track without blocking.
+         *
+         * @return true if anything moved
+         */
+        abstract boolean step() throws Exception;
+
+        abstract boolean isDone();
+
+        /**
+         * @return presentation time of the last sample written to the output
+         */
+        abstract long getPositionUs();
+
+        float getProgress(long durationUs) {
+            return durationUs > 0 ? Math.min(1f, (float) Math.max(0, getPositionUs()) / durationUs) : 0;
+        }
+
+        abstract void release();
+
+        /**
+         * Writes whatever the encoder has ready.
+         *
+         * @return true if anything was written or the output format became known
+         */
+        static boolean drainEncoder(
+                @NonNull MediaCodec encoder,
+                @NonNull MediaCodec.BufferInfo info,
+                @NonNull Sink sink,
+                @NonNull int[] muxerTrack,
+                @NonNull long[] positionUs,
+                @NonNull boolean[] done
+        ) throws IOException {
+            int index = encoder.dequeueOutputBuffer(info, 0);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                muxerTrack[0] = sink.addTrack(encoder.getOutputFormat());
+                return true;
+            }
+            if (index < 0) {
+                return false;
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                sink.write(muxerTrack[0], encoder.getOutputBuffer(index), info);
+                positionUs[0] = info.presentationTimeUs;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                done[0] = true;
+            }
+            encoder.releaseOutputBuffer(index, false);
+            return true;
+        }
+    }
+
+    /**
+     * Encoder of one output the decoded video is drawn into.
+     */
+    private static class VideoEncoder {
+        final MediaFormat format;
+        final Sink sink;
+        final int width;
+        final int height;
+
+        MediaCodec codec;
+        EncoderInputSurface inputSurface;
+        /** Fits frames of the current clip into the output. */
+        float[] matrix;
+
+        /** Bitrate the encoder is set to, 0 when unknown. */
+        int bitrate;
+
+        final int[] muxerTrack = new int[] { -1 };
+        final long[] positionUs = new long[] { -1 };
+        final boolean[] done = new boolean[] { false };
+
+        VideoEncoder(@NonNull MediaFormat format, @NonNull Sink sink) {
+            this.format = format;
+            this.sink = sink;
+            this.width = format.getInteger(MediaFormat.KEY_WIDTH);
+            this.height = format.getInteger(MediaFormat.KEY_HEIGHT);
+            this.bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        }
+
+        /**
+         * Changes the bitrate of the running encoder, from the next frames on.
+         */
+        void setBitrate(int bitrate) {
+            Bundle parameters = new Bundle();
+            parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            codec.setParameters(parameters);
+            this.bitrate = bitrate;
+        }
+    }
+
+    /**
+     * Keeps the output within {@link Options#sizeBudget}. While it is written, its size is
+     * extrapolated from the bytes written since the bitrate last changed, and the video
+     * encoder is turned down when it is heading over the budget.
+     */
+    private class SizeWatch {
+        private final MuxerSink sink;
+        private final VideoEncoder encoder;
+
+        private long mBaseBytes = 0;
+        private float mBaseProgress = 0;
+
+        SizeWatch(@NonNull MuxerSink sink, @NonNull VideoEncoder encoder) {
+            this.sink = sink;
+            this.encoder = encoder;
+        }
+
+        void check(float progress) {
+            long writtenBytes = sink.getWrittenBytes();
+            long projected = OutputSizeBudget.project(writtenBytes, progress, mBaseBytes, mBaseProgress);
+            if (encoder.bitrate <= 0 || options.sizeBudget.isOnTrack(projected)) {
+                return;
+            }
+
+            long durationMs = durationUs / 1000;
+            int corrected = options.sizeBudget.correctRemainingBitrate(encoder.bitrate, writtenBytes - mBaseBytes,
+                    (long) ((progress - mBaseProgress) * durationMs), writtenBytes, (long) ((1 - progress) * durationMs),
+                    options.audioBitrate);
+            // the rate since now shows whether the correction took
+            mBaseBytes = writtenBytes;
+            mBaseProgress = progress;
+            if (corrected < encoder.bitrate) {
+                encoder.setBitrate(corrected);
+            }
+        }
+    }
+
+    /**
+     * Decodes the video of every clip once and draws each frame into the encoders of all
+     * encoded outputs of a pass. Their input surfaces share the EGL context of the first one,
+     * which holds the texture the decoder renders into.
+     */
+    private class VideoTrack extends Track {
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private final FrameDecimator decimator = new FrameDecimator(options.maxFrameRate);
+        private final List<VideoEncoder> encoders = new ArrayList<>();
+
+        private DecoderOutputSurface mOutputSurface;
+
+        private int mClip = -1;
+        private MediaExtractor mExtractor;
+        private RangeReader mReader;
+        private MediaCodec mDecoder;
+
+        private long mDecodedUs = 0;
+        /** Output time of the last frame handed to the encoders, repeated frames are dropped. */
+        private long mLastFrameUs = -1;
+
+        private boolean mInputDone = false;
+
+        VideoTrack(@NonNull List<Target> targets, @NonNull List<? extends Sink> sinks) {
+            for (int target = 0; target < targets.size(); target++) {
+                encoders.add(new VideoEncoder(targets.get(target).videoFormat, sinks.get(target)));
+            }
+        }
+
+        @Override
+        void start() throws IOException {
+            EncoderInputSurface shared = null;
+            for (VideoEncoder encoder : encoders) {
+                String mimeType = encoder.format.getString(MediaFormat.KEY_MIME);
+                MediaFormat encoderFormat = MediaFormat.createVideoFormat(mimeType, encoder.width, encoder.height);
+                copyKeys(encoder.format, encoderFormat, VIDEO_ENCODER_KEYS);
+                encoderFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+
+                encoder.codec = CodecCatalog.get().createVideoEncoder(encoderFormat);
+                encoder.codec.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                encoder.inputSurface = new EncoderInputSurface(encoder.codec.createInputSurface(), shared);
+                encoder.codec.start();
+                if (shared == null) {
+                    shared = encoder.inputSurface;
+                }
+            }
+
+            shared.makeCurrent();
+            mOutputSurface = new DecoderOutputSurface();
+            openClip(0);
+        }
+
+        /**
+         * Points a new decoder for the clip at the surface the previous one rendered into.
+         */
+        private void openClip(int clip) throws IOException {
+            mClip = clip;
+            mInputDone = false;
+
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(context, clips.get(clip).uri, null);
+            int track = findTrack(mExtractor, "video");
+            if (track < 0) {
+                throw new IOException(String.format("No video track found in clip %d", clip));
+            }
+            mExtractor.selectTrack(track);
+            MediaFormat inputFormat = mExtractor.getTrackFormat(track);
+            mReader = new RangeReader(mExtractor, clips.get(clip).ranges, REORDER_MARGIN_US);
+
+            int turn = ((clips.get(clip).rotation - rotation) % 360 + 360) % 360;
+            for (VideoEncoder encoder : encoders) {
+                encoder.matrix = getFitMatrix(inputFormat.getInteger(MediaFormat.KEY_WIDTH),
+                        inputFormat.getInteger(MediaFormat.KEY_HEIGHT), turn, encoder.width, encoder.height);
+            }
+
+            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            mDecoder.configure(inputFormat, mOutputSurface.getSurface(), null, 0);
+            mDecoder.start();
+        }
+
+        private void closeClip() {
+            if (mDecoder != null) {
+                mDecoder.release();
+                mDecoder = null;
+            }
+            if (mExtractor != null) {
+                mExtractor.release();
+                mExtractor = null;
+            }
+        }
+
+        @Override
+        boolean step() throws Exception {
+            boolean progressed = false;
+
+            if (mDecoder != null && !mInputDone) {
+                int index = mDecoder.dequeueInputBuffer(0);
+                if (index >= 0) {
+                    int size = mReader.read(mDecoder.getInputBuffer(index));
+                    if (size < 0) {
+                        mDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        mInputDone = true;
+                    } else {
+                        mDecoder.queueInputBuffer(index, 0, size, mReader.getSampleTime(), 0);
+                        mReader.advance();
+                    }
+                    progressed = true;
+                }
+            }
+
+            if (mDecoder != null) {
+                int index = mDecoder.dequeueOutputBuffer(mInfo, 0);
+                if (index >= 0) {
+                    if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        mDecoder.releaseOutputBuffer(index, false);
+                        closeClip();
+
+                        if (mClip + 1 < clips.size()) {
+                            openClip(mClip + 1);
+                        } else {
+                            for (VideoEncoder encoder : encoders) {
+                                encoder.codec.signalEndOfInputStream();
+                            }
+                        }
+                    } else {
+                        // frames between a keyframe and the start of its range, or decoded twice, are dropped
+                        long presentationTimeUs = toOutputTimeUs(mClip, mInfo.presentationTimeUs);
+                        boolean render = mInfo.size > 0 && presentationTimeUs > mLastFrameUs
+                                && decimator.shouldKeep(presentationTimeUs);
+                        mDecoder.releaseOutputBuffer(index, render);
+
+                        if (render) {
+                            mLastFrameUs = presentationTimeUs;
+                            mDecodedUs = presentationTimeUs;
+
+                            mOutputSurface.awaitNewImage();
+                            for (VideoEncoder encoder : encoders) {
+                                encoder.inputSurface.makeCurrent();
+                                mOutputSurface.setMvpMatrix(encoder.matrix);
+                                mOutputSurface.drawImage(encoder.width, encoder.height);
+                                encoder.inputSurface.setPresentationTime(presentationTimeUs * 1000);
+                                encoder.inputSurface.swapBuffers();
+                            }
+                        }
+                    }
+                    progressed = true;
+                }
+            }
+
+            for (VideoEncoder encoder : encoders) {
+                if (!encoder.done[0]) {
+                    progressed |= drainEncoder(encoder.codec, mInfo, encoder.sink, encoder.muxerTrack,
+                            encoder.positionUs, encoder.done);
+                }
+            }
+
+            return progressed;
+        }
+
+        @Override
+        boolean isDone() {
+            for (VideoEncoder encoder : encoders) {
+                if (!encoder.done[0]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        long getPositionUs() {
+            long positionUs = Long.MAX_VALUE;
+            for (VideoEncoder encoder : encoders) {
+                positionUs = Math.min(positionUs, encoder.positionUs[0]);
+            }
+            return positionUs;
+        }
+
+        @Override
+        float getProgress(long durationUs) {
+            return durationUs > 0 ? Math.min(1f, (float) mDecodedUs / durationUs) : 0;
+        }
+
+        @Override
+        void release() {
+            closeClip();
+            if (mOutputSurface != null) {
+                mOutputSurface.release();
+            }
+            // the first input surface holds the shared context, it goes last
+            for (int index = encoders.size() - 1; index >= 0; index--) {
+                VideoEncoder encoder = encoders.get(index);
+                if (encoder.codec != null) {
+                    encoder.codec.release();
+                }
+                if (encoder.inputSurface != null) {
+                    encoder.inputSurface.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the samples of a track of the only clip. Audio samples that would go back in time
+     * are dropped; video samples are kept in decode order, which may differ from presentation order.
+     */
+    private class CopyTrack extends Track {
+        private final MediaExtractor extractor;
+        private final MediaFormat format;
+        private final RangeReader reader;
+        private final boolean video;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        private final Sink sink;
+
+        private ByteBuffer mBuffer;
+        private int mMuxerTrack;
+        private long mPositionUs = -1;
+        private boolean mDone = false;
+
+        CopyTrack(@NonNull MediaExtractor extractor, @NonNull MediaFormat format, long marginUs, @NonNull Sink sink) {
+            this.extractor = extractor;
+            this.sink = sink;
+            this.format = format;
+            this.reader = new RangeReader(extractor, clips.get(0).ranges, marginUs);
+            this.video = format.getString(MediaFormat.KEY_MIME).startsWith("video");
+        }
+
+        @Override
+        void start() throws IOException {
+            mMuxerTrack = sink.addTrack(format);
+            mBuffer = ByteBuffer.allocateDirect(format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? Math.max(DEFAULT_BUFFER_SIZE, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE))
+                    : DEFAULT_BUFFER_SIZE);
+        }
+
+        @Override
+        boolean step() throws IOException {
+            int size = reader.read(mBuffer);
+            if (size < 0) {
+                mDone = true;
+                return true;
+            }
+
+            // every audio sample is a sync sample, so ranges are cut on sample boundaries;
+            // copied video ranges start on keyframes
+            long presentationTimeUs = toOutputTimeUs(0, reader.getSampleTime());
+            if (video ? presentationTimeUs >= 0 : presentationTimeUs > mPositionUs) {
+                mInfo.set(0, size, presentationTimeUs, reader.getSampleFlags());
+                sink.write(mMuxerTrack, mBuffer, mInfo);
+                mPositionUs = Math.max(mPositionUs, presentationTimeUs);
+            }
+            reader.advance();
+            return true;
+        }
+
+        @Override
+        boolean isDone() {
+            return mDone;
+        }
+
+        @Override
+        long getPositionUs() {
+            return mPositionUs;
+        }
+
+        @Override
+        void release() {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Decodes the audio of every clip, converts it to the output format and encodes it.
+     * Clips without audio are filled with silence so the next clip stays in sync.
+     */
+    private class AudioTranscodeTrack extends Track {
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        private final Sink sink;
+
+        private MediaCodec mEncoder;
+        private int mSampleRate;
+        private int mChannelCount;
+        private int mBytesPerSecond;
+
+        private int mClip = -1;
+        private MediaExtractor mExtractor;
+        private RangeReader mReader;
+        private MediaCodec mDecoder;
+        private PcmConverter mConverter;
+        private boolean mInputDone = false;
+        /** The clip has no more audio, the next one starts once everything pending is encoded. */
+        private boolean mClipDone = false;
+        /** Silence written for a clip without audio. */
+        private long mSilenceUs = 0;
+
+        /** Converted PCM that did not fit into the last encoder input buffer. */
+        private ByteBuffer mPendingBuffer;
+        private long mPendingTimeUs;
+        private boolean mPendingEndOfStream;
+        /** Output time of the last decoded chunk kept, chunks outside the ranges or decoded twice are dropped. */
+        private long mLastChunkUs = -1;
+        private boolean mEndQueued = false;
+
+        private final int[] mMuxerTrack = new int[] { -1 };
+        private final long[] mPositionUs = new long[] { -1 };
+        private final boolean[] mDone = new boolean[] { false };
+
+        AudioTranscodeTrack(@NonNull Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        void start() throws IOException {
+            mSampleRate = targetAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            mChannelCount = targetAudioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            mBytesPerSecond = mSampleRate * mChannelCount * 2;
+
+            String mimeType = targetAudioFormat.getString(MediaFormat.KEY_MIME);
+            MediaFormat encoderFormat = MediaFormat.createAudioFormat(mimeType, mSampleRate, mChannelCount);
+            copyKeys(targetAudioFormat, encoderFormat, AUDIO_ENCODER_KEYS);
+
+            mEncoder = MediaCodec.createEncoderByType(mimeType);
+            mEncoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoder.start();
+
+            openClip(0);
+        }
+
+        private void openClip(int clip) throws IOException {
+            mClip = clip;
+            mInputDone = false;
+            mClipDone = false;
+            mSilenceUs = 0;
+
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(context, clips.get(clip).uri, null);
+            int track = findTrack(mExtractor, "audio");
+            if (track < 0) {
+                mExtractor.release();
+                mExtractor = null;
+                return;
+            }
+
+            mExtractor.selectTrack(track);
+            MediaFormat inputFormat = mExtractor.getTrackFormat(track);
+            mReader = new RangeReader(mExtractor, clips.get(clip).ranges, 0);
+            mConverter = createConverter(inputFormat);
+
+            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            mDecoder.configure(inputFormat, null, null, 0);
+            mDecoder.start();
+        }
+
+        private void closeClip() {
+            if (mDecoder != null) {
+                mDecoder.release();
+                mDecoder = null;
+            }
+            if (mExtractor != null) {
+                mExtractor.release();
+                mExtractor = null;
+            }
+        }
+
+        /**
+         * Moves on to the next clip, or ends the stream after the last one.
+         */
+        private void nextClip() throws IOException {
+            closeClip();
+            if (mClip + 1 < clips.size()) {
+                openClip(mClip + 1);
+            } else {
+                mPendingBuffer = ByteBuffer.allocate(0);
+                mPendingTimeUs = Math.max(0, mLastChunkUs);
+                mPendingEndOfStream = true;
+                mEndQueued = true;
+            }
+        }
+
+        @NonNull
+        private PcmConverter createConverter(@NonNull MediaFormat format) {
+            return new PcmConverter(
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    mSampleRate,
+                    mChannelCount
+            );
+        }
+
+        @Override
+        boolean step() throws IOException {
+            boolean progressed = false;
+
+            if (mDecoder != null && !mInputDone) {
+                int index = mDecoder.dequeueInputBuffer(0);
+                if (index >= 0) {
+                    int size = mReader.read(mDecoder.getInputBuffer(index));
+                    if (size < 0) {
+                        mDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        mInputDone = true;
+                    } else {
+                        mDecoder.queueInputBuffer(index, 0, size, mReader.getSampleTime(), 0);
+                        mReader.advance();
+                    }
+                    progressed = true;
+                }
+            }
+
+            if (mPendingBuffer == null && !mEndQueued) {
+                if (mClipDone) {
+                    nextClip();
+                    progressed = true;
+                } else {
+                    progressed |= mDecoder != null ? pullDecoded() : pullSilence();
+                }
+            }
+
+            if (mPendingBuffer != null) {
+                progressed |= feedEncoder();
+            }
+
+            if (!mDone[0]) {
+                progressed |= drainEncoder(mEncoder, mInfo, sink, mMuxerTrack, mPositionUs, mDone);
+            }
+
+            return progressed;
+        }
+
+        private boolean pullDecoded() {
+            int index = mDecoder.dequeueOutputBuffer(mInfo, 0);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mConverter = createConverter(mDecoder.getOutputFormat());
+                return true;
+            }
+            if (index < 0) {
+                return false;
+            }
+
+            boolean endOfStream = (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            long presentationTimeUs = toOutputTimeUs(mClip, mInfo.presentationTimeUs);
+            if (mInfo.size > 0 && presentationTimeUs > mLastChunkUs) {
+                ByteBuffer decoded = mDecoder.getOutputBuffer(index);
+                decoded.position(mInfo.offset);
+                decoded.limit(mInfo.offset + mInfo.size);
+
+                mPendingBuffer = mConverter.convert(decoded);
+                mPendingTimeUs = presentationTimeUs;
+                mPendingEndOfStream = false;
+                mLastChunkUs = presentationTimeUs;
+            }
+            mDecoder.releaseOutputBuffer(index, false);
+
+            mClipDone = endOfStream;
+            return true;
+        }
+
+        private boolean pullSilence() {
+            long remainingUs = clips.get(mClip).durationUs - mSilenceUs;
+            if (remainingUs <= 0) {
+                mClipDone = true;
+                return true;
+            }
+
+            int frames = (int) Math.min(SILENCE_FRAMES, Math.max(1, remainingUs * mSampleRate / 1_000_000L));
+            mPendingBuffer = ByteBuffer.allocate(frames * mChannelCount * 2);
+            mPendingTimeUs = clipStartsUs[mClip] + mSilenceUs;
+            mPendingEndOfStream = false;
+            mLastChunkUs = mPendingTimeUs;
+            mSilenceUs += frames * 1_000_000L / mSampleRate;
+            return true;
+        }
+
+        /**
+         * Copies pending PCM into the encoder, splitting it when an input buffer is smaller.
+         */
+        private boolean feedEncoder() {
+            int index = mEncoder.dequeueInputBuffer(0);
+            if (index < 0) {
+                return false;
+            }
+
+            ByteBuffer input = mEncoder.getInputBuffer(index);
+            int size = Math.min(input.remaining(), mPendingBuffer.remaining());
+            ByteBuffer chunk = mPendingBuffer.duplicate();
+            chunk.limit(chunk.position() + size);
+            input.put(chunk);
+            mPendingBuffer.position(mPendingBuffer.position() + size);
+
+            boolean last = !mPendingBuffer.hasRemaining();
+            int flags = last && mPendingEndOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
+            mEncoder.queueInputBuffer(index, 0, size, mPendingTimeUs, flags);
+            mPendingTimeUs += size * 1_000_000L / mBytesPerSecond;
+
+            if (last) {
+                mPendingBuffer = null;
+            }
+            return true;
+        }
+
+        @Override
+        boolean isDone() {
+            return mDone[0];
+        }
+
+        @Override
+        long getPositionUs() {
+            return mPositionUs[0];
+        }
+
+        @Override
+        void release() {
+            closeClip();
+            if (mEncoder != null) {
+                mEncoder.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.reactnativevideotranscoder;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Estimates how hard a source is to encode without decoding it, from the
+ * compressed sizes of a few sampled runs of video frames: delta frames that
+ * are small next to their keyframe mean little motion, large keyframes mean
+ * a lot of detail. The estimate is used to pick a per-video bitrate that
+ * reaches a quality level with as few bits as possible.
+ */
+class ComplexityProbe {
+    private static final int MAX_ENTRIES = 32;
+    private static final int SAMPLE_WINDOWS = 6;
+    private static final int FRAMES_PER_WINDOW = 45;
+    private static final int DEFAULT_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    private static final int MIN_BITRATE = 300_000;
+
+    static class Result {
+        /** Average delta frame size relative to the keyframe size, 0 to 1. */
+        final double motion;
+        /** Keyframe bits per pixel, normalized to 0 to 1. */
+        final double detail;
+        /** Share of sampled frames that are keyframes. */
+        final double keyframeRatio;
+        final int sampledFrames;
+
+        Result(double motion, double detail, double keyframeRatio, int sampledFrames) {
+            this.motion = motion;
+            this.detail = detail;
+            this.keyframeRatio = keyframeRatio;
+            this.sampledFrames = sampledFrames;
+        }
+
+        /**
+         * @return overall complexity, 0 for a still image to 1 for busy, high motion content
+         */
+        double getScore() {
+            return clamp(0.7 * motion + 0.3 * detail);
+        }
+    }
+
+    static class Decision {
+        final int bitrate;
+        final String reason;
+
+        Decision(int bitrate, String reason) {
+            this.bitrate = bitrate;
+            this.reason = reason;
+        }
+    }
+
+    private final Context context;
+
+    private final Map<String, Result> mCache = new LinkedHashMap<String, Result>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    ComplexityProbe(@NonNull Context context) {
+        this.context = context;
+    }
+
+    @NonNull
+    Result analyze(@NonNull SourceProbe.Result probe) throws IOException {
+        synchronized (mCache) {
+            Result cached = mCache.get(probe.cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Result result = read(probe);
+
+        if (probe.sizeBytes >= 0 && probe.lastModified >= 0) {
+            synchronized (mCache) {
+                mCache.put(probe.cacheKey, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Picks the bitrate for a quality level from bits per pixel scaled by the complexity
+     * of the content, never above the bitrate of the source.
+     */
+    @NonNull
+    static Decision chooseBitrate(
+            @NonNull Result complexity,
+            @NonNull TranscodePolicy.Quality quality,
+            int width,
+            int height,
+            int frameRate,
+            int sourceBitrate
+    ) {
+        double score = complexity.getScore();
+        // static content needs half the bits of an average clip, high motion half again as many
+        double bitsPerPixel = quality.bitsPerPixel * (0.5 + score);
+        long pixelRate = (long) width * height * Math.max(1, frameRate);
+        int bitrate = (int) Math.max(MIN_BITRATE, bitsPerPixel * pixelRate);
+
+        String label = score < 0.33 ? "static" : score < 0.66 ? "moderate" : "high motion";
+        String reason = String.format(Locale.US,
+                "%s content (motion %.2f, detail %.2f, keyframes %.2f): %.3f bits per pixel at %dx%d %d fps",
+                label, complexity.motion, complexity.detail, complexity.keyframeRatio,
+                bitsPerPixel, width, height, frameRate);
+
+        if (sourceBitrate > 0 && bitrate > sourceBitrate) {
+            bitrate = sourceBitrate;
+            reason += ", capped at the source bitrate";
+        }
+
+        return new Decision(bitrate, reason);
+    }
+
+    @NonNull
+    private Result read(@NonNull SourceProbe.Result probe) throws IOException {
+        long keyBytes = 0;
+        int keyFrames = 0;
+        long deltaBytes = 0;
+        int deltaFrames = 0;
+
+        MediaExtractor mediaExtractor = new MediaExtractor();
+        try {
+            mediaExtractor.setDataSource(context, probe.uri, null);
+
+            int videoTrack = -1;
+            int bufferSize = DEFAULT_BUFFER_SIZE;
+            for (int track = 0; track < mediaExtractor.getTrackCount(); track++) {
+                MediaFormat format = mediaExtractor.getTrackFormat(track);
+                String mimeType = format.getString(MediaFormat.KEY_MIME);
+                if (mimeType != null && mimeType.startsWith("video")) {
+                    videoTrack = track;
+                    if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                        bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                    }
+                    break;
+                }
+            }
+            if (videoTrack < 0) {
+                throw new IOException("No video track found");
+            }
+            mediaExtractor.selectTrack(videoTrack);
+
+            // reading sample data is only needed where the size can not be asked for
+            ByteBuffer buffer = Build.VERSION.SDK_INT < Build.VERSION_CODES.P
+                    ? ByteBuffer.allocateDirect(bufferSize)
+                    : null;
+            long durationUs = Math.max(0, probe.durationMs) * 1000;
+
+            for (int window = 0; window < SAMPLE_WINDOWS; window++) {
+                mediaExtractor.seekTo(durationUs * window / SAMPLE_WINDOWS, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+                for (int frame = 0; frame < FRAMES_PER_WINDOW; frame++) {
+                    long size = buffer != null
+                            ? mediaExtractor.readSampleData(buffer, 0)
+                            : mediaExtractor.getSampleSize();
+                    if (size < 0) {
+                        break;
+                    }
+
+                    if ((mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                        keyBytes += size;
+                        keyFrames++;
+                    } else {
+                        deltaBytes += size;
+                        deltaFrames++;
+                    }
+
+                    if (!mediaExtractor.advance()) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            mediaExtractor.release();
+        }
+
+        int sampledFrames = keyFrames + deltaFrames;
+        if (keyFrames == 0) {
+            // nothing to compare against, assume average content
+            return new Result(0.5, 0.5, 0, sampledFrames);
+        }
+
+        double averageKeyBytes = (double) keyBytes / keyFrames;
+        double motion = deltaFrames > 0 ? clamp(deltaBytes / (double) deltaFrames / averageKeyBytes) : 1;
+
+        double pixels = probe.width > 0 && probe.height > 0 ? (double) probe.width * probe.height : 1280 * 720;
+        double keyBitsPerPixel = averageKeyBytes * 8 / pixels;
+        double detail = clamp((keyBitsPerPixel - 0.1) / 1.2);
+
+        return new Result(motion, detail, (double) keyFrames / sampledFrames, sampledFrames);
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
@@ -0,0 +1,218 @@
+package com.reactnativevideotranscoder;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Surface a video decoder renders into. Each released frame becomes an
+ * external texture that is drawn, scaled to the viewport, into the current
+ * EGL surface. Needs a current EGL context when created and when drawing.
+ */
+class DecoderOutputSurface {
+    private static final long FRAME_TIMEOUT_MS = 2500;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+            "uniform mat4 uSTMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private static final float[] VERTICES = {
+            // x, y, u, v
+            -1.0f, -1.0f, 0.f, 0.f,
+            1.0f, -1.0f, 1.f, 0.f,
+            -1.0f, 1.0f, 0.f, 1.f,
+            1.0f, 1.0f, 1.f, 1.f,
+    };
+    private static final int VERTEX_STRIDE = 4 * 4;
+
+    private final FloatBuffer mVertices;
+    private final float[] mMvpMatrix = new float[16];
+    private final float[] mStMatrix = new float[16];
+
+    private final HandlerThread mFrameThread = new HandlerThread("DecoderOutputSurface");
+    private final Object mFrameLock = new Object();
+    private boolean mFrameAvailable = false;
+
+    private final int mProgram;
+    private final int mTextureId;
+    private final int mPositionHandle;
+    private final int mTextureCoordHandle;
+    private final int mMvpMatrixHandle;
+    private final int mStMatrixHandle;
+
+    private final SurfaceTexture mSurfaceTexture;
+    private final Surface mSurface;
+
+    DecoderOutputSurface() {
+        mVertices = ByteBuffer.allocateDirect(VERTICES.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mVertices.put(VERTICES).position(0);
+        Matrix.setIdentityM(mMvpMatrix, 0);
+        Matrix.setIdentityM(mStMatrix, 0);
+
+        mProgram = createProgram();
+        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTextureCoordHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+        mMvpMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        mStMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uSTMatrix");
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mTextureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        checkGlError("texture setup");
+
+        // frame callbacks must not depend on a looper of the codec thread
+        mFrameThread.start();
+        mSurfaceTexture = new SurfaceTexture(mTextureId);
+        mSurfaceTexture.setOnFrameAvailableListener(surfaceTexture -> {
+            synchronized (mFrameLock) {
+                mFrameAvailable = true;
+                mFrameLock.notifyAll();
+            }
+        }, new Handler(mFrameThread.getLooper()));
+        mSurface = new Surface(mSurfaceTexture);
+    }
+
+    @NonNull
+    Surface getSurface() {
+        return mSurface;
+    }
+
+    /**
+     * Sets the transformation applied to the frame in normalized device coordinates,
+     * e.g. to rotate or letterbox it. Identity by default.
+     */
+    void setMvpMatrix(@NonNull float[] mvpMatrix) {
+        System.arraycopy(mvpMatrix, 0, mMvpMatrix, 0, mMvpMatrix.length);
+    }
+
+    /**
+     * Waits for the frame the decoder just released and latches it into the texture.
+     */
+    void awaitNewImage() throws InterruptedException {
+        synchronized (mFrameLock) {
+            long deadline = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+            while (!mFrameAvailable) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Decoder did not deliver a frame in time");
+                }
+                mFrameLock.wait(remaining);
+            }
+            mFrameAvailable = false;
+        }
+
+        mSurfaceTexture.updateTexImage();
+    }
+
+    void drawImage(int viewportWidth, int viewportHeight) {
+        mSurfaceTexture.getTransformMatrix(mStMatrix);
+
+        GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureId);
+
+        mVertices.position(0);
+        GLES20.glVertexAttribPointer(mPositionHandle, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE, mVertices);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        mVertices.position(2);
+        GLES20.glVertexAttribPointer(mTextureCoordHandle, 2, GLES20.GL_FLOAT, false, VERTEX_STRIDE, mVertices);
+        GLES20.glEnableVertexAttribArray(mTextureCoordHandle);
+
+        GLES20.glUniformMatrix4fv(mMvpMatrixHandle, 1, false, mMvpMatrix, 0);
+        GLES20.glUniformMatrix4fv(mStMatrixHandle, 1, false, mStMatrix, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        checkGlError("glDrawArrays");
+    }
+
+    void release() {
+        mSurface.release();
+        mSurfaceTexture.release();
+        mFrameThread.quitSafely();
+        GLES20.glDeleteProgram(mProgram);
+        GLES20.glDeleteTextures(1, new int[] { mTextureId }, 0);
+    }
+
+    private static int createProgram() {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException(String.format("Can not link program: %s", log));
+        }
+
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException(String.format("Can not compile shader: %s", log));
+        }
+
+        return shader;
+    }
+
+    private static void checkGlError(String operation) {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new IllegalStateException(String.format("%s failed: GL error 0x%x", operation, error));
+        }
+    }
+}
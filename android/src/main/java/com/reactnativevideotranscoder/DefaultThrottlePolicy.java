@@ -0,0 +1,83 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Throttles in steps: a warm device, power saving or a low battery run one
+ * job at a time and hold background jobs back; a hot device also gets
+ * smaller outputs at a lower frame rate, which is less work per job.
+ * The thresholds are fields so they can be tuned.
+ */
+class DefaultThrottlePolicy implements ThrottlePolicy {
+    /** From this thermal status on only one job runs and background jobs wait. */
+    int moderateThermalStatus = DeviceCondition.THERMAL_MODERATE;
+    /** From this thermal status on new outputs are also reduced. */
+    int severeThermalStatus = DeviceCondition.THERMAL_SEVERE;
+    /** At or below this battery level, when not charging, the device is treated like a warm one. */
+    int lowBatteryLevel = 15;
+    boolean throttleOnPowerSave = true;
+
+    float severeSizeScale = 0.75f;
+    int severeMaxFrameRate = 30;
+    /** Frame rate of new outputs on low battery, 0 for no limit. */
+    int lowBatteryMaxFrameRate = 30;
+
+    @NonNull
+    @Override
+    public Decision decide(@NonNull DeviceCondition condition) {
+        Decision decision = new Decision();
+        List<String> reasons = new ArrayList<>();
+
+        boolean lowBattery = !condition.charging && condition.batteryLevel >= 0 && condition.batteryLevel <= lowBatteryLevel;
+
+        if (condition.thermalStatus >= moderateThermalStatus) {
+            reasons.add(String.format("thermal status %d", condition.thermalStatus));
+            limit(decision);
+        }
+        if (condition.thermalStatus >= severeThermalStatus) {
+            decision.sizeScale = Math.min(decision.sizeScale, severeSizeScale);
+            decision.maxFrameRate = minRate(decision.maxFrameRate, severeMaxFrameRate);
+        }
+        if (throttleOnPowerSave && condition.powerSave) {
+            reasons.add("power save");
+            limit(decision);
+        }
+        if (lowBattery) {
+            reasons.add(String.format("battery at %d%%", condition.batteryLevel));
+            limit(decision);
+            decision.maxFrameRate = minRate(decision.maxFrameRate, lowBatteryMaxFrameRate);
+        }
+
+        if (reasons.isEmpty()) {
+            return Decision.NONE;
+        }
+
+        StringBuilder reason = new StringBuilder();
+        for (String item : reasons) {
+            if (reason.length() > 0) {
+                reason.append(", ");
+            }
+            reason.append(item);
+        }
+        decision.reason = reason.toString();
+        return decision;
+    }
+
+    private static void limit(@NonNull Decision decision) {
+        decision.maxConcurrency = 1;
+        decision.holdBackground = true;
+    }
+
+    /**
+     * @return the lower of two frame rate limits, where 0 is no limit
+     */
+    private static int minRate(int a, int b) {
+        if (a <= 0) {
+            return b;
+        }
+        return b <= 0 ? a : Math.min(a, b);
+    }
+}
@@ -0,0 +1,54 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Snapshot of what limits how hard the device should be pushed: thermal
+ * status, battery and power saving. Thermal levels follow the values of
+ * {@code PowerManager.THERMAL_STATUS_*}.
+ */
+class DeviceCondition {
+    static final int THERMAL_UNKNOWN = -1;
+    static final int THERMAL_NONE = 0;
+    static final int THERMAL_LIGHT = 1;
+    static final int THERMAL_MODERATE = 2;
+    static final int THERMAL_SEVERE = 3;
+    static final int THERMAL_CRITICAL = 4;
+
+    static final DeviceCondition UNKNOWN = new DeviceCondition(THERMAL_UNKNOWN, -1, false, false);
+
+    final int thermalStatus;
+    /** Battery level in percent, -1 if unknown. */
+    final int batteryLevel;
+    final boolean charging;
+    final boolean powerSave;
+
+    DeviceCondition(int thermalStatus, int batteryLevel, boolean charging, boolean powerSave) {
+        this.thermalStatus = thermalStatus;
+        this.batteryLevel = batteryLevel;
+        this.charging = charging;
+        this.powerSave = powerSave;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof DeviceCondition)) {
+            return false;
+        }
+        DeviceCondition condition = (DeviceCondition) other;
+        return thermalStatus == condition.thermalStatus && batteryLevel == condition.batteryLevel
+                && charging == condition.charging && powerSave == condition.powerSave;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((thermalStatus * 31 + batteryLevel) * 31 + (charging ? 1 : 0)) * 31 + (powerSave ? 1 : 0);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format("thermal %d, battery %d%%%s%s", thermalStatus, batteryLevel,
+                charging ? ", charging" : "", powerSave ? ", power save" : "");
+    }
+}
@@ -0,0 +1,23 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Where the condition of the device comes from, so the throttle can be
+ * driven by a fake one.
+ */
+interface DeviceConditionSource {
+    interface Listener {
+        void onConditionChanged(@NonNull DeviceCondition condition);
+    }
+
+    @NonNull
+    DeviceCondition getCondition();
+
+    /**
+     * Starts watching the device, the listener is called on every change.
+     */
+    void start(@NonNull Listener listener);
+
+    void stop();
+}
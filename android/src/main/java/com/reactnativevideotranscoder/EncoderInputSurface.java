@@ -0,0 +1,135 @@
+package com.reactnativevideotranscoder;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * EGL window surface on top of the input surface of a video encoder. Every
+ * swap hands one rendered frame, with its presentation time, to the encoder.
+ * Surfaces of several encoders can share one EGL context, so a texture
+ * decoded once can be drawn into all of them.
+ */
+class EncoderInputSurface {
+    private final Surface surface;
+
+    /** Whether the display and context were created for this surface and are released with it. */
+    private final boolean ownsContext;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLConfig mConfig;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mSurface = EGL14.EGL_NO_SURFACE;
+
+    EncoderInputSurface(@NonNull Surface surface) {
+        this(surface, null);
+    }
+
+    /**
+     * @param shared surface whose EGL context is drawn with, it has to be released after this one;
+     *               null for a context of its own
+     */
+    EncoderInputSurface(@NonNull Surface surface, @Nullable EncoderInputSurface shared) {
+        this.surface = surface;
+        this.ownsContext = shared == null;
+
+        if (shared != null) {
+            mDisplay = shared.mDisplay;
+            mConfig = shared.mConfig;
+            mContext = shared.mContext;
+            createWindowSurface();
+            return;
+        }
+
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new IllegalStateException("Can not get EGL display");
+        }
+
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            throw new IllegalStateException("Can not initialize EGL");
+        }
+
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                // the surface feeds a video encoder
+                EGLExt.EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttributes, 0, configs, 0, configs.length, configCount, 0)
+                || configCount[0] == 0) {
+            throw new IllegalStateException("No EGL config for a recordable surface");
+        }
+
+        int[] contextAttributes = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        mConfig = configs[0];
+        mContext = EGL14.eglCreateContext(mDisplay, mConfig, EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        checkEglError("eglCreateContext");
+
+        createWindowSurface();
+    }
+
+    private void createWindowSurface() {
+        int[] surfaceAttributes = {
+                EGL14.EGL_NONE
+        };
+        mSurface = EGL14.eglCreateWindowSurface(mDisplay, mConfig, surface, surfaceAttributes, 0);
+        checkEglError("eglCreateWindowSurface");
+    }
+
+    void makeCurrent() {
+        if (!EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+            throw new IllegalStateException("eglMakeCurrent failed");
+        }
+    }
+
+    void setPresentationTime(long presentationTimeNs) {
+        EGLExt.eglPresentationTimeANDROID(mDisplay, mSurface, presentationTimeNs);
+    }
+
+    void swapBuffers() {
+        if (!EGL14.eglSwapBuffers(mDisplay, mSurface)) {
+            throw new IllegalStateException("eglSwapBuffers failed");
+        }
+    }
+
+    void release() {
+        if (mDisplay != EGL14.EGL_NO_DISPLAY && !ownsContext) {
+            EGL14.eglDestroySurface(mDisplay, mSurface);
+        } else if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(mDisplay, mSurface);
+            EGL14.eglDestroyContext(mDisplay, mContext);
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mDisplay);
+        }
+        surface.release();
+
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    private static void checkEglError(String operation) {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new IllegalStateException(String.format("%s failed: EGL error 0x%x", operation, error));
+        }
+    }
+}
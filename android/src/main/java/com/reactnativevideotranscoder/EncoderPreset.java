@@ -0,0 +1,273 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named encoder tunings. A preset picks profile, level, bitrate mode,
+ * keyframe interval and scheduling keys for the encoder that runs the job;
+ * profiles, levels and bitrate modes the encoder does not advertise are left
+ * out. Keys it still rejects when configured are found and dropped once the
+ * job starts, since that needs a codec configured.
+ */
+enum EncoderPreset {
+    /** Baseline profile at realtime priority, the encoder runs as fast as it can. */
+    FAST,
+    /** Main profile with variable bitrate. */
+    BALANCED,
+    /** High profile with variable bitrate and long GOPs, for the smallest output. */
+    SMALL;
+
+    /** Keys a preset may set, in the order they are given up when the encoder rejects several together. */
+    static final String[] TUNING_KEYS = new String[] {
+            MediaFormat.KEY_LEVEL,
+            MediaFormat.KEY_PROFILE,
+            MediaFormat.KEY_LATENCY,
+            MediaFormat.KEY_OPERATING_RATE,
+            MediaFormat.KEY_PRIORITY,
+            MediaFormat.KEY_BITRATE_MODE
+    };
+    /** Other keys of target video formats, kept when a format is copied without rejected keys. */
+    private static final String[] FORMAT_INT_KEYS = new String[] {
+            MediaFormat.KEY_WIDTH,
+            MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_BIT_RATE,
+            MediaFormat.KEY_FRAME_RATE,
+            MediaFormat.KEY_I_FRAME_INTERVAL,
+            MediaFormat.KEY_MAX_B_FRAMES,
+            SourceProbe.KEY_ROTATION
+    };
+
+    /** Lowest H.264 level first: level, max macroblocks per second, max frame size in macroblocks, max kbps. */
+    private static final int[][] AVC_LEVELS = new int[][] {
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel1, 1485, 99, 64 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel11, 3000, 396, 192 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel12, 6000, 396, 384 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel13, 11880, 396, 768 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel2, 11880, 396, 2000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel21, 19800, 792, 4000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel22, 20250, 1620, 4000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel3, 40500, 1620, 10000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel31, 108000, 3600, 14000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel32, 216000, 5120, 20000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel4, 245760, 8192, 20000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel41, 245760, 8192, 50000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel42, 522240, 8704, 50000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel5, 589824, 22080, 135000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel51, 983040, 36864, 240000 },
+            { MediaCodecInfo.CodecProfileLevel.AVCLevel52, 2073600, 36864, 240000 }
+    };
+    /** High profile may use this much more bitrate than the level allows for Baseline and Main. */
+    private static final double AVC_HIGH_BITRATE_FACTOR = 1.25;
+
+    /** Asks the codec to run as fast as it can instead of at the frame rate. */
+    private static final int MAX_OPERATING_RATE = Short.MAX_VALUE;
+    private static final int PRIORITY_REALTIME = 0;
+    private static final int PRIORITY_BEST_EFFORT = 1;
+
+    /**
+     * @return the preset, or null when none is given and the encoder defaults stay
+     */
+    @Nullable
+    static EncoderPreset fromString(@Nullable String value) {
+        if ("fast".equals(value)) {
+            return FAST;
+        }
+        if ("balanced".equals(value)) {
+            return BALANCED;
+        }
+        if ("small".equals(value)) {
+            return SMALL;
+        }
+        return null;
+    }
+
+    String toJsValue() {
+        return name().toLowerCase();
+    }
+
+    /**
+     * Sets the keys of the preset the encoder advertises on the format, without trying them.
+     * Priority, operating rate and latency are hints no capability advertises, they are set as
+     * they are and left to {@link #withAcceptedKeys}, which drops them if the encoder rejects them.
+     *
+     * @return keys that were set
+     */
+    @NonNull
+    Map<String, Integer> apply(@NonNull MediaFormat format, @NonNull CodecCatalog.Codec encoder) {
+        Map<String, Integer> tuning = new LinkedHashMap<>();
+
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getKeyframeInterval(format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL)));
+
+        int profile = getProfile(encoder.mimeType);
+        if (profile > 0 && encoder.supportsProfile(profile)) {
+            tuning.put(MediaFormat.KEY_PROFILE, profile);
+
+            int level = MediaFormat.MIMETYPE_VIDEO_AVC.equals(encoder.mimeType) ? getAvcLevel(format, profile) : 0;
+            if (level > 0 && encoder.supportsLevel(profile, level)) {
+                tuning.put(MediaFormat.KEY_LEVEL, level);
+            }
+        }
+
+        int bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        if (encoder.supportsBitrateMode(bitrateMode)) {
+            tuning.put(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            tuning.put(MediaFormat.KEY_PRIORITY, this == FAST ? PRIORITY_REALTIME : PRIORITY_BEST_EFFORT);
+            if (this == FAST) {
+                tuning.put(MediaFormat.KEY_OPERATING_RATE, MAX_OPERATING_RATE);
+            }
+        }
+        if (this == FAST && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // frames leave the encoder as soon as they are encoded
+            tuning.put(MediaFormat.KEY_LATENCY, 1);
+        }
+
+        for (Map.Entry<String, Integer> entry : tuning.entrySet()) {
+            format.setInteger(entry.getKey(), entry.getValue());
+        }
+        return tuning;
+    }
+
+    /**
+     * Restricts AVC output to the Baseline profile, which has no B-frames, so frames leave
+     * the encoder in presentation order. Overrides the profile and level of a preset.
+     */
+    static void applyBaseline(@NonNull MediaFormat format) {
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME))) {
+            return;
+        }
+
+        int profile = MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+        format.setInteger(MediaFormat.KEY_PROFILE, profile);
+        int level = getAvcLevel(format, profile);
+        if (level > 0) {
+            format.setInteger(MediaFormat.KEY_LEVEL, level);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+        }
+    }
+
+    /**
+     * Tries the tuning keys of the format with the encoder that will run it. A rejected key is
+     * found by leaving out each key on its own, so the other keys stay; keys that are only rejected
+     * together are given up in order. Configures codecs, so it runs when a job starts and never on
+     * the thread of the bridge.
+     *
+     * @return the format, or a copy of it without the keys the encoder rejected
+     */
+    @NonNull
+    static MediaFormat withAcceptedKeys(@NonNull MediaFormat format, @NonNull CodecCatalog catalog) {
+        Map<String, Integer> tuning = new LinkedHashMap<>();
+        for (String key : TUNING_KEYS) {
+            if (format.containsKey(key)) {
+                tuning.put(key, format.getInteger(key));
+            }
+        }
+        CodecCatalog.Codec encoder = catalog.getVideoEncoder(format);
+        if (tuning.isEmpty() || encoder == null) {
+            return format;
+        }
+
+        int offered = tuning.size();
+        while (!tuning.isEmpty() && !catalog.accepts(encoder, format, tuning)) {
+            tuning.remove(findRejectedKey(encoder, format, tuning, catalog));
+        }
+        if (tuning.size() == offered) {
+            return format;
+        }
+
+        // keys can not be removed from a format before API 29
+        MediaFormat accepted = new MediaFormat();
+        accepted.setString(MediaFormat.KEY_MIME, format.getString(MediaFormat.KEY_MIME));
+        for (String key : FORMAT_INT_KEYS) {
+            if (format.containsKey(key)) {
+                accepted.setInteger(key, format.getInteger(key));
+            }
+        }
+        if (format.containsKey(MediaFormat.KEY_DURATION)) {
+            accepted.setLong(MediaFormat.KEY_DURATION, format.getLong(MediaFormat.KEY_DURATION));
+        }
+        for (Map.Entry<String, Integer> entry : tuning.entrySet()) {
+            accepted.setInteger(entry.getKey(), entry.getValue());
+        }
+        return accepted;
+    }
+
+    /**
+     * @return the key the encoder accepts the others without, or the first one if there is none
+     */
+    @NonNull
+    private static String findRejectedKey(
+            @NonNull CodecCatalog.Codec encoder,
+            @NonNull MediaFormat format,
+            @NonNull Map<String, Integer> tuning,
+            @NonNull CodecCatalog catalog
+    ) {
+        for (String key : tuning.keySet()) {
+            Map<String, Integer> others = new LinkedHashMap<>(tuning);
+            others.remove(key);
+            if (catalog.accepts(encoder, format, others)) {
+                return key;
+            }
+        }
+        return tuning.keySet().iterator().next();
+    }
+
+    private int getKeyframeInterval(int sourceInterval) {
+        switch (this) {
+            case FAST:
+                return 2;
+            case SMALL:
+                return 10;
+            default:
+                return sourceInterval;
+        }
+    }
+
+    private int getProfile(@NonNull String mimeType) {
+        if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType)) {
+            return MediaCodecInfo.CodecProfileLevel.HEVCProfileMain;
+        }
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            return 0;
+        }
+
+        switch (this) {
+            case FAST:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+            case SMALL:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            default:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+        }
+    }
+
+    /**
+     * @return lowest H.264 level that covers size, frame rate and bitrate of the format, 0 if none does
+     */
+    private static int getAvcLevel(@NonNull MediaFormat format, int profile) {
+        long macroblocks = (long) ((format.getInteger(MediaFormat.KEY_WIDTH) + 15) / 16)
+                * ((format.getInteger(MediaFormat.KEY_HEIGHT) + 15) / 16);
+        long macroblocksPerSecond = macroblocks * format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        double kbps = format.getInteger(MediaFormat.KEY_BIT_RATE) / 1000.0;
+        double bitrateFactor = profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh ? AVC_HIGH_BITRATE_FACTOR : 1;
+
+        for (int[] level : AVC_LEVELS) {
+            if (macroblocksPerSecond <= level[1] && macroblocks <= level[2] && kbps <= level[3] * bitrateFactor) {
+                return level[0];
+            }
+        }
+        return 0;
+    }
+}
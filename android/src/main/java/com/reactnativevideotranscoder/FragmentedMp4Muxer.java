@@ -0,0 +1,624 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes fragmented MP4: a header with the track layout, then one
+ * moof/mdat pair per fragment. The file only ever grows, so every chunk
+ * is final once it is reported and can be read, e.g. uploaded, while the
+ * rest is still being encoded. Video fragments start on keyframes.
+ * Takes AVC video and AAC audio, which is what MediaMuxer is used for
+ * elsewhere in the module.
+ */
+class FragmentedMp4Muxer {
+    static final long DEFAULT_FRAGMENT_DURATION_US = 2_000_000;
+
+    interface Listener {
+        /**
+         * @param index chunk number, 0 is the header
+         * @param offset where the chunk starts in the file
+         * @param last true for the final chunk of the file
+         */
+        void onChunkReady(int index, long offset, long length, boolean last);
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int VIDEO_TIMESCALE = 90_000;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+    private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+
+    private static class Sample {
+        final byte[] data;
+        final long timeUs;
+        final boolean sync;
+
+        Sample(@NonNull byte[] data, long timeUs, boolean sync) {
+            this.data = data;
+            this.timeUs = timeUs;
+            this.sync = sync;
+        }
+    }
+
+    private static class Track {
+        final int id;
+        final MediaFormat format;
+        final boolean video;
+        final int timescale;
+        final List<Sample> samples = new ArrayList<>();
+
+        long lastDecodeTime = -1;
+        long lastDuration;
+
+        Track(int id, @NonNull MediaFormat format) {
+            this.id = id;
+            this.format = format;
+            this.video = format.getString(MediaFormat.KEY_MIME).startsWith("video");
+            this.timescale = video ? VIDEO_TIMESCALE : format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            this.lastDuration = video ? VIDEO_TIMESCALE / 30 : AAC_FRAME_SAMPLES;
+        }
+
+        long toTicks(long timeUs) {
+            return timeUs * timescale / 1_000_000;
+        }
+    }
+
+    private final FileOutputStream out;
+    private final long fragmentDurationUs;
+    @Nullable private final Listener listener;
+
+    private final List<Track> mTracks = new ArrayList<>();
+    private int mRotation = 0;
+    private boolean mStarted = false;
+    private long mOffset = 0;
+    private int mChunks = 0;
+    private int mSequence = 0;
+
+    FragmentedMp4Muxer(@NonNull String path, long fragmentDurationUs, @Nullable Listener listener) throws IOException {
+        this.out = new FileOutputStream(path);
+        this.fragmentDurationUs = fragmentDurationUs > 0 ? fragmentDurationUs : DEFAULT_FRAGMENT_DURATION_US;
+        this.listener = listener;
+    }
+
+    void setOrientationHint(int rotation) {
+        if (rotation % 90 != 0) {
+            throw new IllegalArgumentException(String.format("Invalid rotation %d", rotation));
+        }
+        mRotation = (rotation % 360 + 360) % 360;
+    }
+
+    int addTrack(@NonNull MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("Tracks can not be added after start");
+        }
+
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType) && !MediaFormat.MIMETYPE_AUDIO_AAC.equals(mimeType)) {
+            throw new IllegalArgumentException(String.format("Fragmented MP4 can not carry %s", mimeType));
+        }
+
+        mTracks.add(new Track(mTracks.size() + 1, format));
+        return mTracks.size() - 1;
+    }
+
+    void start() throws IOException {
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("No tracks added");
+        }
+        mStarted = true;
+
+        writeChunk(writeHeader(), false);
+    }
+
+    void writeSampleData(int trackIndex, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Muxer is not started");
+        }
+
+        Track track = mTracks.get(trackIndex);
+        byte[] bytes = new byte[info.size];
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        data.get(bytes);
+        boolean sync = !track.video || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        // fragments are cut before a keyframe, or anywhere in audio-only files
+        Track video = getVideoTrack();
+        Track lead = video != null ? video : track;
+        if (track == lead && sync && !lead.samples.isEmpty()
+                && info.presentationTimeUs - lead.samples.get(0).timeUs >= fragmentDurationUs) {
+            writeFragment(info.presentationTimeUs, false);
+        }
+
+        track.samples.add(new Sample(track.video ? toLengthPrefixed(bytes) : bytes, info.presentationTimeUs, sync));
+    }
+
+    void stop() throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Muxer is not started");
+        }
+        mStarted = false;
+
+        writeFragment(-1, true);
+    }
+
+    void release() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // nothing is written after release
+        }
+    }
+
+    @Nullable
+    private Track getVideoTrack() {
+        for (Track track : mTracks) {
+            if (track.video) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    private void writeChunk(@NonNull byte[] chunk, boolean last) throws IOException {
+        out.write(chunk);
+        finishChunk(chunk.length, last);
+    }
+
+    private void finishChunk(long length, boolean last) throws IOException {
+        out.flush();
+
+        long offset = mOffset;
+        mOffset += length;
+        if (listener != null) {
+            listener.onChunkReady(mChunks++, offset, length, last);
+        }
+    }
+
+    /**
+     * Writes the buffered samples of all tracks as one fragment.
+     *
+     * @param nextVideoTimeUs time of the keyframe that starts the next fragment, -1 if there is none
+     */
+    private void writeFragment(long nextVideoTimeUs, boolean last) throws IOException {
+        List<Track> tracks = new ArrayList<>();
+        int dataSize = 0;
+        for (Track track : mTracks) {
+            if (!track.samples.isEmpty()) {
+                tracks.add(track);
+                for (Sample sample : track.samples) {
+                    dataSize += sample.data.length;
+                }
+            }
+        }
+        if (tracks.isEmpty()) {
+            if (last) {
+                finishChunk(0, true);
+            }
+            return;
+        }
+
+        Boxes boxes = new Boxes();
+        int[] dataOffsetPositions = new int[tracks.size()];
+
+        boxes.open("moof");
+        boxes.openFull("mfhd", 0, 0).putInt(++mSequence).close();
+        for (int index = 0; index < tracks.size(); index++) {
+            Track track = tracks.get(index);
+            List<Sample> samples = track.samples;
+            long[] decodeTimes = getDecodeTimes(track);
+
+            boxes.open("traf");
+            // default-base-is-moof: data offsets count from the start of this moof
+            boxes.openFull("tfhd", 0, 0x020000).putInt(track.id).close();
+            boxes.openFull("tfdt", 1, 0).putLong(decodeTimes[0]).close();
+            // data offset, sample duration, size, flags and composition time offset
+            boxes.openFull("trun", 1, 0x000F01).putInt(samples.size());
+            dataOffsetPositions[index] = boxes.position();
+            boxes.putInt(0);
+            for (int sample = 0; sample < samples.size(); sample++) {
+                long duration;
+                if (sample + 1 < samples.size()) {
+                    duration = decodeTimes[sample + 1] - decodeTimes[sample];
+                } else if (track.video && nextVideoTimeUs >= 0) {
+                    duration = Math.max(1, track.toTicks(nextVideoTimeUs) - decodeTimes[sample]);
+                } else {
+                    duration = track.lastDuration;
+                }
+                track.lastDuration = duration;
+
+                Sample current = samples.get(sample);
+                long compositionOffset = track.toTicks(current.timeUs) - decodeTimes[sample];
+                if (compositionOffset < 0) {
+                    throw new IllegalStateException(String.format(
+                            "Sample at %d us is presented before it is decoded, B-frames can not be fragmented", current.timeUs));
+                }
+                boxes.putInt((int) duration)
+                        .putInt(current.data.length)
+                        .putInt(current.sync ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS)
+                        .putInt((int) compositionOffset);
+            }
+            boxes.close();
+            boxes.close();
+        }
+        boxes.close();
+
+        int moofSize = boxes.position();
+        int dataOffset = moofSize + 8;
+        for (int index = 0; index < tracks.size(); index++) {
+            boxes.putIntAt(dataOffsetPositions[index], dataOffset);
+            for (Sample sample : tracks.get(index).samples) {
+                dataOffset += sample.data.length;
+            }
+        }
+
+        boxes.putInt(8 + dataSize).putType("mdat");
+        out.write(boxes.toByteArray());
+        for (Track track : tracks) {
+            for (Sample sample : track.samples) {
+                out.write(sample.data);
+            }
+            track.samples.clear();
+        }
+
+        finishChunk(boxes.position() + dataSize, last);
+    }
+
+    /**
+     * Video samples arrive in decode order with presentation times only; decode
+     * times are the sorted presentation times, which is exact for video without
+     * B-frames; fragmented outputs are encoded in the Baseline profile for that.
+     *
+     * @return decode times of the buffered samples in the timescale of the track, strictly increasing
+     */
+    @NonNull
+    private static long[] getDecodeTimes(@NonNull Track track) {
+        long[] times = new long[track.samples.size()];
+        for (int sample = 0; sample < times.length; sample++) {
+            times[sample] = track.toTicks(track.samples.get(sample).timeUs);
+        }
+        if (track.video) {
+            Arrays.sort(times);
+        }
+
+        for (int sample = 0; sample < times.length; sample++) {
+            long previous = sample > 0 ? times[sample - 1] : track.lastDecodeTime;
+            if (previous >= 0 && times[sample] <= previous) {
+                times[sample] = previous + 1;
+            }
+        }
+        track.lastDecodeTime = times[times.length - 1];
+        return times;
+    }
+
+    @NonNull
+    private byte[] writeHeader() {
+        Boxes boxes = new Boxes();
+
+        boxes.open("ftyp").putType("isom").putInt(0x200)
+                .putType("isom").putType("iso5").putType("iso6").putType("avc1").putType("mp41")
+                .close();
+
+        boxes.open("moov");
+        boxes.openFull("mvhd", 0, 0)
+                .putInt(0).putInt(0).putInt(1000).putInt(0)
+                .putInt(0x00010000).putShort(0x0100).putZeros(10);
+        putMatrix(boxes, 0);
+        boxes.putZeros(24).putInt(mTracks.size() + 1).close();
+
+        for (Track track : mTracks) {
+            writeTrack(boxes, track);
+        }
+
+        boxes.open("mvex");
+        for (Track track : mTracks) {
+            boxes.openFull("trex", 0, 0).putInt(track.id).putInt(1).putInt(0).putInt(0).putInt(0).close();
+        }
+        boxes.close();
+        boxes.close();
+
+        return boxes.toByteArray();
+    }
+
+    private void writeTrack(@NonNull Boxes boxes, @NonNull Track track) {
+        MediaFormat format = track.format;
+        int width = track.video ? format.getInteger(MediaFormat.KEY_WIDTH) : 0;
+        int height = track.video ? format.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+
+        boxes.open("trak");
+        // enabled, in movie and in preview
+        boxes.openFull("tkhd", 0, 0x7)
+                .putInt(0).putInt(0).putInt(track.id).putInt(0).putInt(0)
+                .putZeros(8).putShort(0).putShort(0).putShort(track.video ? 0 : 0x0100).putShort(0);
+        putMatrix(boxes, track.video ? mRotation : 0);
+        boxes.putInt(width << 16).putInt(height << 16).close();
+
+        boxes.open("mdia");
+        boxes.openFull("mdhd", 0, 0)
+                .putInt(0).putInt(0).putInt(track.timescale).putInt(0)
+                // "und" packed into three 5 bit letters
+                .putShort(0x55C4).putShort(0)
+                .close();
+        boxes.openFull("hdlr", 0, 0)
+                .putInt(0).putType(track.video ? "vide" : "soun").putZeros(12)
+                .putBytes((track.video ? "VideoHandler" : "SoundHandler").getBytes(ASCII)).putByte(0)
+                .close();
+
+        boxes.open("minf");
+        if (track.video) {
+            boxes.openFull("vmhd", 0, 1).putZeros(8).close();
+        } else {
+            boxes.openFull("smhd", 0, 0).putZeros(4).close();
+        }
+        boxes.open("dinf");
+        boxes.openFull("dref", 0, 0).putInt(1);
+        boxes.openFull("url ", 0, 1).close();
+        boxes.close();
+        boxes.close();
+
+        boxes.open("stbl");
+        boxes.openFull("stsd", 0, 0).putInt(1);
+        if (track.video) {
+            writeAvcSampleEntry(boxes, format, width, height);
+        } else {
+            writeAacSampleEntry(boxes, format);
+        }
+        boxes.close();
+        // samples are described by the fragments, the tables of the header stay empty
+        boxes.openFull("stts", 0, 0).putInt(0).close();
+        boxes.openFull("stsc", 0, 0).putInt(0).close();
+        boxes.openFull("stsz", 0, 0).putInt(0).putInt(0).close();
+        boxes.openFull("stco", 0, 0).putInt(0).close();
+        boxes.close();
+
+        boxes.close();
+        boxes.close();
+        boxes.close();
+    }
+
+    private static void writeAvcSampleEntry(@NonNull Boxes boxes, @NonNull MediaFormat format, int width, int height) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            ByteBuffer buffer = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            if (buffer == null) {
+                continue;
+            }
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            for (byte[] unit : splitNalUnits(data)) {
+                int type = unit[0] & 0x1F;
+                if (type == NAL_TYPE_SPS) {
+                    sps.add(unit);
+                } else if (type == NAL_TYPE_PPS) {
+                    pps.add(unit);
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty() || sps.get(0).length < 4) {
+            throw new IllegalArgumentException("Video format has no parameter sets");
+        }
+
+        boxes.open("avc1")
+                .putZeros(6).putShort(1)
+                .putZeros(16).putShort(width).putShort(height)
+                .putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1)
+                .putZeros(32).putShort(0x18).putShort(0xFFFF);
+
+        byte[] first = sps.get(0);
+        boxes.open("avcC")
+                .putByte(1).putByte(first[1]).putByte(first[2]).putByte(first[3])
+                // 4 byte NAL unit lengths
+                .putByte(0xFF)
+                .putByte(0xE0 | sps.size());
+        for (byte[] unit : sps) {
+            boxes.putShort(unit.length).putBytes(unit);
+        }
+        boxes.putByte(pps.size());
+        for (byte[] unit : pps) {
+            boxes.putShort(unit.length).putBytes(unit);
+        }
+        boxes.close();
+
+        boxes.close();
+    }
+
+    private static void writeAacSampleEntry(@NonNull Boxes boxes, @NonNull MediaFormat format) {
+        ByteBuffer buffer = format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null;
+        if (buffer == null) {
+            throw new IllegalArgumentException("Audio format has no codec specific data");
+        }
+        byte[] config = new byte[buffer.remaining()];
+        buffer.duplicate().get(config);
+        int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+
+        boxes.open("mp4a")
+                .putZeros(6).putShort(1)
+                .putZeros(8).putShort(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)).putShort(16)
+                .putShort(0).putShort(0).putInt(format.getInteger(MediaFormat.KEY_SAMPLE_RATE) << 16);
+
+        int decoderConfigLength = 13 + 2 + config.length;
+        int descriptorLength = 3 + 2 + decoderConfigLength + 3;
+        boxes.openFull("esds", 0, 0)
+                .putByte(0x03).putByte(descriptorLength).putShort(0).putByte(0)
+                // MPEG-4 audio in an audio stream
+                .putByte(0x04).putByte(decoderConfigLength).putByte(0x40).putByte(0x15)
+                .putByte(0).putShort(0).putInt(bitrate).putInt(bitrate)
+                .putByte(0x05).putByte(config.length).putBytes(config)
+                .putByte(0x06).putByte(1).putByte(0x02)
+                .close();
+
+        boxes.close();
+    }
+
+    private static void putMatrix(@NonNull Boxes boxes, int rotation) {
+        int cos = rotation == 0 ? 0x10000 : rotation == 180 ? -0x10000 : 0;
+        int sin = rotation == 90 ? 0x10000 : rotation == 270 ? -0x10000 : 0;
+        boxes.putInt(cos).putInt(sin).putInt(0)
+                .putInt(-sin).putInt(cos).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    /**
+     * @return the NAL units of an Annex B stream, or the data as a single unit if it has no start codes
+     */
+    @NonNull
+    private static List<byte[]> splitNalUnits(@NonNull byte[] data) {
+        List<byte[]> units = new ArrayList<>();
+        int start = findStartCode(data, 0);
+        if (start < 0) {
+            units.add(data);
+            return units;
+        }
+
+        start += 3;
+        while (start < data.length) {
+            int next = findStartCode(data, start);
+            int end = next >= 0 ? next : data.length;
+            // a 4 byte start code leaves a zero behind the previous unit
+            while (end > start && data[end - 1] == 0) {
+                end--;
+            }
+            if (end > start) {
+                units.add(Arrays.copyOfRange(data, start, end));
+            }
+            if (next < 0) {
+                break;
+            }
+            start = next + 3;
+        }
+        return units;
+    }
+
+    /**
+     * MP4 carries NAL units with their length in front instead of start codes.
+     */
+    @NonNull
+    private static byte[] toLengthPrefixed(@NonNull byte[] data) {
+        int first = findStartCode(data, 0);
+        if (first != 0 && !(first == 1 && data[0] == 0)) {
+            return data;
+        }
+
+        List<byte[]> units = splitNalUnits(data);
+        int size = 0;
+        for (byte[] unit : units) {
+            size += 4 + unit.length;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(size);
+        for (byte[] unit : units) {
+            result.putInt(unit.length).put(unit);
+        }
+        return result.array();
+    }
+
+    /**
+     * @return position of the next 00 00 01 at or after {@code from}, -1 if there is none
+     */
+    private static int findStartCode(@NonNull byte[] data, int from) {
+        for (int position = from; position + 2 < data.length; position++) {
+            if (data[position] == 0 && data[position + 1] == 0 && data[position + 2] == 1) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Growing buffer for nested boxes, sizes are filled in when a box is closed.
+     */
+    private static class Boxes {
+        private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+        private final ArrayDeque<Integer> mStarts = new ArrayDeque<>();
+
+        int position() {
+            return mBuffer.position();
+        }
+
+        Boxes open(@NonNull String type) {
+            mStarts.push(mBuffer.position());
+            return putInt(0).putType(type);
+        }
+
+        Boxes openFull(@NonNull String type, int version, int flags) {
+            return open(type).putInt((version << 24) | flags);
+        }
+
+        Boxes close() {
+            int start = mStarts.pop();
+            mBuffer.putInt(start, mBuffer.position() - start);
+            return this;
+        }
+
+        Boxes putByte(int value) {
+            ensure(1);
+            mBuffer.put((byte) value);
+            return this;
+        }
+
+        Boxes putShort(int value) {
+            ensure(2);
+            mBuffer.putShort((short) value);
+            return this;
+        }
+
+        Boxes putInt(int value) {
+            ensure(4);
+            mBuffer.putInt(value);
+            return this;
+        }
+
+        Boxes putLong(long value) {
+            ensure(8);
+            mBuffer.putLong(value);
+            return this;
+        }
+
+        Boxes putType(@NonNull String type) {
+            return putBytes(type.getBytes(ASCII));
+        }
+
+        Boxes putBytes(@NonNull byte[] data) {
+            ensure(data.length);
+            mBuffer.put(data);
+            return this;
+        }
+
+        Boxes putZeros(int count) {
+            return putBytes(new byte[count]);
+        }
+
+        void putIntAt(int position, int value) {
+            mBuffer.putInt(position, value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer.array(), mBuffer.position());
+        }
+
+        private void ensure(int count) {
+            if (mBuffer.remaining() < count) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + count));
+                mBuffer.flip();
+                grown.put(mBuffer);
+                mBuffer = grown;
+            }
+        }
+    }
+}
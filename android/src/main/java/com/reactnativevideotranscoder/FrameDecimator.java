@@ -0,0 +1,48 @@
+package com.reactnativevideotranscoder;
+
+/**
+ * Decides which decoded frames reach the encoder so the output does not exceed
+ * a maximum frame rate. Kept frames are spread evenly and keep their original
+ * presentation time, so audio stays in sync. Variable frame rate sources and
+ * gaps are handled by snapping to the next slot after a kept frame.
+ */
+class FrameDecimator {
+    private final long intervalUs;
+    /** Timestamps jitter, a frame this close to its slot still fills it. */
+    private final long toleranceUs;
+
+    private long mNextSlotUs = Long.MIN_VALUE;
+    private long mKept = 0;
+    private long mDropped = 0;
+
+    /**
+     * @param maxFrameRate frames per second, 0 or less keeps every frame
+     */
+    FrameDecimator(int maxFrameRate) {
+        this.intervalUs = maxFrameRate > 0 ? 1_000_000L / maxFrameRate : 0;
+        this.toleranceUs = intervalUs / 8;
+    }
+
+    boolean shouldKeep(long presentationTimeUs) {
+        if (intervalUs == 0 || mNextSlotUs == Long.MIN_VALUE || presentationTimeUs + toleranceUs >= mNextSlotUs) {
+            mNextSlotUs = mNextSlotUs == Long.MIN_VALUE ? presentationTimeUs + intervalUs : mNextSlotUs + intervalUs;
+            if (mNextSlotUs <= presentationTimeUs) {
+                // after a gap in the source, continue from this frame instead of catching up
+                mNextSlotUs = presentationTimeUs + intervalUs;
+            }
+            mKept++;
+            return true;
+        }
+
+        mDropped++;
+        return false;
+    }
+
+    long getKept() {
+        return mKept;
+    }
+
+    long getDropped() {
+        return mDropped;
+    }
+}
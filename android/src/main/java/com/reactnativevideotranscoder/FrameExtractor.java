@@ -0,0 +1,343 @@
+package com.reactnativevideotranscoder;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.Matrix;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Extracts still frames of a source as JPEG files, all of them in a single
+ * decoder pass: the requested times are sorted, decoding runs forward and
+ * only seeks when the next time lies beyond a keyframe not read yet. Frames
+ * are drawn at the requested size on the GPU, upright, before they are read
+ * back. Files are named after the source and the time, so frames extracted
+ * before are reused without decoding.
+ */
+class FrameExtractor {
+    static final String FILE_PREFIX = "frame_";
+    static final int DEFAULT_QUALITY = 80;
+    static final int MAX_FRAMES = 500;
+
+    private static final long TIMEOUT_US = 10_000;
+
+    static class Frame {
+        final long timeUs;
+        /** JPEG of the frame shown at the time, null if the source has no frame there. */
+        @Nullable String path;
+        boolean cached = false;
+
+        Frame(long timeUs) {
+            this.timeUs = timeUs;
+        }
+    }
+
+    private final Context context;
+    private final File directory;
+
+    FrameExtractor(@NonNull Context context, @NonNull File directory) {
+        this.context = context;
+        this.directory = directory;
+    }
+
+    /**
+     * @param timesUs times to take frames at, in any order and with repeats
+     * @param maxWidth width of the box frames are scaled into, keeping their aspect ratio
+     * @param maxHeight height of the box frames are scaled into
+     * @return one frame per requested time, in the order of the times
+     */
+    @NonNull
+    List<Frame> extract(
+            @NonNull SourceProbe.Result probe,
+            @NonNull long[] timesUs,
+            int maxWidth,
+            int maxHeight,
+            int quality
+    ) throws Exception {
+        if (probe.videoFormat == null) {
+            throw new IllegalArgumentException(String.format("No video track found in %s", probe.uri));
+        }
+        if (timesUs.length > MAX_FRAMES) {
+            throw new IllegalArgumentException(String.format("At most %d frames can be extracted at once", MAX_FRAMES));
+        }
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid frame size %dx%d", maxWidth, maxHeight));
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException(String.format("Invalid quality %d", quality));
+        }
+
+        // the frame keeps the aspect ratio of the source as it is displayed
+        boolean turned = probe.rotation % 180 != 0;
+        int sourceWidth = turned ? probe.height : probe.width;
+        int sourceHeight = turned ? probe.width : probe.height;
+        double scale = Math.min(1, Math.min((double) maxWidth / sourceWidth, (double) maxHeight / sourceHeight));
+        int width = Math.max(1, (int) Math.round(sourceWidth * scale));
+        int height = Math.max(1, (int) Math.round(sourceHeight * scale));
+
+        Map<Long, File> files = new HashMap<>();
+        TreeSet<Long> missing = new TreeSet<>();
+        for (long timeUs : timesUs) {
+            if (timeUs < 0) {
+                throw new IllegalArgumentException(String.format("Invalid time %d ms", timeUs / 1000));
+            }
+            if (files.containsKey(timeUs)) {
+                continue;
+            }
+
+            File file = getFile(probe, timeUs, width, height, quality);
+            files.put(timeUs, file);
+            if (!file.isFile()) {
+                missing.add(timeUs);
+            }
+        }
+
+        Map<Long, String> written = new HashMap<>();
+        if (!missing.isEmpty()) {
+            long[] sorted = new long[missing.size()];
+            int index = 0;
+            for (long timeUs : missing) {
+                sorted[index++] = timeUs;
+            }
+            decode(probe, sorted, files, written, width, height, quality);
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        for (long timeUs : timesUs) {
+            Frame frame = new Frame(timeUs);
+            File file = files.get(timeUs);
+            if (!missing.contains(timeUs)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                frame.path = file.getPath();
+                frame.cached = true;
+            } else {
+                frame.path = written.get(timeUs);
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * Decodes forward through the sorted times and writes the frame shown at each of them.
+     */
+    private void decode(
+            @NonNull SourceProbe.Result probe,
+            @NonNull long[] timesUs,
+            @NonNull Map<Long, File> files,
+            @NonNull Map<Long, String> written,
+            int width,
+            int height,
+            int quality
+    ) throws Exception {
+        long[] keyframesUs = KeyframeSegmenter.findPrecedingKeyframes(context, probe.uri, timesUs);
+
+        MediaExtractor extractor = new MediaExtractor();
+        PixelBufferSurface pixels = null;
+        DecoderOutputSurface output = null;
+        MediaCodec decoder = null;
+
+        try {
+            extractor.setDataSource(context, probe.uri, null);
+            int track = findVideoTrack(extractor);
+            extractor.selectTrack(track);
+            MediaFormat format = extractor.getTrackFormat(track);
+
+            pixels = new PixelBufferSurface(width, height);
+            pixels.makeCurrent();
+            output = new DecoderOutputSurface();
+            output.setMvpMatrix(getUprightMatrix(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), probe.rotation, width, height));
+
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, output.getSurface(), null, 0);
+            decoder.start();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int next = 0;
+            boolean started = false;
+            boolean inputDone = false;
+            // time of the last sample handed to the decoder
+            long fedUs = -1;
+            // whether the texture holds a frame decoded since the last seek
+            boolean latched = false;
+
+            while (next < timesUs.length) {
+                // decoding up to a keyframe that was not read yet costs more than jumping to it
+                if (!started || keyframesUs[next] > fedUs) {
+                    if (started) {
+                        decoder.flush();
+                    }
+                    extractor.seekTo(keyframesUs[next], MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    fedUs = keyframesUs[next];
+                    started = true;
+                    inputDone = false;
+                    latched = false;
+                }
+
+                if (!inputDone) {
+                    int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = extractor.readSampleData(decoder.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            long sampleTimeUs = extractor.getSampleTime();
+                            decoder.queueInputBuffer(index, 0, size, sampleTimeUs, 0);
+                            fedUs = Math.max(fedUs, sampleTimeUs);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index < 0) {
+                    continue;
+                }
+
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    decoder.releaseOutputBuffer(index, false);
+                    // times past the last frame show the last frame
+                    byte[] jpeg = latched ? capture(output, pixels, quality) : null;
+                    while (next < timesUs.length) {
+                        write(timesUs[next++], jpeg, files, written);
+                    }
+                    break;
+                }
+
+                if (info.size <= 0) {
+                    decoder.releaseOutputBuffer(index, false);
+                    continue;
+                }
+
+                // the frame still in the texture is the one shown until this one
+                if (latched && timesUs[next] < info.presentationTimeUs) {
+                    byte[] jpeg = capture(output, pixels, quality);
+                    while (next < timesUs.length && timesUs[next] < info.presentationTimeUs) {
+                        write(timesUs[next++], jpeg, files, written);
+                    }
+                }
+
+                decoder.releaseOutputBuffer(index, true);
+                output.awaitNewImage();
+                latched = true;
+
+                // times before the first frame after a seek take that frame
+                if (next < timesUs.length && timesUs[next] <= info.presentationTimeUs) {
+                    byte[] jpeg = capture(output, pixels, quality);
+                    while (next < timesUs.length && timesUs[next] <= info.presentationTimeUs) {
+                        write(timesUs[next++], jpeg, files, written);
+                    }
+                }
+            }
+        } finally {
+            if (decoder != null) {
+                decoder.release();
+            }
+            if (output != null) {
+                output.release();
+            }
+            if (pixels != null) {
+                pixels.release();
+            }
+            extractor.release();
+        }
+    }
+
+    @NonNull
+    private static byte[] capture(
+            @NonNull DecoderOutputSurface output,
+            @NonNull PixelBufferSurface pixels,
+            int quality
+    ) {
+        output.drawImage(pixels.width, pixels.height);
+        Bitmap bitmap = pixels.readBitmap();
+        try {
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, jpeg);
+            return jpeg.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static void write(
+            long timeUs,
+            @Nullable byte[] jpeg,
+            @NonNull Map<Long, File> files,
+            @NonNull Map<Long, String> written
+    ) throws IOException {
+        if (jpeg == null) {
+            return;
+        }
+
+        File file = files.get(timeUs);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(jpeg);
+        }
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException(String.format("Can not write %s", file.getPath()));
+        }
+        written.put(timeUs, file.getPath());
+    }
+
+    /**
+     * @return matrix that turns the decoded frame upright and flips it, since pixels are read bottom up
+     */
+    @NonNull
+    private static float[] getUprightMatrix(int frameWidth, int frameHeight, int rotation, int width, int height) {
+        float[] flip = new float[16];
+        Matrix.setIdentityM(flip, 0);
+        Matrix.scaleM(flip, 0, 1, -1, 1);
+
+        float[] matrix = new float[16];
+        Matrix.multiplyMM(matrix, 0, flip, 0, CodecPipeline.getFitMatrix(frameWidth, frameHeight, rotation, width, height), 0);
+        return matrix;
+    }
+
+    /**
+     * Frames of sources that can not be identified reliably get a name of their own and are never reused.
+     */
+    @NonNull
+    private File getFile(@NonNull SourceProbe.Result probe, long timeUs, int width, int height, int quality) {
+        String name = null;
+        if (probe.sizeBytes >= 0 && probe.lastModified >= 0) {
+            name = TranscodeResultCache.hash(String.format("%s|%d|%dx%d|%d", probe.cacheKey, timeUs, width, height, quality));
+        }
+        if (name == null) {
+            name = UUID.randomUUID().toString();
+        }
+        return new File(directory, FILE_PREFIX + name + ".jpg");
+    }
+
+    private static int findVideoTrack(@NonNull MediaExtractor extractor) throws IOException {
+        for (int track = 0; track < extractor.getTrackCount(); track++) {
+            String mimeType = extractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME);
+            if (mimeType != null && mimeType.startsWith("video")) {
+                return track;
+            }
+        }
+        throw new IOException("No video track found");
+    }
+}
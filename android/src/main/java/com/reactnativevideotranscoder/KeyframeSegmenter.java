@@ -0,0 +1,117 @@
+package com.reactnativevideotranscoder;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a source into time ranges that start at video keyframes, so every
+ * range can be transcoded on its own and the results joined without re-encoding.
+ */
+class KeyframeSegmenter {
+    static final int MAX_SEGMENTS = 4;
+    static final long MIN_SEGMENT_DURATION_US = 15_000_000L;
+
+    private KeyframeSegmenter() {
+    }
+
+    /**
+     * Picks the number of segments from the number of codec instances the device can
+     * run at once for the given mime type, the number of cores and the source duration.
+     */
+    static int chooseSegmentCount(@NonNull String mimeType, long durationUs) {
+        int byDuration = (int) Math.min(MAX_SEGMENTS, durationUs / MIN_SEGMENT_DURATION_US);
+
+        return Math.max(1, Math.min(byDuration, getMaxParallelTransforms(mimeType)));
+    }
+
+    /**
+     * @return how many transformations into the given mime type can run side by side,
+     * bounded by the number of cores and of codec instances the device supports
+     */
+    static int getMaxParallelTransforms(@NonNull String mimeType) {
+        int byCores = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        // every transformation needs its own decoder and encoder instance
+        CodecCatalog catalog = CodecCatalog.get();
+        int byCodecs = Math.min(catalog.getMaxInstances(mimeType, true), catalog.getMaxInstances(mimeType, false));
+
+        return Math.max(1, Math.min(byCores, byCodecs));
+    }
+
+    /**
+     * @return segment boundaries in microseconds, starting with 0 and ending with the duration
+     */
+    @NonNull
+    static long[] split(@NonNull Context context, @NonNull Uri uri, long durationUs, int count) throws IOException {
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+
+        MediaExtractor mediaExtractor = new MediaExtractor();
+        try {
+            mediaExtractor.setDataSource(context, uri, null);
+            mediaExtractor.selectTrack(findVideoTrack(mediaExtractor));
+
+            for (int segment = 1; segment < count; segment++) {
+                mediaExtractor.seekTo(durationUs * segment / count, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                long keyframeTimeUs = mediaExtractor.getSampleTime();
+
+                long previous = boundaries.get(boundaries.size() - 1);
+                if (keyframeTimeUs - previous >= MIN_SEGMENT_DURATION_US / 2
+                        && durationUs - keyframeTimeUs >= MIN_SEGMENT_DURATION_US / 2) {
+                    boundaries.add(keyframeTimeUs);
+                }
+            }
+        } finally {
+            mediaExtractor.release();
+        }
+
+        boundaries.add(durationUs);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the video keyframe at or before each of the given times, in microseconds
+     */
+    @NonNull
+    static long[] findPrecedingKeyframes(@NonNull Context context, @NonNull Uri uri, @NonNull long[] timesUs) throws IOException {
+        long[] keyframesUs = new long[timesUs.length];
+
+        MediaExtractor mediaExtractor = new MediaExtractor();
+        try {
+            mediaExtractor.setDataSource(context, uri, null);
+            mediaExtractor.selectTrack(findVideoTrack(mediaExtractor));
+
+            for (int i = 0; i < timesUs.length; i++) {
+                mediaExtractor.seekTo(timesUs[i], MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                long keyframeTimeUs = mediaExtractor.getSampleTime();
+                keyframesUs[i] = keyframeTimeUs >= 0 ? keyframeTimeUs : timesUs[i];
+            }
+        } finally {
+            mediaExtractor.release();
+        }
+
+        return keyframesUs;
+    }
+
+    private static int findVideoTrack(@NonNull MediaExtractor mediaExtractor) throws IOException {
+        for (int track = 0; track < mediaExtractor.getTrackCount(); track++) {
+            String mimeType = mediaExtractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME);
+            if (mimeType != null && mimeType.startsWith("video")) {
+                return track;
+            }
+        }
+        throw new IOException("No video track found");
+    }
+}
@@ -0,0 +1,182 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Joins MP4 parts with identical track layout into one file by copying
+ * samples, without decoding or encoding anything.
+ */
+class Mp4Joiner {
+    private static final int DEFAULT_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    private Mp4Joiner() {
+    }
+
+    /**
+     * @param partPaths parts in playback order
+     * @param partStartsUs presentation time each part starts at in the joined output
+     */
+    static void join(
+            @NonNull List<String> partPaths,
+            @NonNull long[] partStartsUs,
+            @NonNull String outputPath,
+            int orientationHint
+    ) throws IOException {
+        MediaMuxer mediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        Map<String, Integer> muxerTracks = new HashMap<>();
+        Map<String, MediaFormat> trackFormats = new HashMap<>();
+        Map<Integer, Long> maxTimesUs = new HashMap<>();
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        boolean started = false;
+        boolean joined = false;
+
+        try {
+            MediaExtractor first = new MediaExtractor();
+            try {
+                first.setDataSource(partPaths.get(0));
+
+                for (int track = 0; track < first.getTrackCount(); track++) {
+                    MediaFormat format = first.getTrackFormat(track);
+                    String kind = getTrackKind(format);
+                    if (muxerTracks.containsKey(kind)) {
+                        continue;
+                    }
+                    muxerTracks.put(kind, mediaMuxer.addTrack(format));
+                    trackFormats.put(kind, format);
+
+                    if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                        bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                    }
+                }
+            } finally {
+                first.release();
+            }
+
+            mediaMuxer.setOrientationHint(orientationHint);
+            mediaMuxer.start();
+            started = true;
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+            for (int part = 0; part < partPaths.size(); part++) {
+                MediaExtractor mediaExtractor = new MediaExtractor();
+                try {
+                    mediaExtractor.setDataSource(partPaths.get(part));
+
+                    int[] trackMap = new int[mediaExtractor.getTrackCount()];
+                    Set<String> selectedKinds = new HashSet<>();
+                    for (int track = 0; track < trackMap.length; track++) {
+                        MediaFormat format = mediaExtractor.getTrackFormat(track);
+                        String kind = getTrackKind(format);
+                        Integer muxerTrack = selectedKinds.add(kind) ? muxerTracks.get(kind) : null;
+                        trackMap[track] = muxerTrack != null ? muxerTrack : -1;
+                        if (muxerTrack != null) {
+                            checkCodecConfig(trackFormats.get(kind), format, partPaths.get(part));
+                            mediaExtractor.selectTrack(track);
+                        }
+                    }
+
+                    // parts may or may not start at zero, rebase them onto their place in the output
+                    long partBaseUs = mediaExtractor.getSampleTime();
+                    // every track of a part is shifted by one offset, so samples keep their order within the part;
+                    // the offset only grows when the track would otherwise overlap the end of the previous part
+                    Map<Integer, Long> offsetsUs = new HashMap<>();
+
+                    while (true) {
+                        int sampleSize = mediaExtractor.readSampleData(buffer, 0);
+                        if (sampleSize < 0) {
+                            break;
+                        }
+
+                        int muxerTrack = trackMap[mediaExtractor.getSampleTrackIndex()];
+                        long sampleTimeUs = mediaExtractor.getSampleTime();
+
+                        Long offsetUs = offsetsUs.get(muxerTrack);
+                        if (offsetUs == null) {
+                            offsetUs = partStartsUs[part] - partBaseUs;
+                            Long maxTimeUs = maxTimesUs.get(muxerTrack);
+                            if (maxTimeUs != null && sampleTimeUs + offsetUs <= maxTimeUs) {
+                                offsetUs = maxTimeUs + 1 - sampleTimeUs;
+                            }
+                            offsetsUs.put(muxerTrack, offsetUs);
+                        }
+
+                        long timeUs = sampleTimeUs + offsetUs;
+                        Long maxTimeUs = maxTimesUs.get(muxerTrack);
+                        maxTimesUs.put(muxerTrack, maxTimeUs != null ? Math.max(maxTimeUs, timeUs) : timeUs);
+
+                        int flags = (mediaExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                                ? MediaCodec.BUFFER_FLAG_KEY_FRAME
+                                : 0;
+                        bufferInfo.set(0, sampleSize, timeUs, flags);
+                        mediaMuxer.writeSampleData(muxerTrack, buffer, bufferInfo);
+
+                        mediaExtractor.advance();
+                    }
+                } finally {
+                    mediaExtractor.release();
+                }
+            }
+
+            joined = true;
+        } finally {
+            try {
+                if (started) {
+                    mediaMuxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                // a failed join already has its exception on the way, stopping must not replace it
+                if (joined) {
+                    throw e;
+                }
+            } finally {
+                mediaMuxer.release();
+            }
+        }
+    }
+
+    /**
+     * Samples are copied as they are, so every part has to be encoded with the codec config of the first.
+     */
+    private static void checkCodecConfig(@NonNull MediaFormat expected, @NonNull MediaFormat actual, @NonNull String partPath) {
+        for (String key : new String[] { "csd-0", "csd-1", "csd-2" }) {
+            ByteBuffer expectedBuffer = expected.containsKey(key) ? expected.getByteBuffer(key) : null;
+            ByteBuffer actualBuffer = actual.containsKey(key) ? actual.getByteBuffer(key) : null;
+
+            boolean same = expectedBuffer == null
+                    ? actualBuffer == null
+                    : actualBuffer != null && expectedBuffer.equals(actualBuffer);
+            if (!same) {
+                throw new IllegalStateException(String.format("%s of %s differs from the first part, it can not be joined",
+                        key, partPath));
+            }
+        }
+    }
+
+    /**
+     * @return the top-level mime type, video, audio, text or application
+     */
+    private static String getTrackKind(@NonNull MediaFormat format) {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        if (mimeType == null) {
+            return "";
+        }
+
+        int slash = mimeType.indexOf('/');
+        return slash >= 0 ? mimeType.substring(0, slash) : mimeType;
+    }
+}
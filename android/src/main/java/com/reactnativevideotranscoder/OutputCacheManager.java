@@ -0,0 +1,211 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the outputs and extracted frames the module writes into the cache directory within a byte
+ * budget and an age limit. Files are evicted least recently used first, files
+ * that belong to active jobs are never evicted.
+ */
+class OutputCacheManager {
+    static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String[] FILE_PREFIXES = new String[] { "transcoded_", FrameExtractor.FILE_PREFIX };
+
+    static class Usage {
+        long bytes;
+        int files;
+    }
+
+    static class TrimResult {
+        long removedBytes;
+        int removedFiles;
+    }
+
+    interface OnTrimmedListener {
+        void onTrimmed(@NonNull TrimResult result);
+    }
+
+    private final File directory;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Map<String, List<String>> mProtectedPaths = new HashMap<>();
+
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mMaxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    OutputCacheManager(@NonNull File directory) {
+        this.directory = directory;
+    }
+
+    synchronized void setLimits(long maxBytes, long maxAgeMs) {
+        mMaxBytes = Math.max(0, maxBytes);
+        mMaxAgeMs = Math.max(0, maxAgeMs);
+    }
+
+    synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    synchronized long getMaxAgeMs() {
+        return mMaxAgeMs;
+    }
+
+    synchronized void protect(@NonNull String jobId, @NonNull String... paths) {
+        List<String> protectedPaths = mProtectedPaths.get(jobId);
+        if (protectedPaths == null) {
+            protectedPaths = new ArrayList<>();
+            mProtectedPaths.put(jobId, protectedPaths);
+        }
+        protectedPaths.addAll(Arrays.asList(paths));
+    }
+
+    /**
+     * Protects a cached output for a job and marks it as used. Returns false if the output was
+     * evicted already, a trim can not remove it between the check and the protection.
+     */
+    synchronized boolean acquire(@NonNull String jobId, @NonNull File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        protect(jobId, file.getPath());
+        touch(file);
+        return true;
+    }
+
+    synchronized void release(@NonNull String jobId) {
+        mProtectedPaths.remove(jobId);
+    }
+
+    /**
+     * Marks a cached output as used, so it is evicted last.
+     */
+    private void touch(@NonNull File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    void trimAsync() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long maxBytes;
+                long maxAgeMs;
+
+                synchronized (OutputCacheManager.this) {
+                    maxBytes = mMaxBytes;
+                    maxAgeMs = mMaxAgeMs;
+                }
+
+                trim(maxBytes, maxAgeMs);
+            }
+        });
+    }
+
+    void trimAsync(final long maxBytes, final long maxAgeMs, @NonNull final OnTrimmedListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onTrimmed(trim(maxBytes, maxAgeMs));
+            }
+        });
+    }
+
+    @NonNull
+    Usage getUsage() {
+        Usage usage = new Usage();
+
+        for (File file : listFiles()) {
+            usage.bytes += file.length();
+            usage.files++;
+        }
+
+        return usage;
+    }
+
+    @NonNull
+    synchronized TrimResult trim(long maxBytes, long maxAgeMs) {
+        TrimResult result = new TrimResult();
+        List<File> files = listFiles();
+
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+
+        long expiredBefore = System.currentTimeMillis() - maxAgeMs;
+
+        for (File file : files) {
+            boolean expired = file.lastModified() < expiredBefore;
+            if ((!expired && totalBytes <= maxBytes) || isProtected(file)) {
+                continue;
+            }
+
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+                result.removedBytes += length;
+                result.removedFiles++;
+            }
+        }
+
+        return result;
+    }
+
+    private boolean isProtected(@NonNull File file) {
+        String path = file.getPath();
+
+        for (List<String> paths : mProtectedPaths.values()) {
+            if (paths.contains(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @NonNull
+    private List<File> listFiles() {
+        List<File> result = new ArrayList<>();
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && hasPrefix(file.getName())) {
+                    result.add(file);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean hasPrefix(@NonNull String name) {
+        for (String prefix : FILE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
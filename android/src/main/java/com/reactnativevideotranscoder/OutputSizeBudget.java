@@ -0,0 +1,139 @@
+package com.reactnativevideotranscoder;
+
+/**
+ * Splits a byte budget for an output into video and audio bitrates and tells
+ * whether an encode in progress is on track to stay within it.
+ */
+class OutputSizeBudget {
+    static final int DEFAULT_AUDIO_BITRATE = 128_000;
+    static final int MIN_VIDEO_BITRATE = 100_000;
+
+    /** Share of the budget kept free for the container and rate control overshoot. */
+    private static final double RESERVE = 0.07;
+    /** Below this many bits per pixel a smaller picture looks better than a blocky one. */
+    private static final double MIN_BITS_PER_PIXEL = 0.04;
+    private static final int MIN_DIMENSION = 320;
+
+    /** How far the projected size may exceed the budget before the encode is corrected. */
+    private static final double ABORT_TOLERANCE = 0.05;
+    /** The projection is too noisy before this share of the encode is done. */
+    private static final float MIN_PROGRESS_TO_PROJECT = 0.2f;
+    /** Share of the encode a rate is measured over before it is projected onto the rest. */
+    private static final float MIN_PROGRESS_TO_REPROJECT = 0.1f;
+
+    final long maxBytes;
+
+    OutputSizeBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the video bitrate that fits the budget next to the given audio bitrate
+     */
+    int getVideoBitrate(long durationMs, int audioBitrate) {
+        if (durationMs <= 0) {
+            throw new IllegalArgumentException("Duration of the source is unknown, maxOutputBytes can not be applied");
+        }
+
+        double totalBitrate = maxBytes * (1 - RESERVE) * 8 * 1000 / durationMs;
+        double videoBitrate = totalBitrate - Math.max(0, audioBitrate);
+
+        if (videoBitrate < MIN_VIDEO_BITRATE) {
+            throw new IllegalArgumentException(String.format(
+                    "maxOutputBytes %d is too small for %d ms of video", maxBytes, durationMs));
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, videoBitrate);
+    }
+
+    /**
+     * Scales a size down until the bitrate is enough for an acceptable picture.
+     *
+     * @return width and height, both even
+     */
+    static int[] fitSize(int width, int height, int frameRate, int bitrate) {
+        int fittedWidth = width;
+        int fittedHeight = height;
+
+        while (Math.min(fittedWidth, fittedHeight) * 3 / 4 >= MIN_DIMENSION
+                && (double) bitrate / ((long) fittedWidth * fittedHeight * Math.max(1, frameRate)) < MIN_BITS_PER_PIXEL) {
+            fittedWidth = (fittedWidth * 3 / 4) & ~1;
+            fittedHeight = (fittedHeight * 3 / 4) & ~1;
+        }
+
+        return new int[] { fittedWidth, fittedHeight };
+    }
+
+    /**
+     * @return size the output will have at the end, extrapolated from what was written so far,
+     * or -1 when it is too early to tell
+     */
+    static long project(long writtenBytes, float progress) {
+        if (progress < MIN_PROGRESS_TO_PROJECT || writtenBytes <= 0) {
+            return -1;
+        }
+        return (long) (writtenBytes / progress);
+    }
+
+    /**
+     * Like {@link #project(long, float)}, but the rest of the output is extrapolated from what was
+     * written since {@code baseBytes} at {@code baseProgress}, e.g. since the bitrate last changed.
+     */
+    static long project(long writtenBytes, float progress, long baseBytes, float baseProgress) {
+        if (progress < MIN_PROGRESS_TO_PROJECT || progress - baseProgress < MIN_PROGRESS_TO_REPROJECT
+                || writtenBytes <= baseBytes) {
+            return -1;
+        }
+        return writtenBytes + (long) ((writtenBytes - baseBytes) / (progress - baseProgress) * (1 - progress));
+    }
+
+    boolean isOnTrack(long projectedBytes) {
+        return projectedBytes < 0 || projectedBytes <= maxBytes * (1 + ABORT_TOLERANCE);
+    }
+
+    /**
+     * Scales the video bitrate by how much the video part of an output overshot its share,
+     * since encoders miss their target by a factor rather than by a fixed amount.
+     *
+     * @param actualBytes size the output had, or is projected to have, at {@code videoBitrate}
+     */
+    int correctBitrate(int videoBitrate, long actualBytes, long durationMs, int audioBitrate) {
+        double audioBytes = (double) Math.max(0, audioBitrate) * durationMs / 8 / 1000;
+        double videoBytes = actualBytes - audioBytes;
+        double videoBudget = maxBytes * (1 - RESERVE) - audioBytes;
+
+        if (videoBytes <= 0) {
+            return videoBitrate;
+        }
+
+        double ratio = Math.min(1, videoBudget / videoBytes);
+        return (int) Math.max(MIN_VIDEO_BITRATE, videoBitrate * ratio);
+    }
+
+    /**
+     * Video bitrate for the rest of an encode in progress, so the whole output ends within the
+     * budget. Bytes already written can not shrink, so the rest makes up for them; the factor the
+     * encoder missed {@code videoBitrate} by recently is corrected for.
+     *
+     * @param recentBytes bytes written during the last {@code recentMs} of the output, at {@code videoBitrate}
+     * @param writtenBytes size of the output so far
+     * @param remainingMs time of the output still to be written
+     */
+    int correctRemainingBitrate(int videoBitrate, long recentBytes, long recentMs, long writtenBytes,
+                                long remainingMs, int audioBitrate) {
+        if (recentMs <= 0 || remainingMs <= 0) {
+            return videoBitrate;
+        }
+
+        double audioBytesPerMs = (double) Math.max(0, audioBitrate) / 8 / 1000;
+        double videoBytesPerMs = (double) recentBytes / recentMs - audioBytesPerMs;
+        double budgetBytesPerMs = (maxBytes * (1 - RESERVE) - writtenBytes) / remainingMs - audioBytesPerMs;
+
+        if (videoBytesPerMs <= 0) {
+            return videoBitrate;
+        }
+
+        double ratio = Math.min(1, budgetBytesPerMs / videoBytesPerMs);
+        return (int) Math.max(MIN_VIDEO_BITRATE, videoBitrate * ratio);
+    }
+}
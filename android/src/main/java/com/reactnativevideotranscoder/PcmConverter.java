@@ -0,0 +1,133 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts interleaved 16 bit PCM to another channel count and sample rate,
+ * so audio of different sources can go into one encoder. Channels are mixed
+ * down or duplicated, samples are interpolated linearly. The converter keeps
+ * state between buffers and has to be used for one stream only.
+ */
+class PcmConverter {
+    /** Weight of center and surround channels when 5.1 is mixed down to stereo. */
+    private static final float SURROUND_WEIGHT = 0.7071f;
+
+    private final int inputSampleRate;
+    private final int inputChannels;
+    private final int outputSampleRate;
+    private final int outputChannels;
+
+    /** Last frame of the previous buffer, after channel conversion. */
+    private final short[] mLastFrame;
+    private boolean mHasLastFrame = false;
+    /** Position of the next output frame, in input frames relative to the next buffer. */
+    private double mPosition = 0;
+
+    PcmConverter(int inputSampleRate, int inputChannels, int outputSampleRate, int outputChannels) {
+        if (inputSampleRate <= 0 || inputChannels <= 0 || outputSampleRate <= 0 || outputChannels <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid PCM conversion %d Hz/%d ch -> %d Hz/%d ch",
+                    inputSampleRate, inputChannels, outputSampleRate, outputChannels));
+        }
+
+        this.inputSampleRate = inputSampleRate;
+        this.inputChannels = inputChannels;
+        this.outputSampleRate = outputSampleRate;
+        this.outputChannels = outputChannels;
+        this.mLastFrame = new short[outputChannels];
+    }
+
+    boolean isPassthrough() {
+        return inputSampleRate == outputSampleRate && inputChannels == outputChannels;
+    }
+
+    /**
+     * Converts the remaining bytes of the input, which is left consumed.
+     *
+     * @return converted PCM, ready to be read
+     */
+    @NonNull
+    ByteBuffer convert(@NonNull ByteBuffer input) {
+        ShortBuffer samples = input.order(ByteOrder.nativeOrder()).asShortBuffer();
+        int frames = samples.remaining() / inputChannels;
+
+        short[] mixed = new short[frames * outputChannels];
+        short[] frame = new short[inputChannels];
+        for (int index = 0; index < frames; index++) {
+            samples.get(frame);
+            mix(frame, mixed, index * outputChannels);
+        }
+        input.position(input.limit());
+
+        short[] output = inputSampleRate == outputSampleRate ? mixed : resample(mixed, frames);
+
+        ByteBuffer result = ByteBuffer.allocate(output.length * 2).order(ByteOrder.nativeOrder());
+        result.asShortBuffer().put(output);
+        return result;
+    }
+
+    private void mix(@NonNull short[] frame, @NonNull short[] output, int offset) {
+        if (inputChannels == outputChannels) {
+            System.arraycopy(frame, 0, output, offset, outputChannels);
+        } else if (outputChannels == 1) {
+            int sum = 0;
+            for (short sample : frame) {
+                sum += sample;
+            }
+            output[offset] = (short) (sum / inputChannels);
+        } else if (inputChannels == 6 && outputChannels == 2) {
+            // front left, front right, center, low frequency, back left, back right
+            float center = frame[2] * SURROUND_WEIGHT;
+            output[offset] = clip((frame[0] + center + frame[4] * SURROUND_WEIGHT) / (1 + 2 * SURROUND_WEIGHT));
+            output[offset + 1] = clip((frame[1] + center + frame[5] * SURROUND_WEIGHT) / (1 + 2 * SURROUND_WEIGHT));
+        } else {
+            for (int channel = 0; channel < outputChannels; channel++) {
+                output[offset + channel] = frame[channel % inputChannels];
+            }
+        }
+    }
+
+    /**
+     * Interpolates between neighbouring frames, carrying the position over to the next buffer.
+     */
+    @NonNull
+    private short[] resample(@NonNull short[] input, int frames) {
+        double step = (double) inputSampleRate / outputSampleRate;
+        int capacity = (int) Math.ceil((frames + 1) / step) + 1;
+        short[] output = new short[capacity * outputChannels];
+        int count = 0;
+
+        // index -1 is the last frame of the previous buffer
+        double position = mHasLastFrame ? mPosition : Math.max(0, mPosition);
+        while (position < frames - 1 && count < capacity) {
+            int index = (int) Math.floor(position);
+            double fraction = position - index;
+
+            for (int channel = 0; channel < outputChannels; channel++) {
+                int a = index < 0 ? mLastFrame[channel] : input[index * outputChannels + channel];
+                int b = input[(index + 1) * outputChannels + channel];
+                output[count * outputChannels + channel] = clip((float) (a + (b - a) * fraction));
+            }
+
+            count++;
+            position += step;
+        }
+
+        if (frames > 0) {
+            System.arraycopy(input, (frames - 1) * outputChannels, mLastFrame, 0, outputChannels);
+            mHasLastFrame = true;
+            mPosition = position - frames;
+        }
+
+        short[] result = new short[count * outputChannels];
+        System.arraycopy(output, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static short clip(float sample) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample)));
+    }
+}
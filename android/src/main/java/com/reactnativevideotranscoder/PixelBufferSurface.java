@@ -0,0 +1,116 @@
+package com.reactnativevideotranscoder;
+
+import android.graphics.Bitmap;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Offscreen EGL surface of a fixed size whose pixels can be read back into a bitmap.
+ */
+class PixelBufferSurface {
+    final int width;
+    final int height;
+
+    private final ByteBuffer mPixels;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mSurface = EGL14.EGL_NO_SURFACE;
+
+    PixelBufferSurface(int width, int height) {
+        this.width = width;
+        this.height = height;
+        mPixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new IllegalStateException("Can not get EGL display");
+        }
+
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            throw new IllegalStateException("Can not initialize EGL");
+        }
+
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttributes, 0, configs, 0, configs.length, configCount, 0)
+                || configCount[0] == 0) {
+            throw new IllegalStateException("No EGL config for a pixel buffer");
+        }
+
+        int[] contextAttributes = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        mContext = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        checkEglError("eglCreateContext");
+
+        int[] surfaceAttributes = {
+                EGL14.EGL_WIDTH, width,
+                EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE
+        };
+        mSurface = EGL14.eglCreatePbufferSurface(mDisplay, configs[0], surfaceAttributes, 0);
+        checkEglError("eglCreatePbufferSurface");
+    }
+
+    void makeCurrent() {
+        if (!EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+            throw new IllegalStateException("eglMakeCurrent failed");
+        }
+    }
+
+    /**
+     * Reads what was drawn so far. Rows come bottom up, draw the frame flipped to get it upright.
+     */
+    @NonNull
+    Bitmap readBitmap() {
+        mPixels.rewind();
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+        mPixels.rewind();
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(mPixels);
+        return bitmap;
+    }
+
+    void release() {
+        if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(mDisplay, mSurface);
+            EGL14.eglDestroyContext(mDisplay, mContext);
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mDisplay);
+        }
+
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    private static void checkEglError(String operation) {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new IllegalStateException(String.format("%s failed: EGL error 0x%x", operation, error));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.reactnativevideotranscoder;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces progress updates of all running jobs and hands them to the sink
+ * as a single batch at most once per {@code minIntervalMs}. An update is only
+ * delivered when it moved by at least {@code minDelta} since the last delivered
+ * value for the same request, or when it reached 100.
+ */
+class ProgressDispatcher {
+    static final long DEFAULT_MIN_INTERVAL_MS = 250;
+    static final float DEFAULT_MIN_DELTA = 1f;
+
+    interface Sink {
+        void onProgressBatch(@NonNull List<Update> updates);
+    }
+
+    static class Update {
+        final String requestId;
+        final float progress;
+
+        Update(@NonNull String requestId, float progress) {
+            this.requestId = requestId;
+            this.progress = progress;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Sink mSink;
+
+    private final Map<String, Float> mPending = new LinkedHashMap<>();
+    private final Map<String, Float> mLastSent = new HashMap<>();
+
+    private long mMinIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private float mMinDelta = DEFAULT_MIN_DELTA;
+
+    private long mLastFlushAt = 0;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ProgressDispatcher(@NonNull Sink sink) {
+        mSink = sink;
+    }
+
+    synchronized void setOptions(long minIntervalMs, float minDelta) {
+        mMinIntervalMs = Math.max(0, minIntervalMs);
+        mMinDelta = Math.max(0, minDelta);
+    }
+
+    void update(@NonNull String requestId, float progress) {
+        long delay;
+
+        synchronized (this) {
+            mPending.put(requestId, progress);
+
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+            delay = Math.max(0, mLastFlushAt + mMinIntervalMs - SystemClock.uptimeMillis());
+        }
+
+        mHandler.postDelayed(mFlushRunnable, delay);
+    }
+
+    /**
+     * Drops any pending progress of a job that reached a terminal state, so that no
+     * progress for it can be delivered after its terminal event.
+     */
+    synchronized void finish(@NonNull String requestId) {
+        mPending.remove(requestId);
+        mLastSent.remove(requestId);
+    }
+
+    private void flush() {
+        List<Update> updates = new ArrayList<>();
+
+        synchronized (this) {
+            mFlushScheduled = false;
+            mLastFlushAt = SystemClock.uptimeMillis();
+
+            Iterator<Map.Entry<String, Float>> iterator = mPending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Float> entry = iterator.next();
+                float progress = entry.getValue();
+                Float lastSent = mLastSent.get(entry.getKey());
+
+                if (lastSent == null || progress >= 100 || Math.abs(progress - lastSent) >= mMinDelta) {
+                    updates.add(new Update(entry.getKey(), progress));
+                    mLastSent.put(entry.getKey(), progress);
+                    iterator.remove();
+                }
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            mSink.onProgressBatch(updates);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.reactnativevideotranscoder;
+
+import android.content.Context;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.linkedin.android.litr.TransformationListener;
+import com.linkedin.android.litr.analytics.TrackTransformationInfo;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs a {@link CodecPipeline} whose output has to stay within an {@link OutputSizeBudget}.
+ * The pipeline corrects the video bitrate while it encodes; only when the finished output
+ * is still too large, e.g. because the encoder ignored the new bitrate, it is encoded
+ * again at a bitrate corrected by the size it actually had. The number of attempts is
+ * bounded, and progress reported to the parent listener never goes backwards.
+ */
+class SizeCappedTransform {
+    /** The encode and at most one restart as the last resort. */
+    static final int MAX_ATTEMPTS = 2;
+
+    private final Context context;
+    private final String requestId;
+    private final List<CodecPipeline.Clip> clips;
+    private final String outputPath;
+    @Nullable private final MediaFormat targetVideoFormat;
+    @Nullable private final MediaFormat targetAudioFormat;
+    private final int rotation;
+    private final CodecPipeline.Options options;
+    private final int maxAttempts;
+    private final TransformationListener parentListener;
+
+    private int mAttempt = 0;
+    private CodecPipeline mPipeline;
+    private boolean mCancelled = false;
+    private float mProgressBase = 0;
+    private float mLastProgress = 0;
+
+    /**
+     * @param targetVideoFormat format video is encoded into, null to copy it; copied video is only checked
+     * @param options options of the pipeline, with the size budget and the audio bitrate set
+     * @param maxAttempts 1 when the output can not be written again, e.g. because it was read while written
+     */
+    SizeCappedTransform(
+            @NonNull Context context,
+            @NonNull String requestId,
+            @NonNull List<CodecPipeline.Clip> clips,
+            @NonNull String outputPath,
+            @Nullable MediaFormat targetVideoFormat,
+            @Nullable MediaFormat targetAudioFormat,
+            int rotation,
+            @NonNull CodecPipeline.Options options,
+            int maxAttempts,
+            @NonNull TransformationListener parentListener
+    ) {
+        if (options.sizeBudget == null) {
+            throw new IllegalArgumentException("No size budget given");
+        }
+
+        this.context = context;
+        this.requestId = requestId;
+        this.clips = clips;
+        this.outputPath = outputPath;
+        this.targetVideoFormat = targetVideoFormat;
+        this.targetAudioFormat = targetAudioFormat;
+        this.rotation = rotation;
+        this.options = options;
+        this.maxAttempts = Math.max(1, Math.min(MAX_ATTEMPTS, maxAttempts));
+        this.parentListener = parentListener;
+    }
+
+    void start() {
+        startAttempt();
+    }
+
+    void cancel() {
+        CodecPipeline pipeline;
+        synchronized (this) {
+            mCancelled = true;
+            pipeline = mPipeline;
+        }
+        if (pipeline != null) {
+            pipeline.cancel();
+        }
+    }
+
+    private void startAttempt() {
+        CodecPipeline pipeline;
+        synchronized (this) {
+            pipeline = new CodecPipeline(context, requestId, clips, outputPath, targetVideoFormat,
+                    targetAudioFormat, rotation, options, mAttemptListener);
+            mPipeline = pipeline;
+            // a cancel that came in while a retry was prepared saw the previous pipeline, this one ends cancelled
+            if (mCancelled) {
+                pipeline.cancel();
+            }
+        }
+        pipeline.start();
+    }
+
+    /**
+     * @return lower video bitrate for an output of the given size, or 0 if no further attempt can help
+     */
+    private synchronized int getCorrectedBitrate(long actualBytes) {
+        if (mCancelled || mAttempt + 1 >= maxAttempts || targetVideoFormat == null
+                || !targetVideoFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return 0;
+        }
+
+        // an encoder that ignored the corrections in flight produced this size at the bitrate it started with
+        int bitrate = targetVideoFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        int corrected = options.sizeBudget.correctBitrate(bitrate, actualBytes, getDurationMs(), options.audioBitrate);
+        return corrected < bitrate ? corrected : 0;
+    }
+
+    private long getDurationMs() {
+        long durationUs = 0;
+        for (CodecPipeline.Clip clip : clips) {
+            durationUs += clip.durationUs;
+        }
+        return durationUs / 1000;
+    }
+
+    /**
+     * Starts the encode again at the given bitrate.
+     *
+     * @return false if the job was cancelled in the meantime
+     */
+    private boolean retry(int corrected) {
+        synchronized (this) {
+            if (mCancelled || corrected <= 0) {
+                return false;
+            }
+
+            mAttempt++;
+            mProgressBase = mLastProgress;
+        }
+
+        targetVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, corrected);
+        //noinspection ResultOfMethodCallIgnored
+        new File(outputPath).delete();
+
+        startAttempt();
+        return true;
+    }
+
+    private final TransformationListener mAttemptListener = new TransformationListener() {
+        @Override
+        public void onStarted(@NonNull String id) {
+            boolean first;
+            synchronized (SizeCappedTransform.this) {
+                first = mAttempt == 0;
+            }
+            if (first) {
+                parentListener.onStarted(requestId);
+            }
+        }
+
+        @Override
+        public void onProgress(@NonNull String id, float progress) {
+            float reported;
+            synchronized (SizeCappedTransform.this) {
+                reported = mProgressBase + (1 - mProgressBase) * progress;
+                mLastProgress = reported;
+            }
+            parentListener.onProgress(requestId, reported);
+        }
+
+        @Override
+        public void onCompleted(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+            long actualBytes = new File(outputPath).length();
+            if (actualBytes <= options.sizeBudget.maxBytes) {
+                parentListener.onCompleted(requestId, trackTransformationInfos);
+            } else if (!retry(getCorrectedBitrate(actualBytes))) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(outputPath).delete();
+                parentListener.onError(requestId, new IllegalStateException(String.format(
+                        "Output of %d bytes exceeds maxOutputBytes %d", actualBytes, options.sizeBudget.maxBytes)),
+                        trackTransformationInfos);
+            }
+        }
+
+        @Override
+        public void onCancelled(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+            parentListener.onCancelled(requestId, trackTransformationInfos);
+        }
+
+        @Override
+        public void onError(@NonNull String id, @Nullable Throwable cause, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+            parentListener.onError(requestId, cause, trackTransformationInfos);
+        }
+    };
+}
@@ -0,0 +1,213 @@
+package com.reactnativevideotranscoder;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads track formats and container metadata of a source once and keeps the
+ * result in a bounded LRU cache. The cache key includes the size and the last
+ * modification time of the source, so a changed file is probed again.
+ * Native extractor and retriever handles are released before returning.
+ */
+class SourceProbe {
+    private static final int MAX_ENTRIES = 32;
+
+    static final String KEY_ROTATION = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+        ? MediaFormat.KEY_ROTATION
+        : "rotation-degrees";
+
+    static class Result {
+        final Uri uri;
+        final String cacheKey;
+        @Nullable final MediaFormat videoFormat;
+        @Nullable final MediaFormat audioFormat;
+        final int bitrate;
+        final int rotation;
+        final long durationMs;
+        final int width;
+        final int height;
+        final long sizeBytes;
+        final long lastModified;
+
+        Result(Uri uri, String cacheKey, @Nullable MediaFormat videoFormat, @Nullable MediaFormat audioFormat,
+               int bitrate, int rotation, long durationMs, int width, int height, long sizeBytes, long lastModified) {
+            this.uri = uri;
+            this.cacheKey = cacheKey;
+            this.videoFormat = videoFormat;
+            this.audioFormat = audioFormat;
+            this.bitrate = bitrate;
+            this.rotation = rotation;
+            this.durationMs = durationMs;
+            this.width = width;
+            this.height = height;
+            this.sizeBytes = sizeBytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Context context;
+
+    private final Map<String, Result> mCache = new LinkedHashMap<String, Result>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    SourceProbe(@NonNull Context context) {
+        this.context = context;
+    }
+
+    @NonNull
+    Result probe(@NonNull Uri uri) throws IOException {
+        long[] stat = stat(uri);
+        long sizeBytes = stat[0];
+        long lastModified = stat[1];
+        String cacheKey = String.format("%s|%d|%d", uri, sizeBytes, lastModified);
+
+        synchronized (mCache) {
+            Result cached = mCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Result result = read(uri, cacheKey, sizeBytes, lastModified);
+
+        // without size and modification time a changed source could not be told apart
+        if (sizeBytes >= 0 && lastModified >= 0) {
+            synchronized (mCache) {
+                mCache.put(cacheKey, result);
+            }
+        }
+
+        return result;
+    }
+
+    @NonNull
+    private Result read(@NonNull Uri uri, String cacheKey, long sizeBytes, long lastModified) throws IOException {
+        MediaFormat videoFormat = null;
+        MediaFormat audioFormat = null;
+
+        MediaExtractor mediaExtractor = new MediaExtractor();
+        try {
+            mediaExtractor.setDataSource(context, uri, null);
+
+            for (int track = 0; track < mediaExtractor.getTrackCount(); track++) {
+                MediaFormat mediaFormat = mediaExtractor.getTrackFormat(track);
+                String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
+
+                if (mimeType == null) {
+                    continue;
+                }
+
+                if (videoFormat == null && mimeType.startsWith("video")) {
+                    videoFormat = mediaFormat;
+                } else if (audioFormat == null && mimeType.startsWith("audio")) {
+                    audioFormat = mediaFormat;
+                }
+            }
+        } finally {
+            mediaExtractor.release();
+        }
+
+        int bitrate;
+        int rotation;
+        long durationMs;
+
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        try {
+            mediaMetadataRetriever.setDataSource(context, uri);
+
+            bitrate = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE), -1);
+            rotation = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION), 0);
+            durationMs = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION), -1);
+        } finally {
+            try {
+                mediaMetadataRetriever.release();
+            } catch (Exception ignored) {
+                // nothing left to clean up
+            }
+        }
+
+        if (videoFormat != null && videoFormat.containsKey(KEY_ROTATION)) {
+            rotation = videoFormat.getInteger(KEY_ROTATION);
+        }
+        if (durationMs < 0 && videoFormat != null && videoFormat.containsKey(MediaFormat.KEY_DURATION)) {
+            durationMs = videoFormat.getLong(MediaFormat.KEY_DURATION) / 1000;
+        }
+
+        int width = videoFormat != null && videoFormat.containsKey(MediaFormat.KEY_WIDTH)
+                ? videoFormat.getInteger(MediaFormat.KEY_WIDTH)
+                : -1;
+        int height = videoFormat != null && videoFormat.containsKey(MediaFormat.KEY_HEIGHT)
+                ? videoFormat.getInteger(MediaFormat.KEY_HEIGHT)
+                : -1;
+
+        return new Result(uri, cacheKey, videoFormat, audioFormat, bitrate, rotation, durationMs,
+                width, height, sizeBytes, lastModified);
+    }
+
+    /**
+     * @return size in bytes and last modification time in ms, -1 for values that can not be determined
+     */
+    private long[] stat(@NonNull Uri uri) {
+        long[] stat = new long[] { -1, -1 };
+        String scheme = uri.getScheme();
+
+        if (TextUtils.isEmpty(scheme) || ContentResolver.SCHEME_FILE.equals(scheme)) {
+            File file = new File(uri.getPath());
+            if (file.exists()) {
+                stat[0] = file.length();
+                stat[1] = file.lastModified();
+            }
+        } else if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            try (Cursor cursor = context.getContentResolver().query(uri, null, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    int lastModifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+
+                    if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+                        stat[0] = cursor.getLong(sizeIndex);
+                    }
+                    if (lastModifiedIndex >= 0 && !cursor.isNull(lastModifiedIndex)) {
+                        stat[1] = cursor.getLong(lastModifiedIndex);
+                    }
+                }
+            } catch (RuntimeException ignored) {
+                // provider does not support the query, the source will not be cached
+            }
+        }
+
+        return stat;
+    }
+
+    private static int parseInt(@Nullable String value, int defaultValue) {
+        if (TextUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
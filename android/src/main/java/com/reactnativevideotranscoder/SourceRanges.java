@@ -0,0 +1,150 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Parts of a source that make up an output, in microseconds. Ranges are
+ * sorted and do not overlap; in the output they follow each other without
+ * gaps, so every range has its own offset on the output timeline.
+ */
+class SourceRanges {
+    private final long[] startsUs;
+    private final long[] endsUs;
+    private final long[] outputStartsUs;
+
+    private SourceRanges(@NonNull long[] startsUs, @NonNull long[] endsUs) {
+        this.startsUs = startsUs;
+        this.endsUs = endsUs;
+        this.outputStartsUs = new long[startsUs.length];
+
+        long outputStartUs = 0;
+        for (int range = 0; range < startsUs.length; range++) {
+            outputStartsUs[range] = outputStartUs;
+            outputStartUs += endsUs[range] - startsUs[range];
+        }
+    }
+
+    /**
+     * Checks the ranges against the source and clamps their ends to its duration.
+     */
+    @NonNull
+    static SourceRanges of(@NonNull long[] startsUs, @NonNull long[] endsUs, long durationUs) {
+        if (startsUs.length == 0 || startsUs.length != endsUs.length) {
+            throw new IllegalArgumentException("No ranges given");
+        }
+
+        long[] clampedEndsUs = new long[endsUs.length];
+        for (int range = 0; range < startsUs.length; range++) {
+            clampedEndsUs[range] = Math.min(endsUs[range], durationUs);
+
+            if (startsUs[range] < 0 || startsUs[range] >= clampedEndsUs[range]) {
+                throw new IllegalArgumentException(String.format("Invalid range %d: %d-%d us of a %d us source",
+                        range, startsUs[range], endsUs[range], durationUs));
+            }
+            if (range > 0 && startsUs[range] < clampedEndsUs[range - 1]) {
+                throw new IllegalArgumentException(String.format("Range %d overlaps or precedes range %d", range, range - 1));
+            }
+        }
+
+        return new SourceRanges(startsUs.clone(), clampedEndsUs);
+    }
+
+    /**
+     * @param boundaries range boundaries, each range ends where the next starts
+     */
+    @NonNull
+    static SourceRanges fromBoundaries(@NonNull long[] boundaries) {
+        long[] startsUs = new long[boundaries.length - 1];
+        long[] endsUs = new long[boundaries.length - 1];
+        for (int range = 0; range < startsUs.length; range++) {
+            startsUs[range] = boundaries[range];
+            endsUs[range] = boundaries[range + 1];
+        }
+        return new SourceRanges(startsUs, endsUs);
+    }
+
+    int size() {
+        return startsUs.length;
+    }
+
+    long getStartUs(int range) {
+        return startsUs[range];
+    }
+
+    long getEndUs(int range) {
+        return endsUs[range];
+    }
+
+    /**
+     * @return time the range starts at in the output
+     */
+    long getOutputStartUs(int range) {
+        return outputStartsUs[range];
+    }
+
+    long getDurationUs() {
+        int last = startsUs.length - 1;
+        return outputStartsUs[last] + endsUs[last] - startsUs[last];
+    }
+
+    boolean isWhole(long durationUs) {
+        return startsUs.length == 1 && startsUs[0] == 0 && endsUs[0] >= durationUs;
+    }
+
+    /**
+     * @return where a source sample ends up in the output, or -1 if it is not part of any range
+     */
+    long toOutputTimeUs(long sourceTimeUs) {
+        for (int range = 0; range < startsUs.length; range++) {
+            if (sourceTimeUs >= startsUs[range] && sourceTimeUs < endsUs[range]) {
+                return sourceTimeUs - startsUs[range] + outputStartsUs[range];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves every start back to the given keyframe, for outputs that copy video and
+     * have to start with one. Ranges that run into each other that way are merged.
+     *
+     * @param keyframesUs keyframe preceding the start of each range
+     */
+    @NonNull
+    SourceRanges withStartsAt(@NonNull long[] keyframesUs) {
+        long[] newStartsUs = new long[startsUs.length];
+        long[] newEndsUs = new long[endsUs.length];
+        int count = 0;
+
+        for (int range = 0; range < startsUs.length; range++) {
+            long startUs = Math.min(startsUs[range], Math.max(0, keyframesUs[range]));
+            if (count > 0 && startUs <= newEndsUs[count - 1]) {
+                newEndsUs[count - 1] = endsUs[range];
+            } else {
+                newStartsUs[count] = startUs;
+                newEndsUs[count] = endsUs[range];
+                count++;
+            }
+        }
+
+        long[] mergedStartsUs = new long[count];
+        long[] mergedEndsUs = new long[count];
+        System.arraycopy(newStartsUs, 0, mergedStartsUs, 0, count);
+        System.arraycopy(newEndsUs, 0, mergedEndsUs, 0, count);
+        return new SourceRanges(mergedStartsUs, mergedEndsUs);
+    }
+
+    /**
+     * @return stable description, e.g. for cache keys
+     */
+    @NonNull
+    String describe() {
+        StringBuilder description = new StringBuilder();
+        for (int range = 0; range < startsUs.length; range++) {
+            if (range > 0) {
+                description.append(',');
+            }
+            description.append(startsUs[range]).append('-').append(endsUs[range]);
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Runs the condition of the device through the policy whenever it changes.
+ * Slot limits and held background jobs go to the scheduler right away;
+ * smaller sizes and frame rates only apply to jobs started afterwards.
+ */
+class ThrottleController implements DeviceConditionSource.Listener {
+    interface Listener {
+        void onDecisionChanged(@NonNull DeviceCondition condition, @NonNull ThrottlePolicy.Decision decision);
+    }
+
+    private final DeviceConditionSource source;
+    private final TranscodeScheduler scheduler;
+    private final Listener listener;
+
+    private ThrottlePolicy mPolicy = new DefaultThrottlePolicy();
+    private boolean mEnabled = true;
+    private DeviceCondition mCondition = DeviceCondition.UNKNOWN;
+    private ThrottlePolicy.Decision mDecision = ThrottlePolicy.Decision.NONE;
+
+    ThrottleController(
+            @NonNull DeviceConditionSource source,
+            @NonNull TranscodeScheduler scheduler,
+            @NonNull Listener listener
+    ) {
+        this.source = source;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    void start() {
+        source.start(this);
+    }
+
+    void stop() {
+        source.stop();
+    }
+
+    void setPolicy(@NonNull ThrottlePolicy policy, boolean enabled) {
+        synchronized (this) {
+            mPolicy = policy;
+            mEnabled = enabled;
+        }
+
+        update();
+    }
+
+    @NonNull
+    synchronized ThrottlePolicy.Decision getDecision() {
+        return mDecision;
+    }
+
+    @NonNull
+    synchronized DeviceCondition getCondition() {
+        return mCondition;
+    }
+
+    @Override
+    public void onConditionChanged(@NonNull DeviceCondition condition) {
+        synchronized (this) {
+            mCondition = condition;
+        }
+
+        update();
+    }
+
+    /**
+     * Shrinks the target format of a new job by the current decision, the bitrate
+     * follows the pixel count.
+     *
+     * @return the frame rate cap to apply, the lower of the requested one and the throttled one
+     */
+    int applyToFormat(@NonNull MediaFormat targetFormat, int maxFrameRate) {
+        ThrottlePolicy.Decision decision = getDecision();
+
+        if (decision.sizeScale > 0 && decision.sizeScale < 1) {
+            float scale = decision.sizeScale;
+            targetFormat.setInteger(MediaFormat.KEY_WIDTH, scaleEven(targetFormat.getInteger(MediaFormat.KEY_WIDTH), scale));
+            targetFormat.setInteger(MediaFormat.KEY_HEIGHT, scaleEven(targetFormat.getInteger(MediaFormat.KEY_HEIGHT), scale));
+            targetFormat.setInteger(MediaFormat.KEY_BIT_RATE,
+                    (int) (targetFormat.getInteger(MediaFormat.KEY_BIT_RATE) * scale * scale));
+        }
+
+        // an invalid cap is left for the caller to reject
+        if (maxFrameRate < 0 || decision.maxFrameRate <= 0) {
+            return maxFrameRate;
+        }
+        return maxFrameRate == 0 ? decision.maxFrameRate : Math.min(maxFrameRate, decision.maxFrameRate);
+    }
+
+    private void update() {
+        DeviceCondition condition;
+        ThrottlePolicy.Decision decision;
+        synchronized (this) {
+            condition = mCondition;
+            decision = mEnabled ? mPolicy.decide(condition) : ThrottlePolicy.Decision.NONE;
+            if (decision.equals(mDecision)) {
+                return;
+            }
+            mDecision = decision;
+        }
+
+        scheduler.setThrottle(decision.maxConcurrency, decision.holdBackground);
+        listener.onDecisionChanged(condition, decision);
+    }
+
+    private static int scaleEven(int value, float scale) {
+        return Math.max(2, Math.round(value * scale / 2) * 2);
+    }
+}
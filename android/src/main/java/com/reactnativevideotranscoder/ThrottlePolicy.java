@@ -0,0 +1,49 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Turns the condition of the device into limits for the jobs of the module.
+ */
+interface ThrottlePolicy {
+    /**
+     * Limits for running and new jobs. The defaults limit nothing.
+     */
+    class Decision {
+        static final Decision NONE = new Decision();
+
+        /** Slots jobs may occupy at most, 0 for no limit beyond the configured concurrency. */
+        int maxConcurrency = 0;
+        /** Background jobs wait in the queue until the limit is lifted. */
+        boolean holdBackground = false;
+        /** Width and height of new outputs are scaled by this factor. */
+        float sizeScale = 1f;
+        /** Frame rate new outputs must not exceed, 0 for no limit. */
+        int maxFrameRate = 0;
+        /** Why the device is throttled, null when it is not. */
+        @Nullable String reason;
+
+        boolean isThrottled() {
+            return maxConcurrency > 0 || holdBackground || sizeScale < 1f || maxFrameRate > 0;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Decision)) {
+                return false;
+            }
+            Decision decision = (Decision) other;
+            return maxConcurrency == decision.maxConcurrency && holdBackground == decision.holdBackground
+                    && sizeScale == decision.sizeScale && maxFrameRate == decision.maxFrameRate;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((maxConcurrency * 31 + (holdBackground ? 1 : 0)) * 31 + Float.floatToIntBits(sizeScale)) * 31 + maxFrameRate;
+        }
+    }
+
+    @NonNull
+    Decision decide(@NonNull DeviceCondition condition);
+}
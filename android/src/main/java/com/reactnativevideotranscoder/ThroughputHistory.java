@@ -0,0 +1,238 @@
+package com.reactnativevideotranscoder;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How fast this device got through earlier jobs, and how far their outputs
+ * ended up from the expected size, as running averages per kind of job.
+ * Encoded video is measured in output pixels per second, copied video in
+ * input bytes per second, and segmented jobs apart by the number of segments
+ * encoded at the same time. Kept on disk, so estimates improve across launches;
+ * the file is written on a background thread.
+ */
+class ThroughputHistory {
+    /** Roughly 1080p at 30 fps encoded in real time. */
+    static final double DEFAULT_PIXELS_PER_SECOND = 60_000_000;
+    static final double DEFAULT_BYTES_PER_SECOND = 40_000_000;
+
+    private static final String TAG = "ThroughputHistory";
+    private static final String FILE_NAME = "throughput.json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Weight of the latest job in the averages. */
+    private static final double SMOOTHING = 0.3;
+    /** Outputs off by more than this factor point at a broken measurement rather than the encoder. */
+    private static final double MAX_SIZE_RATIO = 4;
+
+    static class Average {
+        final double value;
+        final int samples;
+
+        Average(double value, int samples) {
+            this.value = value;
+            this.samples = samples;
+        }
+    }
+
+    private final File file;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, Average> mAverages = new HashMap<>();
+    private boolean mLoaded = false;
+
+    ThroughputHistory(@NonNull File dir) {
+        this.file = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * @return true if the output of the path is encoded, so its cost follows the pixels of the output
+     */
+    static boolean isEncoded(@NonNull TranscodePath path) {
+        return path == TranscodePath.TRANSCODE || path == TranscodePath.AUDIO_COPY;
+    }
+
+    /**
+     * @return work of a job in the unit its throughput is measured in
+     */
+    static double getWork(
+            @NonNull TranscodePath path,
+            int width,
+            int height,
+            int frameRate,
+            long durationMs,
+            long inputBytes
+    ) {
+        if (isEncoded(path)) {
+            return (double) width * height * frameRate * durationMs / 1000;
+        }
+        return inputBytes;
+    }
+
+    /**
+     * @param parallelism segments of the job encoded at the same time
+     * @return throughput of the kind of job, per second, the one of unsegmented jobs when the device has
+     * not run it with that many segments yet, or the default when it has not done one at all
+     */
+    @NonNull
+    synchronized Average getThroughput(@NonNull TranscodePath path, @Nullable String videoMime, int parallelism) {
+        Average average = get(getThroughputKey(path, videoMime, parallelism));
+        if (average == null && parallelism > 1) {
+            average = get(getThroughputKey(path, videoMime, 1));
+        }
+        if (average != null) {
+            return average;
+        }
+        return new Average(isEncoded(path) ? DEFAULT_PIXELS_PER_SECOND : DEFAULT_BYTES_PER_SECOND, 0);
+    }
+
+    /**
+     * @return how much larger than expected outputs of the path turned out, 1 without history
+     */
+    synchronized double getSizeRatio(@NonNull TranscodePath path) {
+        Average average = get(getSizeKey(path));
+        return average != null ? average.value : 1;
+    }
+
+    /**
+     * Adds a succeeded job to the averages. Returns right away, reading and writing the file
+     * happens on a background thread.
+     */
+    void record(@NonNull final TranscodeMetrics.Record record) {
+        if (record.outcome != TranscodeMetrics.Outcome.SUCCEEDED || record.wallMs <= 0) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                add(record);
+            }
+        });
+    }
+
+    private synchronized void add(@NonNull TranscodeMetrics.Record record) {
+        double work = getWork(record.path, record.targetWidth, record.targetHeight, record.targetFrameRate,
+                record.mediaDurationMs, record.inputBytes);
+        if (work > 0) {
+            add(getThroughputKey(record.path, record.targetMime, record.parallelism), work * 1000 / record.wallMs);
+        }
+
+        if (record.expectedBytes > 0 && record.outputBytes > 0) {
+            double ratio = (double) record.outputBytes / record.expectedBytes;
+            if (ratio < MAX_SIZE_RATIO && ratio > 1 / MAX_SIZE_RATIO) {
+                add(getSizeKey(record.path), ratio);
+            }
+        }
+
+        save();
+    }
+
+    @NonNull
+    private static String getThroughputKey(@NonNull TranscodePath path, @Nullable String videoMime, int parallelism) {
+        if (!isEncoded(path)) {
+            return "bytes:" + path.toJsValue();
+        }
+        return parallelism > 1 ? String.format(Locale.ROOT, "pixels:%s:x%d", videoMime, parallelism) : "pixels:" + videoMime;
+    }
+
+    @NonNull
+    private static String getSizeKey(@NonNull TranscodePath path) {
+        return "size:" + path.toJsValue();
+    }
+
+    @Nullable
+    private Average get(@NonNull String key) {
+        load();
+        return mAverages.get(key);
+    }
+
+    private void add(@NonNull String key, double value) {
+        Average average = get(key);
+        mAverages.put(key, average == null
+                ? new Average(value, 1)
+                : new Average(average.value + (value - average.value) * SMOOTHING, average.samples + 1));
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!file.isFile()) {
+            return;
+        }
+
+        try {
+            JSONObject json = new JSONObject(readFile(file));
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject item = json.getJSONObject(key);
+                mAverages.put(key, new Average(item.getDouble("value"), item.getInt("samples")));
+            }
+        } catch (IOException | JSONException e) {
+            // a lost history only makes estimates fall back to the defaults
+            Log.w(TAG, "Can not read throughput history", e);
+            mAverages.clear();
+        }
+    }
+
+    private void save() {
+        try {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Average> entry : mAverages.entrySet()) {
+                JSONObject item = new JSONObject();
+                item.put("value", entry.getValue().value);
+                item.put("samples", entry.getValue().samples);
+                json.put(entry.getKey(), item);
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(json.toString().getBytes(UTF_8));
+                out.flush();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException(String.format("Can not write %s", file.getPath()));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Can not write throughput history", e);
+        }
+    }
+
+    private static String readFile(@NonNull File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        }
+
+        return new String(data, UTF_8);
+    }
+}
@@ -0,0 +1,183 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Items of a batch and their states. At most {@code parallelism} items run at
+ * once, the rest wait here before they reach the scheduler. Every item is a
+ * request of its own, so a failed or cancelled item leaves the others alone
+ * and can be queued again.
+ */
+class TranscodeBatch {
+    static final int DEFAULT_PARALLELISM = 2;
+
+    enum State {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED,
+        CANCELLED;
+
+        boolean isFinal() {
+            return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+        }
+
+        String toJsValue() {
+            return name().toLowerCase();
+        }
+    }
+
+    static class Item {
+        final int index;
+        final String requestId;
+        final String sourcePath;
+        final ReadableMap options;
+
+        State state = State.QUEUED;
+        float progress = 0;
+        @Nullable String outputPath;
+        @Nullable String error;
+
+        Item(int index, @NonNull String requestId, @NonNull String sourcePath, @NonNull ReadableMap options) {
+            this.index = index;
+            this.requestId = requestId;
+            this.sourcePath = sourcePath;
+            this.options = options;
+        }
+    }
+
+    final String batchId;
+    final int parallelism;
+
+    private final List<Item> items = new ArrayList<>();
+
+    TranscodeBatch(@NonNull String batchId, int parallelism) {
+        this.batchId = batchId;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    static String getItemRequestId(@NonNull String batchId, int index) {
+        return batchId + "_" + index;
+    }
+
+    synchronized Item add(@NonNull String sourcePath, @NonNull ReadableMap options) {
+        Item item = new Item(items.size(), getItemRequestId(batchId, items.size()), sourcePath, options);
+        items.add(item);
+        return item;
+    }
+
+    synchronized List<Item> getItems() {
+        return Collections.unmodifiableList(new ArrayList<>(items));
+    }
+
+    @Nullable
+    synchronized Item getItem(int index) {
+        return index >= 0 && index < items.size() ? items.get(index) : null;
+    }
+
+    @Nullable
+    synchronized Item getItem(@NonNull String requestId) {
+        for (Item item : items) {
+            if (item.requestId.equals(requestId)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks queued items as running while there are free slots.
+     *
+     * @return items to start, in order
+     */
+    synchronized List<Item> takeStartable() {
+        int running = 0;
+        for (Item item : items) {
+            if (item.state == State.RUNNING) {
+                running++;
+            }
+        }
+
+        List<Item> startable = new ArrayList<>();
+        for (Item item : items) {
+            if (running >= parallelism) {
+                break;
+            }
+            if (item.state == State.QUEUED) {
+                item.state = State.RUNNING;
+                startable.add(item);
+                running++;
+            }
+        }
+        return startable;
+    }
+
+    synchronized void setProgress(@NonNull Item item, float progress) {
+        if (item.state == State.RUNNING) {
+            item.progress = progress;
+        }
+    }
+
+    /**
+     * @return true if the item reached the state now, false if it was already final
+     */
+    synchronized boolean finish(@NonNull Item item, @NonNull State state, @Nullable String outputPath, @Nullable String error) {
+        if (item.state.isFinal()) {
+            return false;
+        }
+
+        item.state = state;
+        item.progress = 1;
+        item.outputPath = outputPath;
+        item.error = error;
+        return true;
+    }
+
+    /**
+     * Queues a failed or cancelled item again.
+     *
+     * @return false if the item is still queued, running or succeeded
+     */
+    synchronized boolean retry(@NonNull Item item) {
+        if (item.state != State.FAILED && item.state != State.CANCELLED) {
+            return false;
+        }
+
+        item.state = State.QUEUED;
+        item.progress = 0;
+        item.outputPath = null;
+        item.error = null;
+        return true;
+    }
+
+    /**
+     * @return share of the batch that is done, finished items count in full whatever their outcome
+     */
+    synchronized float getProgress() {
+        if (items.isEmpty()) {
+            return 1;
+        }
+
+        float sum = 0;
+        for (Item item : items) {
+            sum += item.progress;
+        }
+        return sum / items.size();
+    }
+
+    synchronized boolean isDone() {
+        for (Item item : items) {
+            if (!item.state.isFinal()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,304 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small on-disk record of a checkpointed job: what is transcoded into where,
+ * the segment plan and which segments are already complete. It lives next to
+ * the completed segments, so a job can be continued after process death.
+ */
+class TranscodeJournal {
+    private static final String FILE_NAME = "journal.json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] INT_KEYS = new String[] {
+            MediaFormat.KEY_WIDTH,
+            MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_BIT_RATE,
+            MediaFormat.KEY_FRAME_RATE,
+            MediaFormat.KEY_I_FRAME_INTERVAL,
+            MediaFormat.KEY_CHANNEL_COUNT,
+            MediaFormat.KEY_SAMPLE_RATE,
+            SourceProbe.KEY_ROTATION,
+            MediaFormat.KEY_LEVEL,
+            MediaFormat.KEY_PROFILE,
+            MediaFormat.KEY_LATENCY,
+            MediaFormat.KEY_OPERATING_RATE,
+            MediaFormat.KEY_PRIORITY,
+            MediaFormat.KEY_BITRATE_MODE
+    };
+    private static final String[] LONG_KEYS = new String[] {
+            MediaFormat.KEY_DURATION
+    };
+
+    final File dir;
+
+    String requestId;
+    String sourcePath;
+    String sourceKey;
+    String outputPath;
+    TranscodePath path;
+    String priority;
+    int rotation;
+    int parallelism;
+    long[] boundaries;
+    boolean[] completed;
+    @Nullable MediaFormat targetVideoFormat;
+    @Nullable MediaFormat targetAudioFormat;
+
+    private TranscodeJournal(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    @NonNull
+    static TranscodeJournal create(@NonNull File root, @NonNull String requestId) {
+        TranscodeJournal journal = new TranscodeJournal(getDir(root, requestId));
+        journal.requestId = requestId;
+        return journal;
+    }
+
+    @Nullable
+    static TranscodeJournal load(@NonNull File root, @NonNull String requestId) throws IOException {
+        TranscodeJournal journal = new TranscodeJournal(getDir(root, requestId));
+        File file = new File(journal.dir, FILE_NAME);
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            journal.readJson(new JSONObject(readFile(file)));
+        } catch (JSONException e) {
+            throw new IOException(String.format("Journal of %s is corrupted", requestId), e);
+        }
+
+        return journal;
+    }
+
+    @NonNull
+    static List<String> list(@NonNull File root) {
+        List<String> requestIds = new ArrayList<>();
+        File[] dirs = root.listFiles();
+
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (new File(dir, FILE_NAME).isFile()) {
+                    requestIds.add(dir.getName());
+                }
+            }
+        }
+
+        return requestIds;
+    }
+
+    /**
+     * Journals are found again by the name of their directory, so the request id is used as it is
+     * and must not be able to point anywhere else.
+     */
+    @NonNull
+    private static File getDir(@NonNull File root, @NonNull String requestId) {
+        if (requestId.isEmpty() || requestId.equals(".") || requestId.equals("..")
+                || requestId.indexOf('/') >= 0 || requestId.indexOf('\\') >= 0 || requestId.indexOf('\0') >= 0) {
+            throw new IllegalArgumentException(String.format("Request id %s can not be used for a resumable request", requestId));
+        }
+        return new File(root, requestId);
+    }
+
+    /**
+     * @return the segments that are not complete yet, or null when all of them are
+     */
+    @Nullable
+    SourceRanges getRemainingRanges() {
+        List<long[]> remaining = new ArrayList<>();
+        for (int segment = 0; segment < completed.length; segment++) {
+            if (!completed[segment]) {
+                remaining.add(new long[] { boundaries[segment], boundaries[segment + 1] });
+            }
+        }
+
+        if (remaining.isEmpty()) {
+            return null;
+        }
+
+        long[] startsUs = new long[remaining.size()];
+        long[] endsUs = new long[remaining.size()];
+        for (int range = 0; range < startsUs.length; range++) {
+            startsUs[range] = remaining.get(range)[0];
+            endsUs[range] = remaining.get(range)[1];
+        }
+        return SourceRanges.of(startsUs, endsUs, boundaries[boundaries.length - 1]);
+    }
+
+    @NonNull
+    File getSegmentFile(int segment) {
+        return new File(dir, String.format("segment_%d.mp4", segment));
+    }
+
+    synchronized void markCompleted(int segment) throws IOException {
+        completed[segment] = true;
+        save();
+    }
+
+    synchronized void save() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Can not create %s", dir.getPath()));
+        }
+
+        String json;
+        try {
+            json = toJson().toString();
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+
+        // write aside and rename, so a crash never leaves a half written journal
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.getBytes(UTF_8));
+            out.flush();
+        }
+
+        if (!tmp.renameTo(new File(dir, FILE_NAME))) {
+            throw new IOException(String.format("Can not write journal of %s", requestId));
+        }
+    }
+
+    void delete() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("requestId", requestId);
+        json.put("sourcePath", sourcePath);
+        json.put("sourceKey", sourceKey);
+        json.put("outputPath", outputPath);
+        json.put("path", path.toJsValue());
+        json.put("priority", priority);
+        json.put("rotation", rotation);
+        json.put("parallelism", parallelism);
+
+        JSONArray segments = new JSONArray();
+        for (int segment = 0; segment < completed.length; segment++) {
+            JSONObject item = new JSONObject();
+            item.put("startUs", boundaries[segment]);
+            item.put("endUs", boundaries[segment + 1]);
+            item.put("completed", completed[segment]);
+            segments.put(item);
+        }
+        json.put("segments", segments);
+
+        if (targetVideoFormat != null) {
+            json.put("video", formatToJson(targetVideoFormat));
+        }
+        if (targetAudioFormat != null) {
+            json.put("audio", formatToJson(targetAudioFormat));
+        }
+
+        return json;
+    }
+
+    private void readJson(JSONObject json) throws JSONException {
+        requestId = json.getString("requestId");
+        sourcePath = json.getString("sourcePath");
+        sourceKey = json.getString("sourceKey");
+        outputPath = json.getString("outputPath");
+        path = TranscodePath.fromJsValue(json.getString("path"));
+        priority = json.optString("priority", null);
+        rotation = json.getInt("rotation");
+        parallelism = json.optInt("parallelism", 1);
+
+        JSONArray segments = json.getJSONArray("segments");
+        boundaries = new long[segments.length() + 1];
+        completed = new boolean[segments.length()];
+
+        for (int segment = 0; segment < segments.length(); segment++) {
+            JSONObject item = segments.getJSONObject(segment);
+            boundaries[segment] = item.getLong("startUs");
+            boundaries[segment + 1] = item.getLong("endUs");
+            // a segment without its file has to be transcoded again
+            completed[segment] = item.getBoolean("completed") && getSegmentFile(segment).isFile();
+        }
+
+        targetVideoFormat = json.has("video") ? formatFromJson(json.getJSONObject("video")) : null;
+        targetAudioFormat = json.has("audio") ? formatFromJson(json.getJSONObject("audio")) : null;
+    }
+
+    private static JSONObject formatToJson(@NonNull MediaFormat mediaFormat) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(MediaFormat.KEY_MIME, mediaFormat.getString(MediaFormat.KEY_MIME));
+
+        for (String key : INT_KEYS) {
+            if (mediaFormat.containsKey(key)) {
+                json.put(key, mediaFormat.getInteger(key));
+            }
+        }
+        for (String key : LONG_KEYS) {
+            if (mediaFormat.containsKey(key)) {
+                json.put(key, mediaFormat.getLong(key));
+            }
+        }
+
+        return json;
+    }
+
+    private static MediaFormat formatFromJson(@NonNull JSONObject json) throws JSONException {
+        MediaFormat mediaFormat = new MediaFormat();
+        mediaFormat.setString(MediaFormat.KEY_MIME, json.getString(MediaFormat.KEY_MIME));
+
+        for (String key : INT_KEYS) {
+            if (json.has(key)) {
+                mediaFormat.setInteger(key, json.getInt(key));
+            }
+        }
+        for (String key : LONG_KEYS) {
+            if (json.has(key)) {
+                mediaFormat.setLong(key, json.getLong(key));
+            }
+        }
+
+        return mediaFormat;
+    }
+
+    private static String readFile(@NonNull File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        }
+
+        return new String(data, UTF_8);
+    }
+}
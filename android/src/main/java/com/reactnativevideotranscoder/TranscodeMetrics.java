@@ -0,0 +1,263 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.linkedin.android.litr.analytics.TrackTransformationInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rolling, in-memory store of per-job performance records. A record is opened
+ * when a job is submitted and closed once the job reached a terminal state;
+ * only the most recent {@code capacity} closed records are kept.
+ */
+class TranscodeMetrics {
+    static final int DEFAULT_CAPACITY = 50;
+
+    enum Outcome {
+        SUCCEEDED,
+        CANCELLED,
+        FAILED;
+
+        String toJsValue() {
+            return name().toLowerCase();
+        }
+    }
+
+    static class Track {
+        @Nullable String mime;
+        @Nullable String decoder;
+        @Nullable String encoder;
+        long transformMs;
+    }
+
+    static class Record {
+        final String requestId;
+        final TranscodePath path;
+        final TranscodeScheduler.Priority priority;
+        final long inputBytes;
+        final long mediaDurationMs;
+
+        Outcome outcome;
+        long queueWaitMs;
+        long wallMs;
+        long outputBytes;
+        long finishedAt;
+        int targetBitrate;
+        @Nullable String targetMime;
+        int targetWidth;
+        int targetHeight;
+        int targetFrameRate;
+        /** Output size the target formats lead to, 0 if unknown. */
+        long expectedBytes;
+        @Nullable String bitrateReason;
+        /** Video frames the encoders wrote, counted in the outputs once the job completed. */
+        long videoFrames;
+        /** Segments of the job encoded at the same time. */
+        int parallelism = 1;
+        final List<Track> tracks = new ArrayList<>();
+
+        Record(
+                @NonNull String requestId,
+                @NonNull TranscodePath path,
+                @NonNull TranscodeScheduler.Priority priority,
+                long inputBytes,
+                long mediaDurationMs
+        ) {
+            this.requestId = requestId;
+            this.path = path;
+            this.priority = priority;
+            this.inputBytes = inputBytes;
+            this.mediaDurationMs = mediaDurationMs;
+        }
+
+        void setTarget(@NonNull MediaFormat videoFormat) {
+            targetMime = videoFormat.getString(MediaFormat.KEY_MIME);
+            targetWidth = videoFormat.getInteger(MediaFormat.KEY_WIDTH);
+            targetHeight = videoFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            targetFrameRate = videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+            targetBitrate = videoFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+
+        /**
+         * Video frames written per second of wall time.
+         */
+        double getEncodeFps() {
+            return wallMs > 0 ? (double) videoFrames * 1000 / wallMs : 0;
+        }
+
+        /**
+         * Seconds of media processed per second of wall time.
+         */
+        double getRealtimeFactor() {
+            return wallMs > 0 && mediaDurationMs > 0 ? (double) mediaDurationMs / wallMs : 0;
+        }
+
+        long getInputBitrate() {
+            return getBitrate(inputBytes);
+        }
+
+        long getOutputBitrate() {
+            return getBitrate(outputBytes);
+        }
+
+        private long getBitrate(long bytes) {
+            return mediaDurationMs > 0 && bytes > 0 ? bytes * 8 * 1000 / mediaDurationMs : 0;
+        }
+    }
+
+    static class Summary {
+        int jobs;
+        int succeeded;
+        int cancelled;
+        int failed;
+        double averageRealtimeFactor;
+        double averageEncodeFps;
+        long averageWallMs;
+        long averageQueueWaitMs;
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Record> mRecords = new ArrayDeque<>();
+
+    TranscodeMetrics(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Closes a record with what the job reported and keeps it in the store.
+     *
+     * @param job the scheduler job, if it is still known, for queue and run times
+     */
+    void close(
+            @NonNull Record record,
+            @NonNull Outcome outcome,
+            @Nullable TranscodeScheduler.Job job,
+            @Nullable String outputPath,
+            @Nullable List<TrackTransformationInfo> trackInfos
+    ) {
+        record.outcome = outcome;
+        record.finishedAt = System.currentTimeMillis();
+
+        if (job != null) {
+            record.queueWaitMs = job.getWaitMs();
+            record.wallMs = job.startedAt >= 0 ? SystemClock.elapsedRealtime() - job.startedAt : 0;
+        }
+
+        if (outputPath != null) {
+            File outputFile = new File(outputPath);
+            record.outputBytes = outputFile.isFile() ? outputFile.length() : 0;
+            if (outcome == Outcome.SUCCEEDED) {
+                record.videoFrames = countVideoFrames(outputFile);
+            }
+        }
+
+        if (trackInfos != null) {
+            for (TrackTransformationInfo info : trackInfos) {
+                Track track = new Track();
+                MediaFormat sourceFormat = info.getSourceFormat();
+                track.mime = sourceFormat != null ? sourceFormat.getString(MediaFormat.KEY_MIME) : null;
+                track.decoder = info.getDecoderCodec();
+                track.encoder = info.getEncoderCodec();
+                track.transformMs = info.getDuration();
+                record.tracks.add(track);
+            }
+        }
+
+        synchronized (this) {
+            mRecords.addLast(record);
+            while (mRecords.size() > capacity) {
+                mRecords.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Every encoded frame ends up as one sample of the video track, so the samples are the encoder output.
+     *
+     * @return video samples in the file, 0 if it can not be read
+     */
+    static long countVideoFrames(@NonNull File file) {
+        MediaExtractor mediaExtractor = new MediaExtractor();
+        try {
+            mediaExtractor.setDataSource(file.getPath());
+
+            for (int track = 0; track < mediaExtractor.getTrackCount(); track++) {
+                String mimeType = mediaExtractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME);
+                if (mimeType != null && mimeType.startsWith("video/")) {
+                    mediaExtractor.selectTrack(track);
+                    break;
+                }
+            }
+
+            long frames = 0;
+            while (mediaExtractor.getSampleTrackIndex() >= 0) {
+                frames++;
+                mediaExtractor.advance();
+            }
+            return frames;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            mediaExtractor.release();
+        }
+    }
+
+    /**
+     * @return closed records, oldest first
+     */
+    @NonNull
+    synchronized List<Record> getRecords() {
+        return new ArrayList<>(mRecords);
+    }
+
+    @NonNull
+    synchronized Summary getSummary() {
+        Summary summary = new Summary();
+        double realtimeFactors = 0;
+        double encodeFps = 0;
+        long wallMs = 0;
+        long queueWaitMs = 0;
+
+        for (Record record : mRecords) {
+            summary.jobs++;
+            queueWaitMs += record.queueWaitMs;
+
+            switch (record.outcome) {
+                case SUCCEEDED:
+                    summary.succeeded++;
+                    // only completed runs say anything about throughput
+                    realtimeFactors += record.getRealtimeFactor();
+                    encodeFps += record.getEncodeFps();
+                    wallMs += record.wallMs;
+                    break;
+                case CANCELLED:
+                    summary.cancelled++;
+                    break;
+                case FAILED:
+                    summary.failed++;
+                    break;
+            }
+        }
+
+        if (summary.succeeded > 0) {
+            summary.averageRealtimeFactor = realtimeFactors / summary.succeeded;
+            summary.averageEncodeFps = encodeFps / summary.succeeded;
+            summary.averageWallMs = wallMs / summary.succeeded;
+        }
+        if (summary.jobs > 0) {
+            summary.averageQueueWaitMs = queueWaitMs / summary.jobs;
+        }
+
+        return summary;
+    }
+}
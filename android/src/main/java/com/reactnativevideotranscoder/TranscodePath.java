@@ -0,0 +1,41 @@
+package com.reactnativevideotranscoder;
+
+/**
+ * How the tracks of a source end up in the output.
+ */
+enum TranscodePath {
+    /** Both tracks are decoded and encoded again. */
+    TRANSCODE("transcode"),
+    /** Video samples are copied as is, audio is encoded again. */
+    VIDEO_COPY("videoCopy"),
+    /** Video is encoded again, audio samples are copied as is. */
+    AUDIO_COPY("audioCopy"),
+    /** No codec is involved, samples are only moved into a new container. */
+    REMUX("remux");
+
+    private final String jsValue;
+
+    TranscodePath(String jsValue) {
+        this.jsValue = jsValue;
+    }
+
+    static TranscodePath of(boolean videoCopied, boolean audioCopied) {
+        if (videoCopied) {
+            return audioCopied ? REMUX : VIDEO_COPY;
+        }
+        return audioCopied ? AUDIO_COPY : TRANSCODE;
+    }
+
+    static TranscodePath fromJsValue(String value) {
+        for (TranscodePath path : values()) {
+            if (path.jsValue.equals(value)) {
+                return path;
+            }
+        }
+        return TRANSCODE;
+    }
+
+    String toJsValue() {
+        return jsValue;
+    }
+}
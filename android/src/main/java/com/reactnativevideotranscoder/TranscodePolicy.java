@@ -0,0 +1,105 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Chooses the bitrate and size of encoded video from the source and the requested
+ * quality. Plain Java without Android types, so decisions can be unit tested and
+ * benchmarked on a JVM.
+ */
+class TranscodePolicy {
+    enum Quality {
+        VERY_LOW(0.08, 1_000_000, 0.05),
+        LOW(0.1, 1_000_000, 0.07),
+        MEDIUM(0.2, 1_500_000, 0.09),
+        HIGH(0.3, 2_000_000, 0.12),
+        VERY_HIGH(0.5, 3_000_000, 0.16);
+
+        /** Share of the source bitrate kept. */
+        final double multiplier;
+        /** Bitrate the output does not go below, unless the source is below it already. */
+        final int minBitrate;
+        /** Bits per pixel of content of average complexity, for adaptive bitrates. */
+        final double bitsPerPixel;
+
+        Quality(double multiplier, int minBitrate, double bitsPerPixel) {
+            this.multiplier = multiplier;
+            this.minBitrate = minBitrate;
+            this.bitsPerPixel = bitsPerPixel;
+        }
+
+        static Quality fromString(@Nullable String value) {
+            for (Quality quality : values()) {
+                if (quality.name().equals(value)) {
+                    return quality;
+                }
+            }
+            return LOW;
+        }
+    }
+
+    static class Target {
+        final int width;
+        final int height;
+        final int bitrate;
+
+        Target(int width, int height, int bitrate) {
+            this.width = width;
+            this.height = height;
+            this.bitrate = bitrate;
+        }
+    }
+
+    @NonNull
+    static Target resolve(int width, int height, int bitrate, @NonNull Quality quality, boolean keepOriginalResolution) {
+        int[] size = getSize(width, height, keepOriginalResolution);
+        return new Target(size[0], size[1], getBitrate(bitrate, quality));
+    }
+
+    /**
+     * @param bitrate of the source, 0 or less when unknown
+     */
+    static int getBitrate(int bitrate, @NonNull Quality quality) {
+        if (bitrate <= 0) {
+            return quality.minBitrate;
+        }
+        // a source below the minimum is not made larger
+        if (bitrate < quality.minBitrate) {
+            return bitrate;
+        }
+        return Math.max(quality.minBitrate, (int) (bitrate * quality.multiplier));
+    }
+
+    /**
+     * @return width and height, both even; large sources shrink more than small ones
+     */
+    @NonNull
+    static int[] getSize(int width, int height, boolean keepOriginalResolution) {
+        double factor;
+        if (keepOriginalResolution) {
+            return new int[] { width, height };
+        } else if (width >= 1920 || height >= 1920) {
+            factor = 0.5;
+        } else if (width >= 1280 || height >= 1280) {
+            factor = 0.75;
+        } else if (width >= 960 || height >= 960) {
+            factor = 0.95;
+        } else {
+            factor = 0.9;
+        }
+
+        return new int[] { scaleEven(width, factor), scaleEven(height, factor) };
+    }
+
+    /**
+     * @return bytes a stream of this bitrate takes for the duration
+     */
+    static long getBytes(int bitrate, long durationMs) {
+        return (long) bitrate * durationMs / 8000;
+    }
+
+    private static int scaleEven(int value, double factor) {
+        return (int) Math.round(value * factor) + 1 & ~1;
+    }
+}
@@ -0,0 +1,278 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Content-addressed cache of transcoded outputs. An output is named after a
+ * fingerprint of the source and the resolved target formats, so an identical
+ * request can reuse it. Identical requests that arrive while the output is
+ * still being produced attach to the running transformation instead of
+ * starting a new one.
+ */
+class TranscodeResultCache {
+    private static final String FILE_PREFIX = "transcoded_";
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    static class InFlight {
+        final String fingerprint;
+        final String jobId;
+        final File outputFile;
+        final File partialFile;
+        final List<String> requestIds = new ArrayList<>();
+
+        boolean started = false;
+
+        InFlight(String fingerprint, String jobId, File outputFile, File partialFile) {
+            this.fingerprint = fingerprint;
+            this.jobId = jobId;
+            this.outputFile = outputFile;
+            this.partialFile = partialFile;
+        }
+    }
+
+    private final File directory;
+
+    private final Map<String, InFlight> mByFingerprint = new HashMap<>();
+    private final Map<String, InFlight> mByRequestId = new HashMap<>();
+
+    TranscodeResultCache(@NonNull File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return fingerprint of the job, or null when the source can not be identified reliably
+     */
+    @Nullable
+    static String fingerprint(
+            @NonNull SourceProbe.Result probe,
+            @Nullable MediaFormat targetVideoFormat,
+            @Nullable MediaFormat targetAudioFormat
+    ) {
+        return fingerprint(probe, targetVideoFormat, targetAudioFormat, null, false);
+    }
+
+    /**
+     * @param ranges parts of the source the output is made of, null for all of it
+     * @param dropAudio whether the output leaves the audio of the source out
+     */
+    @Nullable
+    static String fingerprint(
+            @NonNull SourceProbe.Result probe,
+            @Nullable MediaFormat targetVideoFormat,
+            @Nullable MediaFormat targetAudioFormat,
+            @Nullable SourceRanges ranges,
+            boolean dropAudio
+    ) {
+        if (probe.sizeBytes < 0 || probe.lastModified < 0) {
+            return null;
+        }
+
+        String description = probe.cacheKey
+                + "|video:" + describe(targetVideoFormat)
+                + "|audio:" + (dropAudio ? "none" : describe(targetAudioFormat));
+        if (ranges != null) {
+            description += "|ranges:" + ranges.describe();
+        }
+
+        return hash(description);
+    }
+
+    /**
+     * Names cached files after what they were made from.
+     *
+     * @return SHA-1 of the value as hex, or null when the platform has no SHA-1
+     */
+    @Nullable
+    static String hash(@NonNull String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(value.getBytes(Charset.forName("UTF-8")));
+
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    File getOutputFile(@NonNull String fingerprint) {
+        return new File(directory, FILE_PREFIX + fingerprint + ".mp4");
+    }
+
+    @Nullable
+    File getCachedOutput(@NonNull String fingerprint) {
+        synchronized (this) {
+            if (mByFingerprint.containsKey(fingerprint)) {
+                return null;
+            }
+        }
+
+        File outputFile = getOutputFile(fingerprint);
+        return outputFile.isFile() && outputFile.length() > 0 ? outputFile : null;
+    }
+
+    /**
+     * Attaches a request to the running transformation with the same fingerprint.
+     *
+     * @return the transformation the request was attached to, or null if there is none
+     */
+    @Nullable
+    synchronized InFlight attach(@NonNull String fingerprint, @NonNull String requestId) {
+        InFlight inFlight = mByFingerprint.get(fingerprint);
+        if (inFlight == null) {
+            return null;
+        }
+
+        inFlight.requestIds.add(requestId);
+        mByRequestId.put(requestId, inFlight);
+
+        return inFlight;
+    }
+
+    @NonNull
+    synchronized InFlight register(@NonNull String fingerprint, @NonNull String jobId) {
+        File outputFile = getOutputFile(fingerprint);
+        InFlight inFlight = new InFlight(fingerprint, jobId, outputFile,
+                new File(directory, outputFile.getName() + PARTIAL_SUFFIX));
+        inFlight.requestIds.add(jobId);
+
+        mByFingerprint.put(fingerprint, inFlight);
+        mByRequestId.put(jobId, inFlight);
+
+        return inFlight;
+    }
+
+    /**
+     * @return id of the transformation that produces the output of the request
+     */
+    @NonNull
+    synchronized String getJobId(@NonNull String requestId) {
+        InFlight inFlight = mByRequestId.get(requestId);
+        return inFlight != null ? inFlight.jobId : requestId;
+    }
+
+    /**
+     * @return requests that should receive the events of the transformation
+     */
+    @NonNull
+    synchronized List<String> getRequestIds(@NonNull String jobId) {
+        InFlight inFlight = mByRequestId.get(jobId);
+        if (inFlight == null || !inFlight.jobId.equals(jobId)) {
+            return inFlight == null ? Collections.singletonList(jobId) : Collections.<String>emptyList();
+        }
+        return new ArrayList<>(inFlight.requestIds);
+    }
+
+    synchronized void markStarted(@NonNull String jobId) {
+        InFlight inFlight = mByRequestId.get(jobId);
+        if (inFlight != null) {
+            inFlight.started = true;
+        }
+    }
+
+    /**
+     * Detaches a request from a transformation that other requests still wait for.
+     *
+     * @return true if the request was detached, false if it is the only one left and the
+     * transformation itself should be cancelled
+     */
+    synchronized boolean detach(@NonNull String requestId) {
+        InFlight inFlight = mByRequestId.get(requestId);
+        if (inFlight == null || inFlight.requestIds.size() < 2) {
+            return false;
+        }
+
+        inFlight.requestIds.remove(requestId);
+        if (!requestId.equals(inFlight.jobId)) {
+            mByRequestId.remove(requestId);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes a finished transformation. On success the partial output is moved
+     * into place, otherwise it is deleted.
+     *
+     * @return the finished transformation, or null if it was not registered here
+     */
+    @Nullable
+    InFlight complete(@NonNull String jobId, boolean succeeded) {
+        InFlight inFlight;
+
+        synchronized (this) {
+            inFlight = mByRequestId.get(jobId);
+            if (inFlight == null || !inFlight.jobId.equals(jobId)) {
+                return null;
+            }
+
+            mByFingerprint.remove(inFlight.fingerprint);
+            for (String requestId : inFlight.requestIds) {
+                mByRequestId.remove(requestId);
+            }
+            mByRequestId.remove(jobId);
+        }
+
+        if (!succeeded || !inFlight.partialFile.renameTo(inFlight.outputFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            inFlight.partialFile.delete();
+        }
+
+        return inFlight;
+    }
+
+    private static String describe(@Nullable MediaFormat mediaFormat) {
+        if (mediaFormat == null) {
+            return "copy";
+        }
+
+        // MediaFormat.toString() does not guarantee a stable key order
+        TreeSet<String> entries = new TreeSet<>();
+        String[] keys = new String[] {
+                MediaFormat.KEY_MIME,
+                MediaFormat.KEY_WIDTH,
+                MediaFormat.KEY_HEIGHT,
+                MediaFormat.KEY_BIT_RATE,
+                MediaFormat.KEY_FRAME_RATE,
+                MediaFormat.KEY_I_FRAME_INTERVAL,
+                MediaFormat.KEY_PROFILE,
+                MediaFormat.KEY_LEVEL,
+                MediaFormat.KEY_BITRATE_MODE,
+                MediaFormat.KEY_CHANNEL_COUNT,
+                MediaFormat.KEY_SAMPLE_RATE,
+                SourceProbe.KEY_ROTATION
+        };
+
+        for (String key : keys) {
+            if (!mediaFormat.containsKey(key)) {
+                continue;
+            }
+
+            if (MediaFormat.KEY_MIME.equals(key)) {
+                entries.add(key + "=" + mediaFormat.getString(key));
+            } else {
+                entries.add(key + "=" + mediaFormat.getInteger(key));
+            }
+        }
+
+        return entries.toString();
+    }
+}
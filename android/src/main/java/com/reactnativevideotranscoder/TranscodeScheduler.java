@@ -0,0 +1,275 @@
+package com.reactnativevideotranscoder;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded, prioritized queue in front of the shared MediaTransformer.
+ * Jobs are started in priority order, FIFO within the same priority,
+ * and running jobs never occupy more than {@code maxConcurrency} slots.
+ * A job that needs more slots than there are still runs, but only alone.
+ * A throttle can lower the slots further and hold background jobs back,
+ * running jobs are never interrupted by it.
+ */
+class TranscodeScheduler {
+    static final int DEFAULT_MAX_CONCURRENCY = 2;
+
+    private static final int MAX_FINISHED_STATES = 100;
+
+    enum Priority {
+        INTERACTIVE,
+        BACKGROUND;
+
+        static Priority fromString(@Nullable String value) {
+            return "background".equals(value) ? BACKGROUND : INTERACTIVE;
+        }
+    }
+
+    enum State {
+        QUEUED,
+        RUNNING,
+        FINISHED,
+        CANCELLED;
+
+        String toJsValue() {
+            return name().toLowerCase();
+        }
+    }
+
+    static class Job {
+        final String requestId;
+        final Priority priority;
+        final Runnable starter;
+        final int slots;
+
+        long sequence;
+        long enqueuedAt;
+        long startedAt = -1;
+        State state = State.QUEUED;
+
+        Job(@NonNull String requestId, @NonNull Priority priority, @NonNull Runnable starter) {
+            this(requestId, priority, 1, starter);
+        }
+
+        Job(@NonNull String requestId, @NonNull Priority priority, int slots, @NonNull Runnable starter) {
+            this.requestId = requestId;
+            this.priority = priority;
+            this.slots = Math.max(1, slots);
+            this.starter = starter;
+        }
+
+        long getWaitMs() {
+            return startedAt >= 0 ? startedAt - enqueuedAt : SystemClock.elapsedRealtime() - enqueuedAt;
+        }
+    }
+
+    static class Stats {
+        int maxConcurrency;
+        int throttledConcurrency;
+        boolean backgroundHeld;
+        int queued;
+        int running;
+        int usedSlots;
+        long started;
+        long averageWaitMs;
+        long maxWaitMs;
+        long oldestQueuedWaitMs;
+    }
+
+    private static final Comparator<Job> JOB_ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            int byPriority = a.priority.compareTo(b.priority);
+            return byPriority != 0 ? byPriority : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<>(11, JOB_ORDER);
+    private final Map<String, Job> mActiveJobs = new HashMap<>();
+    private final Map<String, State> mFinishedStates = new LinkedHashMap<String, State>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+            return size() > MAX_FINISHED_STATES;
+        }
+    };
+
+    private int mMaxConcurrency;
+    private int mThrottledConcurrency = 0;
+    private boolean mHoldBackground = false;
+    private int mRunning = 0;
+    private int mUsedSlots = 0;
+    private long mSequence = 0;
+
+    private long mStartedCount = 0;
+    private long mTotalWaitMs = 0;
+    private long mMaxWaitMs = 0;
+
+    TranscodeScheduler(int maxConcurrency) {
+        mMaxConcurrency = Math.max(1, maxConcurrency);
+    }
+
+    void submit(@NonNull Job job) {
+        synchronized (this) {
+            job.sequence = mSequence++;
+            job.enqueuedAt = SystemClock.elapsedRealtime();
+            job.state = State.QUEUED;
+
+            mActiveJobs.put(job.requestId, job);
+            mQueue.add(job);
+        }
+
+        drain();
+    }
+
+    /**
+     * Removes a job that has not started yet.
+     *
+     * @return true if the job was waiting in the queue, false if it is running or unknown
+     */
+    boolean cancelQueued(@NonNull String requestId) {
+        synchronized (this) {
+            Job job = mActiveJobs.get(requestId);
+            if (job == null || job.state != State.QUEUED) {
+                return false;
+            }
+
+            mQueue.remove(job);
+            mActiveJobs.remove(requestId);
+            job.state = State.CANCELLED;
+            mFinishedStates.put(requestId, State.CANCELLED);
+        }
+
+        return true;
+    }
+
+    /**
+     * Marks a running job as done and starts the next queued jobs, if any.
+     */
+    void finish(@NonNull String requestId, boolean cancelled) {
+        synchronized (this) {
+            Job job = mActiveJobs.remove(requestId);
+            if (job == null) {
+                return;
+            }
+
+            if (job.state == State.RUNNING) {
+                mRunning--;
+                mUsedSlots -= job.slots;
+            } else {
+                mQueue.remove(job);
+            }
+
+            job.state = cancelled ? State.CANCELLED : State.FINISHED;
+            mFinishedStates.put(requestId, job.state);
+        }
+
+        drain();
+    }
+
+    void setMaxConcurrency(int maxConcurrency) {
+        synchronized (this) {
+            mMaxConcurrency = Math.max(1, maxConcurrency);
+        }
+
+        drain();
+    }
+
+    /**
+     * Limits the slots to {@code maxConcurrency}, 0 for no limit, and keeps
+     * background jobs queued while {@code holdBackground} is set.
+     */
+    void setThrottle(int maxConcurrency, boolean holdBackground) {
+        synchronized (this) {
+            mThrottledConcurrency = Math.max(0, maxConcurrency);
+            mHoldBackground = holdBackground;
+        }
+
+        drain();
+    }
+
+    /**
+     * @return the slots jobs can use at the same time, with the throttle applied
+     */
+    synchronized int getMaxSlots() {
+        return mThrottledConcurrency > 0
+                ? Math.min(mMaxConcurrency, mThrottledConcurrency)
+                : mMaxConcurrency;
+    }
+
+    @Nullable
+    synchronized State getState(@NonNull String requestId) {
+        Job job = mActiveJobs.get(requestId);
+        return job != null ? job.state : mFinishedStates.get(requestId);
+    }
+
+    @Nullable
+    synchronized Job getJob(@NonNull String requestId) {
+        return mActiveJobs.get(requestId);
+    }
+
+    synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.maxConcurrency = mMaxConcurrency;
+        stats.throttledConcurrency = mThrottledConcurrency;
+        stats.backgroundHeld = mHoldBackground;
+        stats.queued = mQueue.size();
+        stats.running = mRunning;
+        stats.usedSlots = mUsedSlots;
+        stats.started = mStartedCount;
+        stats.averageWaitMs = mStartedCount > 0 ? mTotalWaitMs / mStartedCount : 0;
+        stats.maxWaitMs = mMaxWaitMs;
+
+        for (Job job : mQueue) {
+            stats.oldestQueuedWaitMs = Math.max(stats.oldestQueuedWaitMs, job.getWaitMs());
+        }
+
+        return stats;
+    }
+
+    private void drain() {
+        List<Job> toStart = new ArrayList<>();
+
+        synchronized (this) {
+            int maxConcurrency = getMaxSlots();
+
+            while (!mQueue.isEmpty()) {
+                // the head of the queue is never overtaken, so a large job can not starve
+                Job job = mQueue.peek();
+                if (mRunning > 0 && mUsedSlots + job.slots > maxConcurrency) {
+                    break;
+                }
+                // background jobs sort last, so a held head means only held jobs are left
+                if (mHoldBackground && job.priority == Priority.BACKGROUND) {
+                    break;
+                }
+
+                mQueue.poll();
+                job.state = State.RUNNING;
+                job.startedAt = SystemClock.elapsedRealtime();
+                mRunning++;
+                mUsedSlots += job.slots;
+
+                long waitMs = job.getWaitMs();
+                mStartedCount++;
+                mTotalWaitMs += waitMs;
+                mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+
+                toStart.add(job);
+            }
+        }
+
+        for (Job job : toStart) {
+            job.starter.run();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.reactnativevideotranscoder;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages and stage timings of one request. Messages above the level of the
+ * trace are never formatted; the last {@link #DEFAULT_CAPACITY} of them are
+ * kept, older ones are dropped. Stage timings are always kept.
+ */
+class TranscodeTrace {
+    static final int DEFAULT_CAPACITY = 128;
+
+    enum Level {
+        ERROR,
+        INFO,
+        DEBUG;
+
+        static Level fromString(@Nullable String value, @NonNull Level fallback) {
+            for (Level level : values()) {
+                if (level.toJsValue().equals(value)) {
+                    return level;
+                }
+            }
+            return fallback;
+        }
+
+        String toJsValue() {
+            return name().toLowerCase();
+        }
+    }
+
+    enum Stage {
+        PROBE,
+        RESOLVE,
+        QUEUE,
+        CODEC_SETUP,
+        FIRST_FRAME,
+        ENCODE,
+        MUX;
+
+        String toJsValue() {
+            String[] words = name().toLowerCase().split("_");
+            StringBuilder value = new StringBuilder(words[0]);
+            for (int index = 1; index < words.length; index++) {
+                value.append(Character.toUpperCase(words[index].charAt(0))).append(words[index].substring(1));
+            }
+            return value.toString();
+        }
+    }
+
+    static class Event {
+        /** Time since the trace started. */
+        final long atMs;
+        final Level level;
+        final String message;
+
+        Event(long atMs, Level level, String message) {
+            this.atMs = atMs;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    final String requestId;
+    final Level level;
+    /** Whether messages are sent to JS as they are recorded. */
+    final boolean emit;
+
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private final Event[] mEvents;
+    private int mCount = 0;
+    private long mDropped = 0;
+    private final long[] mStageStarts = new long[Stage.values().length];
+    private final long[] mStageDurations = new long[Stage.values().length];
+
+    TranscodeTrace(@NonNull String requestId, @NonNull Level level, boolean emit, int capacity) {
+        this.requestId = requestId;
+        this.level = level;
+        this.emit = emit;
+        mEvents = new Event[capacity];
+        for (int stage = 0; stage < mStageStarts.length; stage++) {
+            mStageStarts[stage] = -1;
+            mStageDurations[stage] = -1;
+        }
+    }
+
+    boolean isEnabled(@NonNull Level level) {
+        return level.ordinal() <= this.level.ordinal();
+    }
+
+    synchronized void record(@NonNull Level level, @NonNull String message) {
+        if (mCount >= mEvents.length) {
+            mDropped++;
+        }
+        mEvents[mCount % mEvents.length] = new Event(SystemClock.elapsedRealtime() - startedAt, level, message);
+        mCount++;
+    }
+
+    synchronized void begin(@NonNull Stage stage) {
+        if (mStageStarts[stage.ordinal()] < 0) {
+            mStageStarts[stage.ordinal()] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Ends a stage that was begun and not ended yet, later calls keep the first duration.
+     *
+     * @return the duration of the stage, -1 if it was not ended now
+     */
+    synchronized long end(@NonNull Stage stage) {
+        int index = stage.ordinal();
+        if (mStageStarts[index] < 0 || mStageDurations[index] >= 0) {
+            return -1;
+        }
+        mStageDurations[index] = SystemClock.elapsedRealtime() - mStageStarts[index];
+        return mStageDurations[index];
+    }
+
+    /**
+     * @return duration of the stage, -1 if it did not end
+     */
+    synchronized long getDurationMs(@NonNull Stage stage) {
+        return mStageDurations[stage.ordinal()];
+    }
+
+    /**
+     * @return kept messages, oldest first
+     */
+    @NonNull
+    synchronized List<Event> getEvents() {
+        List<Event> events = new ArrayList<>();
+        int first = (int) Math.max(0, mCount - mEvents.length);
+        for (int index = first; index < mCount; index++) {
+            events.add(mEvents[index % mEvents.length]);
+        }
+        return events;
+    }
+
+    synchronized long getDropped() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,157 @@
+package com.reactnativevideotranscoder;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the traces of the latest requests and routes messages to them. Code that
+ * runs for a request enters its trace, so messages logged on that thread land in
+ * it without passing the request around. A message is formatted only when the
+ * trace or logcat wants it; its arguments are still evaluated and boxed, so call
+ * sites that build them at a cost check {@link #isEnabled} first.
+ */
+class TranscodeTracer {
+    static final int MAX_TRACES = 50;
+
+    interface Sink {
+        /** Called for messages of traces that emit. */
+        void onMessage(@NonNull TranscodeTrace trace, @NonNull TranscodeTrace.Level level, @NonNull String message);
+    }
+
+    /** Restores the trace entered before. */
+    interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final String tag;
+    private final Sink sink;
+    private final ThreadLocal<TranscodeTrace> mCurrent = new ThreadLocal<>();
+    private final Map<String, TranscodeTrace> mTraces = new LinkedHashMap<String, TranscodeTrace>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TranscodeTrace> eldest) {
+            return size() > MAX_TRACES;
+        }
+    };
+
+    private volatile TranscodeTrace.Level mLogLevel = TranscodeTrace.Level.ERROR;
+
+    TranscodeTracer(@NonNull String tag, @NonNull Sink sink) {
+        this.tag = tag;
+        this.sink = sink;
+    }
+
+    /**
+     * Messages outside of traces and of traces at a lower level go to logcat up to this level.
+     */
+    void setLogLevel(@NonNull TranscodeTrace.Level level) {
+        mLogLevel = level;
+    }
+
+    /**
+     * Starts a trace for the request, replacing an earlier one with the same id.
+     */
+    @NonNull
+    TranscodeTrace start(@NonNull String requestId, @NonNull TranscodeTrace.Level level, boolean emit) {
+        TranscodeTrace trace = new TranscodeTrace(requestId, level, emit, TranscodeTrace.DEFAULT_CAPACITY);
+        synchronized (mTraces) {
+            mTraces.remove(requestId);
+            mTraces.put(requestId, trace);
+        }
+        return trace;
+    }
+
+    @Nullable
+    TranscodeTrace get(@NonNull String requestId) {
+        synchronized (mTraces) {
+            return mTraces.get(requestId);
+        }
+    }
+
+    @NonNull
+    Scope enter(@Nullable TranscodeTrace trace) {
+        final TranscodeTrace previous = mCurrent.get();
+        mCurrent.set(trace);
+        return () -> mCurrent.set(previous);
+    }
+
+    /**
+     * Leaves whatever trace was entered on this thread.
+     */
+    void exit() {
+        mCurrent.remove();
+    }
+
+    boolean isEnabled(@NonNull TranscodeTrace.Level level) {
+        TranscodeTrace trace = mCurrent.get();
+        return level.ordinal() <= mLogLevel.ordinal() || (trace != null && trace.isEnabled(level));
+    }
+
+    /**
+     * Logs to the trace entered on this thread, if any.
+     */
+    void log(@NonNull TranscodeTrace.Level level, @Nullable Throwable error, @NonNull String format, Object... args) {
+        log(mCurrent.get(), level, error, format, args);
+    }
+
+    void log(
+            @Nullable TranscodeTrace trace,
+            @NonNull TranscodeTrace.Level level,
+            @Nullable Throwable error,
+            @NonNull String format,
+            Object... args
+    ) {
+        boolean traced = trace != null && trace.isEnabled(level);
+        if (!traced && level.ordinal() > mLogLevel.ordinal()) {
+            return;
+        }
+
+        String message = args.length > 0 ? String.format(format, args) : format;
+        if (level == TranscodeTrace.Level.ERROR) {
+            Log.e(tag, message, error);
+        } else if (level == TranscodeTrace.Level.INFO) {
+            Log.i(tag, message);
+        } else {
+            Log.d(tag, message);
+        }
+
+        if (traced) {
+            trace.record(level, message);
+            if (trace.emit) {
+                sink.onMessage(trace, level, message);
+            }
+        }
+    }
+
+    /**
+     * Ends a stage of the trace and logs its duration at debug level.
+     */
+    void end(@Nullable TranscodeTrace trace, @NonNull TranscodeTrace.Stage stage) {
+        if (trace == null) {
+            return;
+        }
+
+        long durationMs = trace.end(stage);
+        if (durationMs >= 0 && trace.isEnabled(TranscodeTrace.Level.DEBUG)) {
+            log(trace, TranscodeTrace.Level.DEBUG, null, "request %s %s took %d ms",
+                    trace.requestId, stage.toJsValue(), durationMs);
+        }
+    }
+
+    /**
+     * Ends one stage and begins the next one.
+     */
+    void next(@Nullable TranscodeTrace trace, @NonNull TranscodeTrace.Stage ended, @NonNull TranscodeTrace.Stage begun) {
+        if (trace == null) {
+            return;
+        }
+
+        end(trace, ended);
+        trace.begin(begun);
+    }
+}
@@ -0,0 +1,338 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.linkedin.android.litr.MediaTransformer;
+import com.linkedin.android.litr.TransformationListener;
+import com.linkedin.android.litr.TransformationOptions;
+import com.linkedin.android.litr.analytics.TrackTransformationInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs several transformations as one job. Parts run concurrently up to
+ * {@code maxParallel}, their progress is aggregated by weight and reported to
+ * the parent listener under the group id, and one cancel cancels all of them.
+ * An optional finisher runs off the main thread after every part completed,
+ * e.g. to join the parts into the final output.
+ */
+class TransformGroup {
+    interface Finisher {
+        void finish() throws Exception;
+    }
+
+    interface OnPartCompletedListener {
+        void onPartCompleted(int index);
+    }
+
+    static class Part {
+        final String id;
+        final Uri sourceUri;
+        final String outputPath;
+        @Nullable final MediaFormat targetVideoFormat;
+        @Nullable final MediaFormat targetAudioFormat;
+        @Nullable final TransformationOptions options;
+        final long weight;
+
+        float progress = 0;
+        boolean started = false;
+        boolean finished = false;
+
+        Part(@NonNull String id, @NonNull Uri sourceUri, @NonNull String outputPath,
+             @Nullable MediaFormat targetVideoFormat, @Nullable MediaFormat targetAudioFormat,
+             @Nullable TransformationOptions options, long weight) {
+            this.id = id;
+            this.sourceUri = sourceUri;
+            this.outputPath = outputPath;
+            this.targetVideoFormat = targetVideoFormat;
+            this.targetAudioFormat = targetAudioFormat;
+            this.options = options;
+            this.weight = Math.max(1, weight);
+        }
+    }
+
+    private static final ExecutorService FINISHER_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final MediaTransformer mediaTransformer;
+    private final String groupId;
+    private final int maxParallel;
+    private final TransformationListener parentListener;
+    @Nullable private final Finisher finisher;
+    @Nullable private OnPartCompletedListener mOnPartCompletedListener;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Part> mParts = new ArrayList<>();
+    private final List<TrackTransformationInfo> mTrackInfos = new ArrayList<>();
+
+    private int mRunning = 0;
+    private boolean mCancelled = false;
+    @Nullable private Throwable mError = null;
+    private boolean mTerminated = false;
+
+    TransformGroup(
+            @NonNull MediaTransformer mediaTransformer,
+            @NonNull String groupId,
+            int maxParallel,
+            @NonNull TransformationListener parentListener,
+            @Nullable Finisher finisher
+    ) {
+        this.mediaTransformer = mediaTransformer;
+        this.groupId = groupId;
+        this.maxParallel = Math.max(1, maxParallel);
+        this.parentListener = parentListener;
+        this.finisher = finisher;
+    }
+
+    void addPart(@NonNull Part part) {
+        mParts.add(part);
+    }
+
+    /**
+     * Adds a part whose output already exists from an earlier run.
+     */
+    void addCompletedPart(@NonNull Part part) {
+        part.started = true;
+        part.finished = true;
+        mParts.add(part);
+    }
+
+    void setOnPartCompletedListener(@Nullable OnPartCompletedListener listener) {
+        mOnPartCompletedListener = listener;
+    }
+
+    @NonNull
+    List<Part> getParts() {
+        return mParts;
+    }
+
+    void start() {
+        parentListener.onStarted(groupId);
+
+        startPendingParts();
+        // every part may already be complete when a job is resumed
+        terminateIfIdle();
+    }
+
+    void cancel() {
+        List<String> running = new ArrayList<>();
+
+        synchronized (this) {
+            if (mCancelled || mTerminated) {
+                return;
+            }
+            mCancelled = true;
+
+            for (Part part : mParts) {
+                if (part.started && !part.finished) {
+                    running.add(part.id);
+                }
+            }
+        }
+
+        for (String id : running) {
+            mediaTransformer.cancel(id);
+        }
+
+        mHandler.post(this::terminateIfIdle);
+    }
+
+    private void startPendingParts() {
+        List<Part> toStart = new ArrayList<>();
+
+        synchronized (this) {
+            if (mCancelled || mError != null) {
+                return;
+            }
+
+            for (Part part : mParts) {
+                if (mRunning >= maxParallel) {
+                    break;
+                }
+                if (!part.started) {
+                    part.started = true;
+                    mRunning++;
+                    toStart.add(part);
+                }
+            }
+        }
+
+        for (Part part : toStart) {
+            try {
+                mediaTransformer.transform(
+                        part.id,
+                        part.sourceUri,
+                        part.outputPath,
+                        part.targetVideoFormat,
+                        part.targetAudioFormat,
+                        mPartListener,
+                        part.options
+                );
+            } catch (Throwable e) {
+                mPartListener.onError(part.id, e, null);
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized Part findPart(@NonNull String id) {
+        for (Part part : mParts) {
+            if (part.id.equals(id)) {
+                return part;
+            }
+        }
+        return null;
+    }
+
+    private synchronized float getProgress() {
+        long totalWeight = 0;
+        double done = 0;
+
+        for (Part part : mParts) {
+            totalWeight += part.weight;
+            done += part.weight * (part.finished ? 1 : part.progress);
+        }
+
+        return totalWeight > 0 ? (float) (done / totalWeight) : 0;
+    }
+
+    private void onPartFinished(@NonNull Part part, @Nullable List<TrackTransformationInfo> trackInfos) {
+        synchronized (this) {
+            part.finished = true;
+            mRunning--;
+
+            if (trackInfos != null) {
+                mTrackInfos.addAll(trackInfos);
+            }
+        }
+    }
+
+    private void terminateIfIdle() {
+        final Throwable error;
+        final boolean cancelled;
+
+        synchronized (this) {
+            if (mTerminated || mRunning > 0) {
+                return;
+            }
+
+            boolean allFinished = true;
+            for (Part part : mParts) {
+                allFinished &= part.finished;
+            }
+
+            if (!mCancelled && mError == null && !allFinished) {
+                return;
+            }
+
+            mTerminated = true;
+            error = mError;
+            cancelled = mCancelled;
+        }
+
+        if (cancelled) {
+            parentListener.onCancelled(groupId, mTrackInfos);
+        } else if (error != null) {
+            parentListener.onError(groupId, error, mTrackInfos);
+        } else if (finisher != null) {
+            FINISHER_EXECUTOR.execute(() -> {
+                try {
+                    finisher.finish();
+                    mHandler.post(() -> parentListener.onCompleted(groupId, mTrackInfos));
+                } catch (Throwable e) {
+                    mHandler.post(() -> parentListener.onError(groupId, e, mTrackInfos));
+                }
+            });
+        } else {
+            parentListener.onCompleted(groupId, mTrackInfos);
+        }
+    }
+
+    private final TransformationListener mPartListener = new TransformationListener() {
+        @Override
+        public void onStarted(@NonNull String id) {
+        }
+
+        @Override
+        public void onProgress(@NonNull String id, float progress) {
+            Part part = findPart(id);
+            if (part == null) {
+                return;
+            }
+
+            synchronized (TransformGroup.this) {
+                part.progress = progress;
+            }
+
+            parentListener.onProgress(groupId, getProgress());
+        }
+
+        @Override
+        public void onCompleted(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+            Part part = findPart(id);
+            if (part == null) {
+                return;
+            }
+
+            onPartFinished(part, trackTransformationInfos);
+            parentListener.onProgress(groupId, getProgress());
+
+            if (mOnPartCompletedListener != null) {
+                mOnPartCompletedListener.onPartCompleted(mParts.indexOf(part));
+            }
+
+            startPendingParts();
+            terminateIfIdle();
+        }
+
+        @Override
+        public void onCancelled(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+            Part part = findPart(id);
+            if (part == null) {
+                return;
+            }
+
+            onPartFinished(part, trackTransformationInfos);
+            terminateIfIdle();
+        }
+
+        @Override
+        public void onError(@NonNull String id, @Nullable Throwable cause, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+            Part part = findPart(id);
+            if (part == null) {
+                return;
+            }
+
+            List<String> running = new ArrayList<>();
+
+            synchronized (TransformGroup.this) {
+                if (mError == null) {
+                    mError = cause != null ? cause : new IllegalStateException(String.format("Part %s failed", id));
+
+                    for (Part other : mParts) {
+                        if (other != part && other.started && !other.finished) {
+                            running.add(other.id);
+                        }
+                    }
+                }
+            }
+
+            onPartFinished(part, trackTransformationInfos);
+
+            // one failed part fails the whole group
+            for (String runningId : running) {
+                mediaTransformer.cancel(runningId);
+            }
+
+            terminateIfIdle();
+        }
+    };
+}
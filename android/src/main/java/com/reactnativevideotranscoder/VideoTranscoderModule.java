@@ -1,14 +1,11 @@
 package com.reactnativevideotranscoder;
 
 import android.content.Context;
-import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Environment;
+import android.os.Looper;
 import android.text.TextUtils;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -20,19 +17,31 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.linkedin.android.litr.MediaTransformer;
 import com.linkedin.android.litr.TransformationListener;
+import com.linkedin.android.litr.TransformationOptions;
 import com.linkedin.android.litr.analytics.TrackTransformationInfo;
+import com.linkedin.android.litr.io.MediaRange;
 import com.linkedin.android.litr.utils.CodecUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @ReactModule(name = VideoTranscoderModule.NAME)
 public class VideoTranscoderModule extends ReactContextBaseJavaModule {
@@ -41,21 +50,106 @@ public class VideoTranscoderModule extends ReactContextBaseJavaModule {
     private final ReactApplicationContext reactContext;
     private final Context appContext;
 
-    private MediaTransformer mMediaTransformer = null;
+    private final MediaTransformer mMediaTransformer;
 
-    private Boolean mDebugEnabled = false;
+    private final TranscodeScheduler mScheduler = new TranscodeScheduler(TranscodeScheduler.DEFAULT_MAX_CONCURRENCY);
 
-    private static final String KEY_ROTATION = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
-        ? MediaFormat.KEY_ROTATION
-        : "rotation-degrees";
+    private final SourceProbe mSourceProbe;
+
+    private final ComplexityProbe mComplexityProbe;
+
+    private final TranscodeResultCache mResultCache;
+
+    private final OutputCacheManager mOutputCache;
+
+    private final Map<String, TransformGroup> mGroups = new ConcurrentHashMap<>();
+
+    private final Map<String, SizeCappedTransform> mSizeCappedTransforms = new ConcurrentHashMap<>();
+    /** Jobs run on CodecPipeline instead of MediaTransformer, by job id. */
+    private final Map<String, CodecPipeline> mPipelines = new ConcurrentHashMap<>();
+
+    private final Map<String, TranscodeJournal> mJournals = new ConcurrentHashMap<>();
+    /** Listeners of jobs the scheduler has not started yet, by job id. */
+    private final Map<String, TransformationListener> mQueuedListeners = new ConcurrentHashMap<>();
+    /** Batches by batch id, oldest first; finished ones stay for retries until newer ones push them out. */
+    private final Map<String, TranscodeBatch> mBatches = new LinkedHashMap<>();
+    /** Batch of every item request. */
+    private final Map<String, TranscodeBatch> mBatchItems = new ConcurrentHashMap<>();
+
+    private final TranscodeMetrics mMetrics = new TranscodeMetrics(TranscodeMetrics.DEFAULT_CAPACITY);
+
+    private final ThroughputHistory mThroughput;
+
+    private final ThrottleController mThrottle;
+
+    private final FrameExtractor mFrameExtractor;
+    /** Frames are extracted one source after another, off the thread of the bridge. */
+    private final ExecutorService mFrameExecutor = Executors.newSingleThreadExecutor();
+    /** Jobs the scheduler let go are started one after another, starting one may configure codecs. */
+    private final ExecutorService mStartExecutor = Executors.newSingleThreadExecutor();
+    /** Jobs handed to the start executor and not started yet, with whether they were cancelled meanwhile. */
+    private final Map<String, Boolean> mStarting = new HashMap<>();
+
+    private static final long CHECKPOINT_SEGMENT_DURATION_US = 30_000_000L;
+    private static final int MAX_FINISHED_BATCHES = 10;
+
+    private interface JobStarter {
+        void start(TransformationListener listener) throws Exception;
+    }
+
+    /**
+     * One output of a ladder.
+     */
+    private static class Rendition {
+        final String quality;
+        @Nullable final MediaFormat targetVideoFormat;
+        final TranscodePath path;
+
+        String outputPath;
+        boolean cached = false;
+        /** Rendition with an identical output this one shares. */
+        @Nullable Rendition sameAs;
+
+        Rendition(String quality, @Nullable MediaFormat targetVideoFormat, TranscodePath path) {
+            this.quality = quality;
+            this.targetVideoFormat = targetVideoFormat;
+            this.path = path;
+        }
+    }
+
+    private final ProgressDispatcher mProgressDispatcher = new ProgressDispatcher(this::sendOnProgressBatch);
+
+    private final TranscodeTracer mTracer = new TranscodeTracer(NAME, this::emitOnDebug);
+
+    private static final String KEY_ROTATION = SourceProbe.KEY_ROTATION;
 
     public VideoTranscoderModule(ReactApplicationContext reactContext) {
+        // concurrency is bounded by mScheduler, so the transformer itself must not serialize jobs
+        this(reactContext,
+                new MediaTransformer(reactContext.getApplicationContext(), Looper.getMainLooper(), Executors.newCachedThreadPool()),
+                new SourceProbe(reactContext.getApplicationContext()));
+    }
+
+    /**
+     * Takes the transformer and the probe from the caller, so jobs can run without codecs or media files.
+     */
+    VideoTranscoderModule(ReactApplicationContext reactContext, MediaTransformer mediaTransformer, SourceProbe sourceProbe) {
         super(reactContext);
 
         this.reactContext = reactContext;
         this.appContext = reactContext.getApplicationContext();
 
-        mMediaTransformer = new MediaTransformer(this.appContext);
+        mMediaTransformer = mediaTransformer;
+        mSourceProbe = sourceProbe;
+        mComplexityProbe = new ComplexityProbe(this.appContext);
+        mResultCache = new TranscodeResultCache(reactContext.getCacheDir());
+        mOutputCache = new OutputCacheManager(reactContext.getCacheDir());
+        mThroughput = new ThroughputHistory(reactContext.getFilesDir());
+        mFrameExtractor = new FrameExtractor(this.appContext, reactContext.getCacheDir());
+        mOutputCache.trimAsync();
+
+        mThrottle = new ThrottleController(new AndroidDeviceConditionSource(this.appContext), mScheduler, this::onThrottleChanged);
+        mThrottle.start();
     }
 
     @Override
@@ -64,248 +158,1759 @@ public class VideoTranscoderModule extends ReactContextBaseJavaModule {
         return NAME;
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        mThrottle.stop();
+    }
+
     @ReactMethod
     public void cancelCompress(String requestId) {
-        mMediaTransformer.cancel(requestId);
+        TranscodeBatch batch = getBatch(requestId);
+        if (batch != null) {
+            // queued items go first, so none of them takes the slot of a cancelled running one
+            for (TranscodeBatch.Item item : batch.getItems()) {
+                if (item.state == TranscodeBatch.State.QUEUED) {
+                    cancelBatchItem(batch, item);
+                }
+            }
+            for (TranscodeBatch.Item item : batch.getItems()) {
+                cancelBatchItem(batch, item);
+            }
+            return;
+        }
+
+        // other identical requests still wait for the same output
+        if (mResultCache.detach(requestId)) {
+            mProgressDispatcher.finish(requestId);
+            sendOnCancelled(requestId);
+            return;
+        }
+
+        String jobId = mResultCache.getJobId(requestId);
+        if (mScheduler.cancelQueued(jobId)) {
+            // the listener closes the metrics record and frees what the job held, as for a job cancelled while it starts
+            TransformationListener listener = mQueuedListeners.remove(jobId);
+            if (listener != null) {
+                listener.onCancelled(jobId, null);
+            }
+        } else {
+            cancelRunning(jobId);
+        }
+    }
+
+    /**
+     * Cancels a job the scheduler started. A job that is still starting is cancelled once it has.
+     */
+    private void cancelRunning(String jobId) {
+        synchronized (mStarting) {
+            if (mStarting.containsKey(jobId)) {
+                mStarting.put(jobId, true);
+                return;
+            }
+        }
+
+        if (mGroups.containsKey(jobId)) {
+            mGroups.get(jobId).cancel();
+        } else if (mSizeCappedTransforms.containsKey(jobId)) {
+            mSizeCappedTransforms.get(jobId).cancel();
+        } else if (mPipelines.containsKey(jobId)) {
+            mPipelines.get(jobId).cancel();
+        } else {
+            mMediaTransformer.cancel(jobId);
+        }
+    }
+
+    @ReactMethod
+    public void setMaxConcurrency(int maxConcurrency) {
+        mScheduler.setMaxConcurrency(maxConcurrency);
+    }
+
+    @ReactMethod
+    public void setProgressOptions(ReadableMap options) {
+        long minIntervalMs = options.hasKey("intervalMs")
+                ? (long) options.getDouble("intervalMs")
+                : ProgressDispatcher.DEFAULT_MIN_INTERVAL_MS;
+        float minDelta = options.hasKey("minDelta")
+                ? (float) options.getDouble("minDelta")
+                : ProgressDispatcher.DEFAULT_MIN_DELTA;
+
+        mProgressDispatcher.setOptions(minIntervalMs, minDelta);
+    }
+
+    @ReactMethod
+    public void setThrottleOptions(ReadableMap options) {
+        boolean enabled = !options.hasKey("enabled") || options.getBoolean("enabled");
+
+        DefaultThrottlePolicy policy = new DefaultThrottlePolicy();
+        if (options.hasKey("moderateThermalStatus")) {
+            policy.moderateThermalStatus = options.getInt("moderateThermalStatus");
+        }
+        if (options.hasKey("severeThermalStatus")) {
+            policy.severeThermalStatus = options.getInt("severeThermalStatus");
+        }
+        if (options.hasKey("lowBatteryLevel")) {
+            policy.lowBatteryLevel = options.getInt("lowBatteryLevel");
+        }
+        if (options.hasKey("throttleOnPowerSave")) {
+            policy.throttleOnPowerSave = options.getBoolean("throttleOnPowerSave");
+        }
+        if (options.hasKey("severeSizeScale")) {
+            policy.severeSizeScale = Math.min(1f, Math.max(0.1f, (float) options.getDouble("severeSizeScale")));
+        }
+        if (options.hasKey("severeMaxFrameRate")) {
+            policy.severeMaxFrameRate = Math.max(0, options.getInt("severeMaxFrameRate"));
+        }
+        if (options.hasKey("lowBatteryMaxFrameRate")) {
+            policy.lowBatteryMaxFrameRate = Math.max(0, options.getInt("lowBatteryMaxFrameRate"));
+        }
+
+        mThrottle.setPolicy(policy, enabled);
+    }
+
+    @ReactMethod
+    public void getQueueStats(final Promise promise) {
+        TranscodeScheduler.Stats stats = mScheduler.getStats();
+
+        WritableMap result = Arguments.createMap();
+        result.putInt("maxConcurrency", stats.maxConcurrency);
+        result.putInt("queued", stats.queued);
+        result.putInt("running", stats.running);
+        result.putInt("usedSlots", stats.usedSlots);
+        result.putDouble("started", stats.started);
+        result.putDouble("averageWaitMs", stats.averageWaitMs);
+        result.putDouble("maxWaitMs", stats.maxWaitMs);
+        result.putDouble("oldestQueuedWaitMs", stats.oldestQueuedWaitMs);
+        result.putInt("throttledConcurrency", stats.throttledConcurrency);
+        result.putBoolean("backgroundHeld", stats.backgroundHeld);
+        result.putString("throttleReason", mThrottle.getDecision().reason);
+
+        promise.resolve(result);
+    }
+
+    /**
+     * Stage timings and the latest messages of a request, null when it is not traced (anymore).
+     */
+    @ReactMethod
+    public void dumpTrace(String requestId, final Promise promise) {
+        TranscodeTrace trace = mTracer.get(requestId);
+        if (trace == null) {
+            promise.resolve(null);
+            return;
+        }
+
+        WritableMap stages = Arguments.createMap();
+        for (TranscodeTrace.Stage stage : TranscodeTrace.Stage.values()) {
+            long durationMs = trace.getDurationMs(stage);
+            if (durationMs >= 0) {
+                stages.putDouble(stage.toJsValue(), durationMs);
+            }
+        }
+
+        WritableArray events = Arguments.createArray();
+        for (TranscodeTrace.Event event : trace.getEvents()) {
+            WritableMap item = Arguments.createMap();
+            item.putDouble("atMs", event.atMs);
+            item.putString("level", event.level.toJsValue());
+            item.putString("message", event.message);
+            events.pushMap(item);
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putString("requestId", trace.requestId);
+        result.putString("level", trace.level.toJsValue());
+        result.putMap("stages", stages);
+        result.putArray("events", events);
+        result.putDouble("dropped", trace.getDropped());
+
+        promise.resolve(result);
+    }
+
+    /**
+     * Level up to which messages go to logcat, whatever the level of the request they belong to.
+     */
+    @ReactMethod
+    public void setLogLevel(String level) {
+        mTracer.setLogLevel(TranscodeTrace.Level.fromString(level, TranscodeTrace.Level.ERROR));
+    }
+
+    @ReactMethod
+    public void getJobState(String requestId, final Promise promise) {
+        TranscodeScheduler.State state = mScheduler.getState(mResultCache.getJobId(requestId));
+
+        promise.resolve(state != null ? state.toJsValue() : null);
+    }
+
+    @ReactMethod
+    public void getTranscodeStats(final Promise promise) {
+        TranscodeMetrics.Summary summary = mMetrics.getSummary();
+
+        WritableMap summaryMap = Arguments.createMap();
+        summaryMap.putInt("jobs", summary.jobs);
+        summaryMap.putInt("succeeded", summary.succeeded);
+        summaryMap.putInt("cancelled", summary.cancelled);
+        summaryMap.putInt("failed", summary.failed);
+        summaryMap.putDouble("averageRealtimeFactor", summary.averageRealtimeFactor);
+        summaryMap.putDouble("averageEncodeFps", summary.averageEncodeFps);
+        summaryMap.putDouble("averageWallMs", summary.averageWallMs);
+        summaryMap.putDouble("averageQueueWaitMs", summary.averageQueueWaitMs);
+
+        WritableArray jobs = Arguments.createArray();
+        for (TranscodeMetrics.Record record : mMetrics.getRecords()) {
+            jobs.pushMap(createMetricsMap(record));
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putMap("summary", summaryMap);
+        result.putArray("jobs", jobs);
+
+        promise.resolve(result);
+    }
+
+    @ReactMethod
+    public void setCacheOptions(ReadableMap options) {
+        long maxBytes = options.hasKey("maxBytes")
+                ? (long) options.getDouble("maxBytes")
+                : mOutputCache.getMaxBytes();
+        long maxAgeMs = options.hasKey("maxAgeMs")
+                ? (long) options.getDouble("maxAgeMs")
+                : mOutputCache.getMaxAgeMs();
+
+        mOutputCache.setLimits(maxBytes, maxAgeMs);
+        mOutputCache.trimAsync();
+    }
+
+    @ReactMethod
+    public void getCacheUsage(final Promise promise) {
+        OutputCacheManager.Usage usage = mOutputCache.getUsage();
+
+        WritableMap result = Arguments.createMap();
+        result.putDouble("bytes", usage.bytes);
+        result.putInt("files", usage.files);
+        result.putDouble("maxBytes", mOutputCache.getMaxBytes());
+        result.putDouble("maxAgeMs", mOutputCache.getMaxAgeMs());
+
+        promise.resolve(result);
+    }
+
+    @ReactMethod
+    public void trimCache(ReadableMap options, final Promise promise) {
+        long maxBytes = options.hasKey("maxBytes")
+                ? (long) options.getDouble("maxBytes")
+                : mOutputCache.getMaxBytes();
+        long maxAgeMs = options.hasKey("maxAgeMs")
+                ? (long) options.getDouble("maxAgeMs")
+                : mOutputCache.getMaxAgeMs();
+
+        mOutputCache.trimAsync(maxBytes, maxAgeMs, trimResult -> {
+            WritableMap result = Arguments.createMap();
+            result.putDouble("removedBytes", trimResult.removedBytes);
+            result.putInt("removedFiles", trimResult.removedFiles);
+
+            promise.resolve(result);
+        });
+    }
+
+    @ReactMethod
+    public void probe(String sourcePath, final Promise promise) {
+        try {
+            SourceProbe.Result probe = mSourceProbe.probe(Uri.parse(sourcePath));
+
+            WritableMap result = Arguments.createMap();
+            result.putDouble("duration", probe.durationMs);
+            result.putDouble("size", probe.sizeBytes);
+            result.putInt("bitrate", probe.bitrate);
+            result.putInt("rotation", probe.rotation);
+            result.putInt("width", probe.width);
+            result.putInt("height", probe.height);
+            result.putMap("video", probe.videoFormat != null ? createFormatMap(probe.videoFormat) : null);
+            result.putMap("audio", probe.audioFormat != null ? createFormatMap(probe.audioFormat) : null);
+
+            promise.resolve(result);
+        } catch (Throwable e) {
+            logError(e.getMessage(), e);
+            promise.reject("error", e.getMessage());
+        }
     }
 
     @ReactMethod
     public void compress(String requestId, String sourcePath, ReadableMap options, final Promise promise) {
+        try {
+            startCompress(requestId, sourcePath, options);
+
+            promise.resolve(requestId);
+        } catch (Throwable e) {
+            logError(e.getMessage(), e);
+            promise.reject("error", e.getMessage());
+        }
+    }
+
+    /**
+     * Predicts output size and wall time of {@link #compress} with the same options from the probe,
+     * the resolved target formats and the throughput of earlier jobs. Nothing is decoded or encoded.
+     */
+    @ReactMethod
+    public void estimate(String sourcePath, ReadableMap options, final Promise promise) {
         try {
             final String quality = options.hasKey("quality") ? options.getString("quality") : "";
-            final String targetPath = options.hasKey("targetPath") ? options.getString("targetPath") : "";
             final boolean keepOriginalResolution = options.hasKey("keepOriginalResolution") && options.getBoolean("keepOriginalResolution");
-            mDebugEnabled = options.hasKey("debugEnabled") && options.getBoolean("debugEnabled");
+            final boolean allowPassthrough = !options.hasKey("passthrough") || options.getBoolean("passthrough");
+            final AudioOptions audioOptions = parseAudioOptions(options, allowPassthrough);
+            final int maxFrameRate = options.hasKey("maxFrameRate") ? options.getInt("maxFrameRate") : 0;
+            final boolean allowHevc = options.hasKey("allowHevc") && options.getBoolean("allowHevc");
+            final long maxOutputBytes = options.hasKey("maxOutputBytes") ? (long) options.getDouble("maxOutputBytes") : 0;
+            final boolean segmented = options.hasKey("segmented") && options.getBoolean("segmented");
+            final boolean fragmented = options.hasKey("fragmented") && options.getBoolean("fragmented");
+
+            SourceProbe.Result probe = mSourceProbe.probe(Uri.parse(sourcePath));
+            if (probe.videoFormat == null) {
+                throw new IllegalArgumentException(String.format("No video track found in %s", sourcePath));
+            }
+
+            SourceRanges ranges = parseRanges(options, probe.durationMs * 1000);
+            long durationMs = ranges != null ? ranges.getDurationUs() / 1000 : probe.durationMs;
+            long inputBytes = ranges != null && probe.durationMs > 0 ? probe.sizeBytes * durationMs / probe.durationMs : probe.sizeBytes;
+
+            boolean dropAudio = audioOptions.drop && probe.audioFormat != null;
+            MediaFormat targetAudioFormat = probe.audioFormat != null && !dropAudio
+                    ? audioOptions.getTargetFormat(probe.audioFormat)
+                    : null;
+            int audioBitrate = dropAudio ? 0 : getOutputAudioBitrate(probe, targetAudioFormat);
+            boolean reshapeAudio = dropAudio
+                    || (targetAudioFormat != null && AudioOptions.changesLayout(probe.audioFormat, targetAudioFormat));
+
+            // adaptive bitrates and presets are left out, they would need frames decoded or codecs configured
+            MediaFormat videoFormat = getTargetVideoMediaFormat(probe, quality, keepOriginalResolution);
+            boolean decimate = applyFrameRateCap(videoFormat, mThrottle.applyToFormat(videoFormat, maxFrameRate));
+            if (maxOutputBytes > 0) {
+                applySizeBudget(new OutputSizeBudget(maxOutputBytes), durationMs, videoFormat, audioBitrate);
+            }
+            boolean copyVideo = !decimate && allowPassthrough && canCopyVideo(probe, videoFormat);
+            if (!copyVideo) {
+                applyEncoderCapabilities(videoFormat, allowHevc, null);
+                copyVideo = !decimate && allowPassthrough && canCopyVideo(probe, videoFormat);
+            }
+            TranscodePath path = TranscodePath.of(copyVideo, targetAudioFormat == null);
+
+            long outputBytes = (long) (getExpectedOutputBytes(copyVideo ? null : videoFormat, audioBitrate,
+                    probe.audioFormat != null ? getOutputAudioBitrate(probe, null) : 0, durationMs, inputBytes)
+                    * mThroughput.getSizeRatio(path));
+            if (maxOutputBytes > 0) {
+                outputBytes = Math.min(outputBytes, maxOutputBytes);
+            }
+
+            // segments encoded at the same time get through the work faster, they are measured apart
+            boolean singlePass = decimate || reshapeAudio || fragmented || maxOutputBytes > 0;
+            int parallelism = getParallelism(segmented && !singlePass, copyVideo ? null : videoFormat, ranges, probe.durationMs * 1000);
+            ThroughputHistory.Average throughput = mThroughput.getThroughput(path, videoFormat.getString(MediaFormat.KEY_MIME), parallelism);
+            double work = ThroughputHistory.getWork(path, videoFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    videoFormat.getInteger(MediaFormat.KEY_HEIGHT), videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE),
+                    durationMs, inputBytes);
+            long wallMs = throughput.value > 0 ? (long) (work * 1000 / throughput.value) : 0;
+
+            WritableMap result = Arguments.createMap();
+            result.putDouble("outputBytes", outputBytes);
+            result.putDouble("wallMs", wallMs);
+            result.putDouble("durationMs", durationMs);
+            result.putString("path", path.toJsValue());
+            result.putInt("width", videoFormat.getInteger(MediaFormat.KEY_WIDTH));
+            result.putInt("height", videoFormat.getInteger(MediaFormat.KEY_HEIGHT));
+            result.putInt("bitrate", copyVideo ? getInt(probe.videoFormat, MediaFormat.KEY_BIT_RATE, probe.bitrate)
+                    : videoFormat.getInteger(MediaFormat.KEY_BIT_RATE));
+            // 0 means the wall time is a default guess, not measured on this device
+            result.putInt("historySamples", throughput.samples);
+
+            promise.resolve(result);
+        } catch (Throwable e) {
+            logError(e.getMessage(), e);
+            promise.reject("error", e.getMessage());
+        }
+    }
 
-            Uri sourceUri = Uri.parse(sourcePath);
-            final File outputDir = reactContext.getCacheDir();
+    /**
+     * Writes the frames shown at the given times as JPEG files scaled into {@code width} x {@code height},
+     * in a single decoder pass; frames extracted before are served from the cache directory.
+     */
+    @ReactMethod
+    public void extractFrames(final String sourcePath, final ReadableArray timestampsMs, final ReadableMap options,
+                              final Promise promise) {
+        mFrameExecutor.execute(() -> {
+            try {
+                if (!options.hasKey("width") || !options.hasKey("height")) {
+                    throw new IllegalArgumentException("Frame width and height are required");
+                }
+                int width = options.getInt("width");
+                int height = options.getInt("height");
+                int quality = options.hasKey("quality") ? options.getInt("quality") : FrameExtractor.DEFAULT_QUALITY;
+                long[] timesUs = new long[timestampsMs.size()];
+                for (int i = 0; i < timesUs.length; i++) {
+                    timesUs[i] = (long) (timestampsMs.getDouble(i) * 1000);
+                }
+
+                SourceProbe.Result probe = mSourceProbe.probe(Uri.parse(sourcePath));
+                List<FrameExtractor.Frame> frames = mFrameExtractor.extract(probe, timesUs, width, height, quality);
+
+                int cached = 0;
+                WritableArray result = Arguments.createArray();
+                for (FrameExtractor.Frame frame : frames) {
+                    WritableMap item = Arguments.createMap();
+                    item.putDouble("timeMs", frame.timeUs / 1000.0);
+                    item.putString("path", frame.path);
+                    item.putBoolean("cached", frame.cached);
+                    result.pushMap(item);
+                    cached += frame.cached ? 1 : 0;
+                }
+                logInfo("extracted %d frames of %s, %d from cache", frames.size(), sourcePath, cached);
+                mOutputCache.trimAsync();
+
+                promise.resolve(result);
+            } catch (Throwable e) {
+                logError(e.getMessage(), e);
+                promise.reject("error", e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Resolves the formats of a request and queues it, or answers it from the cache.
+     */
+    private void startCompress(String requestId, String sourcePath, ReadableMap options) throws Exception {
+        TranscodeTrace trace = startTrace(requestId, options);
+        try (TranscodeTracer.Scope ignored = mTracer.enter(trace)) {
+            submitCompress(requestId, sourcePath, options, trace);
+        } catch (Exception e) {
+            trace.record(TranscodeTrace.Level.ERROR, String.valueOf(e.getMessage()));
+            throw e;
+        }
+    }
+
+    private void submitCompress(String requestId, String sourcePath, ReadableMap options, TranscodeTrace trace) throws Exception {
+        final String quality = options.hasKey("quality") ? options.getString("quality") : "";
+        final String targetPath = options.hasKey("targetPath") ? options.getString("targetPath") : "";
+        final boolean keepOriginalResolution = options.hasKey("keepOriginalResolution") && options.getBoolean("keepOriginalResolution");
+        final boolean allowPassthrough = !options.hasKey("passthrough") || options.getBoolean("passthrough");
+        final AudioOptions audioOptions = parseAudioOptions(options, allowPassthrough);
+        final boolean segmented = options.hasKey("segmented") && options.getBoolean("segmented");
+        final boolean fragmented = options.hasKey("fragmented") && options.getBoolean("fragmented");
+        final long fragmentDurationUs = options.hasKey("fragmentDurationMs")
+                ? (long) (options.getDouble("fragmentDurationMs") * 1000)
+                : FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US;
+        final int maxFrameRate = options.hasKey("maxFrameRate") ? options.getInt("maxFrameRate") : 0;
+        // fragmented MP4 is written for AVC video only
+        final boolean allowHevc = options.hasKey("allowHevc") && options.getBoolean("allowHevc") && !fragmented;
+        final EncoderPreset preset = EncoderPreset.fromString(options.hasKey("preset") ? options.getString("preset") : null);
+        final boolean adaptive = options.hasKey("adaptive") && options.getBoolean("adaptive");
+        final long maxOutputBytes = options.hasKey("maxOutputBytes") ? (long) options.getDouble("maxOutputBytes") : 0;
+        final TranscodeScheduler.Priority priority =
+                TranscodeScheduler.Priority.fromString(options.hasKey("priority") ? options.getString("priority") : null);
+
+        final Uri sourceUri = Uri.parse(sourcePath);
+        final File outputDir = reactContext.getCacheDir();
+
+        File targetFile = !targetPath.isEmpty()
+                ? new File(targetPath)
+                : new File(outputDir.getPath(),
+                String.format("transcoded_%s.mp4", UUID.randomUUID().toString()));
+
+        trace.begin(TranscodeTrace.Stage.PROBE);
+        SourceProbe.Result probe = mSourceProbe.probe(sourceUri);
+        if (probe.videoFormat == null) {
+            throw new IllegalArgumentException(String.format("No video track found in %s", sourcePath));
+        }
+        mTracer.next(trace, TranscodeTrace.Stage.PROBE, TranscodeTrace.Stage.RESOLVE);
+
+        final long durationUs = probe.durationMs * 1000;
+        // only the selected parts of the source are read, encode cost follows the length of the output
+        SourceRanges ranges = parseRanges(options, durationUs);
+        final long outputDurationMs = ranges != null ? ranges.getDurationUs() / 1000 : probe.durationMs;
+
+        // there is nothing to encode when the source has no audio track or it is left out
+        final boolean dropAudio = audioOptions.drop && probe.audioFormat != null;
+        final MediaFormat targetAudioFormat = probe.audioFormat != null && !dropAudio
+                ? audioOptions.getTargetFormat(probe.audioFormat)
+                : null;
+        boolean copyAudio = targetAudioFormat == null;
+        // MediaTransformer encodes audio in the layout of the source, anything else runs in a single pass
+        final boolean reshapeAudio = dropAudio
+                || (targetAudioFormat != null && AudioOptions.changesLayout(probe.audioFormat, targetAudioFormat));
+
+        MediaFormat resolvedVideoFormat = getTargetVideoMediaFormat(probe, quality, keepOriginalResolution);
+        // a hot or drained device gets less work: a smaller output at a lower frame rate
+        final int cappedFrameRate = mThrottle.applyToFormat(resolvedVideoFormat, maxFrameRate);
+        // frames above the cap are dropped before they are encoded, bitrates below are chosen for the capped rate
+        final boolean decimate = applyFrameRateCap(resolvedVideoFormat, cappedFrameRate);
+        // MediaTransformer can not drop frames, write fragments or change the bitrate while it encodes,
+        // the pipeline that can runs the whole output in one pass
+        final boolean singlePass = decimate || reshapeAudio || fragmented || maxOutputBytes > 0;
+        // checkpoints are the segments MediaTransformer writes, a job the pipeline runs in one pass has none
+        final boolean resumableRequested = options.hasKey("resumable") && options.getBoolean("resumable");
+        if (resumableRequested && (ranges != null || reshapeAudio || fragmented || maxOutputBytes > 0)) {
+            throw new IllegalArgumentException(
+                    "resumable can not be combined with ranges, fragmented, maxOutputBytes or a changed audio layout");
+        }
+        if (resumableRequested && singlePass) {
+            logInfo("request %s drops frames in a single pass, it runs without checkpoints", requestId);
+        }
+        final boolean resumable = resumableRequested && !singlePass;
+        ComplexityProbe.Decision bitrateDecision = adaptive
+                ? applyAdaptiveBitrate(probe, quality, resolvedVideoFormat)
+                : null;
+
+        final OutputSizeBudget sizeBudget = maxOutputBytes > 0 ? new OutputSizeBudget(maxOutputBytes) : null;
+        final int audioBitrate = dropAudio ? 0 : getOutputAudioBitrate(probe, targetAudioFormat);
+        if (sizeBudget != null) {
+            applySizeBudget(sizeBudget, outputDurationMs, resolvedVideoFormat, audioBitrate);
+        }
+
+        // copied video may have B-frames, fragments need frames in presentation order
+        boolean copyVideo = !decimate && !fragmented && allowPassthrough && canCopyVideo(probe, resolvedVideoFormat);
+        if (!copyVideo) {
+            applyEncoderCapabilities(resolvedVideoFormat, allowHevc, preset);
+            copyVideo = !decimate && !fragmented && allowPassthrough && canCopyVideo(probe, resolvedVideoFormat);
+        }
+        final MediaFormat targetVideoFormat = copyVideo ? null : resolvedVideoFormat;
+        final TranscodePath path = TranscodePath.of(copyVideo, copyAudio);
+        mTracer.end(trace, TranscodeTrace.Stage.RESOLVE);
+
+        logInfo("request %s path: %s", requestId, path.toJsValue());
+        if (copyVideo && ranges != null) {
+            // copied video has to start with a keyframe, audio starts with it to stay in sync
+            ranges = snapToKeyframes(sourceUri, ranges);
+        }
+        if (decimate) {
+            logInfo("request %s capped at %d fps, runs in a single pass", requestId, cappedFrameRate);
+        }
+        if (sizeBudget != null) {
+            // segments and ranges are encoded one after another, so the size is watched across all of them
+            logInfo("request %s capped at %d bytes, runs in a single pass", requestId, sizeBudget.maxBytes);
+        }
+        if (fragmented) {
+            if (fragmentDurationUs <= 0) {
+                throw new IllegalArgumentException(String.format("Invalid fragmentDurationMs %d", fragmentDurationUs / 1000));
+            }
+            if (targetVideoFormat != null) {
+                // fragments start on keyframes, so keyframes set the pace of the chunks
+                targetVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, (int) Math.max(1, fragmentDurationUs / 1_000_000));
+                // decode times of fragments are derived from presentation times, which only holds without B-frames
+                EncoderPreset.applyBaseline(targetVideoFormat);
+            }
+            logInfo("request %s written as fragmented MP4, runs in a single pass", requestId);
+        }
+        if (reshapeAudio) {
+            if (dropAudio) {
+                logInfo("request %s audio dropped, runs in a single pass", requestId);
+            } else {
+                logInfo("request %s audio encoded as %d Hz/%d ch at %d bps, runs in a single pass", requestId,
+                        targetAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        targetAudioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                        targetAudioFormat.getInteger(MediaFormat.KEY_BIT_RATE));
+            }
+        }
+
+        // outputs of the module are content-addressed, outputs the caller asked for are not cached;
+        // checkpointed jobs outlive the in-memory registry of running jobs, so they are not cached either;
+        // fragmented outputs are read while they are written, a cache hit or an attached request would have no chunks
+        String fingerprint = targetPath.isEmpty() && !resumable && !fragmented
+                ? TranscodeResultCache.fingerprint(probe, targetVideoFormat, targetAudioFormat, ranges, dropAudio)
+                : null;
+
+        final String outputPath;
+        final String writePath;
+
+        if (fingerprint != null) {
+            File cachedOutput = mResultCache.getCachedOutput(fingerprint);
+            if (cachedOutput != null && mOutputCache.acquire(requestId, cachedOutput)) {
+                logInfo("request %s served from cache: %s", requestId, cachedOutput.getPath());
+
+                sendOnSuccess(requestId, cachedOutput.getPath(), path, true, null);
+                mOutputCache.release(requestId);
+                return;
+            }
+
+            TranscodeResultCache.InFlight inFlight = mResultCache.attach(fingerprint, requestId);
+            if (inFlight != null) {
+                logInfo("request %s attached to running request %s", requestId, inFlight.jobId);
+
+                if (inFlight.started) {
+                    sendOnStart(requestId);
+                }
+                return;
+            }
+
+            inFlight = mResultCache.register(fingerprint, requestId);
+            outputPath = inFlight.outputFile.getPath();
+            writePath = inFlight.partialFile.getPath();
+        } else {
+            outputPath = targetFile.getPath();
+            writePath = outputPath;
+        }
+
+        final int rotation = probe.rotation;
+        final SourceRanges selectedRanges = ranges;
+        final TranscodeMetrics.Record metrics = createMetricsRecord(requestId, path, priority, probe, selectedRanges);
+        metrics.setTarget(resolvedVideoFormat);
+        metrics.expectedBytes = getExpectedOutputBytes(targetVideoFormat, audioBitrate,
+                probe.audioFormat != null ? getOutputAudioBitrate(probe, null) : 0, outputDurationMs, metrics.inputBytes);
+        metrics.bitrateReason = bitrateDecision != null ? bitrateDecision.reason : null;
+        final int parallelism = getParallelism(segmented && !singlePass, targetVideoFormat, selectedRanges, durationUs);
+
+        // the request id names the journal directory, it is checked before anything is held for the job
+        final TranscodeJournal journal = resumable ? TranscodeJournal.create(getJournalRoot(), requestId) : null;
+
+        mOutputCache.protect(requestId, outputPath, writePath);
+
+        if (journal != null) {
+            int checkpoints = (int) Math.max(1, (durationUs + CHECKPOINT_SEGMENT_DURATION_US - 1) / CHECKPOINT_SEGMENT_DURATION_US);
+            long[] boundaries = planSegments(sourceUri, durationUs, checkpoints);
+
+            journal.sourcePath = sourcePath;
+            journal.sourceKey = probe.cacheKey;
+            journal.outputPath = outputPath;
+            journal.path = path;
+            journal.priority = priority.name().toLowerCase();
+            journal.rotation = rotation;
+            journal.parallelism = parallelism;
+            journal.boundaries = boundaries != null ? boundaries : new long[] { 0, durationUs };
+            journal.completed = new boolean[journal.boundaries.length - 1];
+            journal.targetVideoFormat = targetVideoFormat;
+            journal.targetAudioFormat = targetAudioFormat;
+            journal.save();
+
+            submitJournaledJob(journal, priority, metrics);
+        } else {
+            // several ranges, or keyframe segments of the whole source, are transcoded as parts and joined
+            final SourceRanges parts;
+            if (selectedRanges != null || singlePass) {
+                parts = selectedRanges != null && selectedRanges.size() > 1 && !singlePass ? selectedRanges : null;
+            } else {
+                long[] segmentBoundaries = parallelism > 1 ? planSegments(sourceUri, durationUs, parallelism) : null;
+                parts = segmentBoundaries != null ? SourceRanges.fromBoundaries(segmentBoundaries) : null;
+            }
+            final TransformationOptions rangeOptions = selectedRanges != null && selectedRanges.size() == 1
+                    ? new TransformationOptions.Builder()
+                            .setSourceMediaRange(new MediaRange(selectedRanges.getStartUs(0), selectedRanges.getEndUs(0)))
+                            .build()
+                    : null;
+
+            final int slots = parts != null ? Math.min(Math.max(1, parallelism), parts.size()) : 1;
+            metrics.parallelism = slots;
+            submitJob(requestId, priority, slots, createListener(requestId, outputPath, metrics), listener -> {
+                final MediaFormat videoFormat = withAcceptedKeys(requestId, targetVideoFormat);
+                if (fragmented && targetVideoFormat != null && targetVideoFormat.containsKey(MediaFormat.KEY_PROFILE)
+                        && !videoFormat.containsKey(MediaFormat.KEY_PROFILE)) {
+                    // any other profile may reorder frames, and fragment decode times would be wrong
+                    throw new IllegalStateException(String.format(
+                            "Encoder of request %s rejected the Baseline profile fragmented output needs", requestId));
+                }
+                if (singlePass) {
+                    CodecPipeline.Options pipelineOptions = new CodecPipeline.Options();
+                    pipelineOptions.maxFrameRate = decimate ? cappedFrameRate : 0;
+                    pipelineOptions.dropAudio = dropAudio;
+                    pipelineOptions.trace = trace;
+                    pipelineOptions.sizeBudget = sizeBudget;
+                    pipelineOptions.audioBitrate = audioBitrate;
+                    if (fragmented) {
+                        pipelineOptions.fragmentDurationUs = fragmentDurationUs;
+                        pipelineOptions.fragmentListener = (index, offset, length, last) ->
+                                sendOnChunkReady(requestId, writePath, index, offset, length, last);
+                    }
+
+                    List<CodecPipeline.Clip> clips = Collections.singletonList(
+                            new CodecPipeline.Clip(sourceUri, rotation, durationUs, selectedRanges));
+                    if (sizeBudget != null) {
+                        // chunks of fragmented output are out already, it can not be written again
+                        SizeCappedTransform transform = new SizeCappedTransform(reactContext, requestId, clips,
+                                writePath, videoFormat, targetAudioFormat, rotation, pipelineOptions,
+                                fragmented ? 1 : SizeCappedTransform.MAX_ATTEMPTS, listener);
+                        mSizeCappedTransforms.put(requestId, transform);
+                        transform.start();
+                    } else {
+                        CodecPipeline pipeline = new CodecPipeline(reactContext, requestId, clips,
+                                writePath, videoFormat, targetAudioFormat, rotation, pipelineOptions, listener);
+                        mPipelines.put(requestId, pipeline);
+                        pipeline.start();
+                    }
+                } else if (parts != null) {
+                    startSegmented(requestId, sourceUri, writePath, videoFormat, targetAudioFormat,
+                            parts, rotation, slots, null, listener);
+                } else {
+                    mMediaTransformer
+                            .transform(
+                                    requestId,
+                                    sourceUri,
+                                    writePath,
+                                    videoFormat,
+                                    targetAudioFormat,
+                                    listener,
+                                    rangeOptions
+                            );
+                }
+            });
+        }
+
+        logInfo("request %s queued with %s priority", requestId, priority);
+    }
+
+    @ReactMethod
+    public void resumeCompress(String requestId, final Promise promise) {
+        try {
+            if (mScheduler.getJob(requestId) != null) {
+                throw new IllegalStateException(String.format("Request %s is already running", requestId));
+            }
+
+            TranscodeJournal journal = TranscodeJournal.load(getJournalRoot(), requestId);
+            if (journal == null) {
+                throw new IllegalArgumentException(String.format("No resumable request %s", requestId));
+            }
+
+            SourceProbe.Result probe = mSourceProbe.probe(Uri.parse(journal.sourcePath));
+            if (!probe.cacheKey.equals(journal.sourceKey)) {
+                journal.delete();
+                throw new IllegalStateException(String.format("Source of request %s changed since it was started", requestId));
+            }
+
+            TranscodeScheduler.Priority priority = TranscodeScheduler.Priority.fromString(journal.priority);
+
+            // segments completed before are not transcoded again, metrics and throughput cover only the rest
+            SourceRanges remaining = journal.getRemainingRanges();
+            TranscodeMetrics.Record metrics = remaining != null
+                    ? createMetricsRecord(requestId, journal.path, priority, probe, remaining)
+                    : new TranscodeMetrics.Record(requestId, journal.path, priority, 0, 0);
+            if (journal.targetVideoFormat != null) {
+                metrics.setTarget(journal.targetVideoFormat);
+            }
+
+            mOutputCache.protect(requestId, journal.outputPath);
+            submitJournaledJob(journal, priority, metrics);
+
+            logInfo("request %s resumed", requestId);
+
+            promise.resolve(requestId);
+        } catch (Throwable e) {
+            logError(e.getMessage(), e);
+            promise.reject("error", e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getResumableJobs(final Promise promise) {
+        WritableArray result = Arguments.createArray();
+
+        for (String requestId : TranscodeJournal.list(getJournalRoot())) {
+            if (mScheduler.getJob(requestId) == null) {
+                result.pushString(requestId);
+            }
+        }
+
+        promise.resolve(result);
+    }
+
+    @ReactMethod
+    public void discardResumable(String requestId) {
+        try {
+            if (mScheduler.getJob(requestId) == null) {
+                TranscodeJournal.create(getJournalRoot(), requestId).delete();
+            }
+        } catch (IllegalArgumentException e) {
+            logError(e.getMessage(), e);
+        }
+    }
+
+    @ReactMethod
+    public void compressLadder(String requestId, String sourcePath, ReadableArray renditions, ReadableMap options, final Promise promise) {
+        try {
+            final boolean allowPassthrough = !options.hasKey("passthrough") || options.getBoolean("passthrough");
+            final boolean allowHevc = options.hasKey("allowHevc") && options.getBoolean("allowHevc");
+            final EncoderPreset preset = EncoderPreset.fromString(options.hasKey("preset") ? options.getString("preset") : null);
+            final TranscodeScheduler.Priority priority =
+                    TranscodeScheduler.Priority.fromString(options.hasKey("priority") ? options.getString("priority") : null);
+            mTracer.enter(startTrace(requestId, options));
+
+            if (renditions.size() == 0) {
+                throw new IllegalArgumentException("At least one rendition is required");
+            }
+
+            final Uri sourceUri = Uri.parse(sourcePath);
+
+            SourceProbe.Result probe = mSourceProbe.probe(sourceUri);
+            if (probe.videoFormat == null) {
+                throw new IllegalArgumentException(String.format("No video track found in %s", sourcePath));
+            }
+
+            // renditions share the audio, it is only copied or encoded at a new bitrate
+            AudioOptions audioOptions = new AudioOptions();
+            audioOptions.allowPassthrough = allowPassthrough;
+            final MediaFormat targetAudioFormat = probe.audioFormat != null ? audioOptions.getTargetFormat(probe.audioFormat) : null;
+            boolean copyAudio = targetAudioFormat == null;
+
+            final List<Rendition> ladder = new ArrayList<>();
+            final List<Rendition> toTranscode = new ArrayList<>();
+            Map<String, Rendition> byFingerprint = new HashMap<>();
+            boolean allVideoCopied = true;
+
+            for (int index = 0; index < renditions.size(); index++) {
+                ReadableMap item = renditions.getMap(index);
+                String quality = item.hasKey("quality") ? item.getString("quality") : "";
+                String targetPath = item.hasKey("targetPath") ? item.getString("targetPath") : "";
+                boolean keepOriginalResolution = item.hasKey("keepOriginalResolution") && item.getBoolean("keepOriginalResolution");
+
+                MediaFormat resolvedVideoFormat = getTargetVideoMediaFormat(probe, quality, keepOriginalResolution);
+                boolean copyVideo = allowPassthrough && canCopyVideo(probe, resolvedVideoFormat);
+                if (!copyVideo) {
+                    applyEncoderCapabilities(resolvedVideoFormat, allowHevc, preset);
+                    copyVideo = allowPassthrough && canCopyVideo(probe, resolvedVideoFormat);
+                }
+                allVideoCopied &= copyVideo;
+
+                Rendition rendition = new Rendition(quality, copyVideo ? null : resolvedVideoFormat,
+                        TranscodePath.of(copyVideo, copyAudio));
+                ladder.add(rendition);
+
+                String fingerprint = targetPath.isEmpty()
+                        ? TranscodeResultCache.fingerprint(probe, rendition.targetVideoFormat, targetAudioFormat)
+                        : null;
+
+                if (fingerprint != null) {
+                    // renditions that resolve to the same output are produced once
+                    Rendition same = byFingerprint.get(fingerprint);
+                    if (same != null) {
+                        rendition.sameAs = same;
+                        continue;
+                    }
+                    byFingerprint.put(fingerprint, rendition);
+
+                    File cachedOutput = mResultCache.getCachedOutput(fingerprint);
+                    if (cachedOutput != null && mOutputCache.acquire(requestId, cachedOutput)) {
+                        rendition.outputPath = cachedOutput.getPath();
+                        rendition.cached = true;
+                        continue;
+                    }
+                }
+
+                rendition.outputPath = !targetPath.isEmpty()
+                        ? targetPath
+                        : new File(reactContext.getCacheDir(),
+                        String.format("transcoded_%s.mp4", UUID.randomUUID().toString())).getPath();
+                toTranscode.add(rendition);
+            }
+
+            logInfo("ladder %s: %d renditions, %d to transcode", requestId, ladder.size(), toTranscode.size());
 
-            File targetFile = !targetPath.isEmpty()
-                    ? new File(targetPath)
-                    : new File(outputDir.getPath(),
-                    String.format("transcoded_%s.mp4", UUID.randomUUID().toString()));
+            promise.resolve(requestId);
+
+            if (toTranscode.isEmpty()) {
+                sendOnLadderSuccess(requestId, ladder, null);
+                mOutputCache.release(requestId);
+                return;
+            }
+
+            List<String> outputPaths = new ArrayList<>();
+            for (Rendition rendition : toTranscode) {
+                outputPaths.add(rendition.outputPath);
+            }
+            mOutputCache.protect(requestId, outputPaths.toArray(new String[0]));
+
+            // the source is decoded once, every encoded rendition gets an encoder of the mime type it resolved to
+            int encoded = 0;
+            int maxEncoders = Integer.MAX_VALUE;
+            for (Rendition rendition : toTranscode) {
+                if (rendition.targetVideoFormat != null) {
+                    encoded++;
+                    maxEncoders = Math.min(maxEncoders, KeyframeSegmenter.getMaxParallelTransforms(
+                            rendition.targetVideoFormat.getString(MediaFormat.KEY_MIME)));
+                }
+            }
+            final int parallelism = Math.max(1, Math.min(encoded, maxEncoders));
+            final int rotation = probe.rotation;
+            final long durationUs = probe.durationMs * 1000;
+            final TranscodeMetrics.Record metrics = createMetricsRecord(requestId,
+                    TranscodePath.of(allVideoCopied, copyAudio), priority, probe, null);
+
+            submitJob(requestId, priority, parallelism, createLadderListener(requestId, ladder, toTranscode, metrics), listener -> {
+                List<CodecPipeline.Target> targets = new ArrayList<>();
+                for (Rendition rendition : toTranscode) {
+                    targets.add(new CodecPipeline.Target(rendition.outputPath,
+                            withAcceptedKeys(requestId, rendition.targetVideoFormat)));
+                }
+
+                CodecPipeline.Options pipelineOptions = new CodecPipeline.Options();
+                pipelineOptions.maxEncoders = parallelism;
+                pipelineOptions.trace = mTracer.get(requestId);
+
+                CodecPipeline.Clip clip = new CodecPipeline.Clip(sourceUri, rotation, durationUs, null);
+                CodecPipeline pipeline = new CodecPipeline(reactContext, requestId, Collections.singletonList(clip),
+                        targets, targetAudioFormat, rotation, pipelineOptions, listener);
+                mPipelines.put(requestId, pipeline);
+                pipeline.start();
+            });
+
+            logInfo("ladder %s queued with %s priority", requestId, priority);
+        } catch (Throwable e) {
+            mOutputCache.release(requestId);
+            logError(e.getMessage(), e);
+            promise.reject("error", e.getMessage());
+        } finally {
+            mTracer.exit();
+        }
+    }
 
-            final String outputPath = targetFile.getPath();
+    /**
+     * Joins several clips into one output in a single pass through one encoder and muxer.
+     * Sources are maps with a path and optional startMs and endMs.
+     */
+    @ReactMethod
+    public void compressConcat(String requestId, ReadableArray sources, ReadableMap options, final Promise promise) {
+        try {
+            final String quality = options.hasKey("quality") ? options.getString("quality") : "";
+            final String targetPath = options.hasKey("targetPath") ? options.getString("targetPath") : "";
+            final boolean keepOriginalResolution = options.hasKey("keepOriginalResolution") && options.getBoolean("keepOriginalResolution");
+            final int maxFrameRate = options.hasKey("maxFrameRate") ? options.getInt("maxFrameRate") : 0;
+            final boolean allowHevc = options.hasKey("allowHevc") && options.getBoolean("allowHevc");
+            final EncoderPreset preset = EncoderPreset.fromString(options.hasKey("preset") ? options.getString("preset") : null);
+            // audio of all clips goes through one encoder, at most in stereo
+            final AudioOptions audioOptions = parseAudioOptions(options, false);
+            if (audioOptions.maxChannels == 0) {
+                audioOptions.maxChannels = 2;
+            }
+            final TranscodeScheduler.Priority priority =
+                    TranscodeScheduler.Priority.fromString(options.hasKey("priority") ? options.getString("priority") : null);
+            mTracer.enter(startTrace(requestId, options));
 
-            MediaExtractor mediaExtractor = new MediaExtractor();
-            mediaExtractor.setDataSource(this.appContext, sourceUri, null);
+            if (sources.size() == 0) {
+                throw new IllegalArgumentException("At least one source is required");
+            }
 
-            MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-            mediaMetadataRetriever.setDataSource(this.appContext, sourceUri);
+            final List<CodecPipeline.Clip> clips = new ArrayList<>();
+            SourceProbe.Result first = null;
+            MediaFormat firstAudioFormat = null;
+            boolean sameRotation = true;
+            long durationUs = 0;
+            long inputBytes = 0;
+
+            for (int index = 0; index < sources.size(); index++) {
+                ReadableMap source = sources.getMap(index);
+                String sourcePath = source.getString("path");
+                Uri sourceUri = Uri.parse(sourcePath);
+
+                SourceProbe.Result probe = mSourceProbe.probe(sourceUri);
+                if (probe.videoFormat == null) {
+                    throw new IllegalArgumentException(String.format("No video track found in %s", sourcePath));
+                }
 
-            MediaFormat sourceAudioFormat = getSourceAudioMediaFormat(mediaExtractor);
-            MediaFormat sourceVideoFormat = getSourceVideoMediaFormat(mediaExtractor);
+                SourceRanges ranges = parseRanges(source, probe.durationMs * 1000);
+                CodecPipeline.Clip clip = new CodecPipeline.Clip(sourceUri, probe.rotation, probe.durationMs * 1000, ranges);
+                clips.add(clip);
 
-            MediaFormat targetAudioFormat = getTargetAudioMediaFormat(sourceAudioFormat);
-            MediaFormat targetVideoFormat = getTargetVideoMediaFormat(sourceVideoFormat, mediaMetadataRetriever, quality, keepOriginalResolution);
+                if (first == null) {
+                    first = probe;
+                }
+                if (firstAudioFormat == null) {
+                    firstAudioFormat = probe.audioFormat;
+                }
+                sameRotation &= probe.rotation == first.rotation;
+                durationUs += clip.durationUs;
+                inputBytes += probe.durationMs > 0 ? probe.sizeBytes * (clip.durationUs / 1000) / probe.durationMs : probe.sizeBytes;
+            }
 
-            mMediaTransformer
-                    .transform(
-                            requestId,
-                            sourceUri,
-                            outputPath,
-                            targetVideoFormat,
-                            targetAudioFormat,
-                            createListener(requestId, outputPath),
-                            null
-                    );
+            // the output takes the size and orientation of the first clip, the others are turned and fitted into it
+            final int rotation = sameRotation ? first.rotation : 0;
+            final MediaFormat targetVideoFormat = getTargetVideoMediaFormat(first, quality, keepOriginalResolution);
+            if (!sameRotation && first.rotation % 180 != 0) {
+                int width = targetVideoFormat.getInteger(MediaFormat.KEY_WIDTH);
+                targetVideoFormat.setInteger(MediaFormat.KEY_WIDTH, targetVideoFormat.getInteger(MediaFormat.KEY_HEIGHT));
+                targetVideoFormat.setInteger(MediaFormat.KEY_HEIGHT, width);
+            }
+            targetVideoFormat.setInteger(KEY_ROTATION, rotation);
+            targetVideoFormat.setLong(MediaFormat.KEY_DURATION, durationUs);
+            final int cappedFrameRate = mThrottle.applyToFormat(targetVideoFormat, maxFrameRate);
+            applyFrameRateCap(targetVideoFormat, cappedFrameRate);
+            applyEncoderCapabilities(targetVideoFormat, allowHevc, preset);
+
+            final MediaFormat targetAudioFormat = firstAudioFormat != null && !audioOptions.drop
+                    ? audioOptions.getTargetFormat(firstAudioFormat)
+                    : null;
+
+            final String outputPath = !targetPath.isEmpty()
+                    ? targetPath
+                    : new File(reactContext.getCacheDir(),
+                    String.format("transcoded_%s.mp4", UUID.randomUUID().toString())).getPath();
+            final TranscodePath path = TranscodePath.of(false, targetAudioFormat == null);
+
+            final TranscodeMetrics.Record metrics = new TranscodeMetrics.Record(requestId, path, priority, inputBytes,
+                    durationUs / 1000);
+            metrics.setTarget(targetVideoFormat);
+            metrics.expectedBytes = getExpectedOutputBytes(targetVideoFormat,
+                    targetAudioFormat != null ? targetAudioFormat.getInteger(MediaFormat.KEY_BIT_RATE) : 0, 0,
+                    durationUs / 1000, inputBytes);
+
+            logInfo("concat %s: %d clips, %d ms", requestId, clips.size(), durationUs / 1000);
+
+            mOutputCache.protect(requestId, outputPath);
+
+            submitJob(requestId, priority, 1, createListener(requestId, outputPath, metrics), listener -> {
+                CodecPipeline.Options pipelineOptions = new CodecPipeline.Options();
+                pipelineOptions.maxFrameRate = cappedFrameRate;
+                pipelineOptions.dropAudio = audioOptions.drop;
+                pipelineOptions.trace = mTracer.get(requestId);
+
+                CodecPipeline pipeline = new CodecPipeline(reactContext, requestId, clips, outputPath,
+                        withAcceptedKeys(requestId, targetVideoFormat), targetAudioFormat, rotation, pipelineOptions, listener);
+                mPipelines.put(requestId, pipeline);
+                pipeline.start();
+            });
+
+            logInfo("concat %s queued with %s priority", requestId, priority);
 
             promise.resolve(requestId);
         } catch (Throwable e) {
             logError(e.getMessage(), e);
             promise.reject("error", e.getMessage());
+        } finally {
+            mTracer.exit();
         }
     }
 
-    private MediaFormat getSourceAudioMediaFormat(final MediaExtractor mediaExtractor) {
-        MediaFormat audioFormat = null;
+    /**
+     * Compresses several sources as one batch. Items are maps with a path and the options
+     * of {@link #compress}; each item is a request of its own with the id
+     * {@code <batchId>_<index>}, so it reports, fails and can be cancelled on its own.
+     */
+    @ReactMethod
+    public void compressBatch(String batchId, ReadableArray items, ReadableMap options, final Promise promise) {
+        try {
+            final int parallelism = options.hasKey("parallelism") ? options.getInt("parallelism") : TranscodeBatch.DEFAULT_PARALLELISM;
+            mTracer.enter(startTrace(batchId, options));
+
+            if (items.size() == 0) {
+                throw new IllegalArgumentException("At least one item is required");
+            }
+
+            TranscodeBatch batch = new TranscodeBatch(batchId, parallelism);
+            for (int index = 0; index < items.size(); index++) {
+                ReadableMap item = items.getMap(index);
+                batch.add(item.getString("path"), item.getMap("options"));
+            }
+
+            synchronized (mBatches) {
+                if (mBatches.containsKey(batchId)) {
+                    throw new IllegalStateException(String.format("Batch %s already exists", batchId));
+                }
+                pruneBatches();
+                mBatches.put(batchId, batch);
+            }
+            for (TranscodeBatch.Item item : batch.getItems()) {
+                mBatchItems.put(item.requestId, batch);
+            }
+
+            logInfo("batch %s: %d items, %d at a time", batchId, items.size(), batch.parallelism);
+
+            promise.resolve(batchId);
+            startBatchItems(batch);
+        } catch (Throwable e) {
+            logError(e.getMessage(), e);
+            promise.reject("error", e.getMessage());
+        } finally {
+            mTracer.exit();
+        }
+    }
 
-        for (int track = 0; track < mediaExtractor.getTrackCount(); track++) {
-            MediaFormat mediaFormat = mediaExtractor.getTrackFormat(track);
-            String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
+    @ReactMethod
+    public void cancelBatchItem(String batchId, int index) {
+        TranscodeBatch batch = getBatch(batchId);
+        TranscodeBatch.Item item = batch != null ? batch.getItem(index) : null;
+        if (item != null) {
+            cancelBatchItem(batch, item);
+        }
+    }
 
-            if (mimeType.startsWith("audio")) {
-                audioFormat = mediaFormat;
-                break;
+    /**
+     * Queues a failed or cancelled item of a batch again.
+     */
+    @ReactMethod
+    public void retryBatchItem(String batchId, int index, final Promise promise) {
+        try {
+            TranscodeBatch batch = getBatch(batchId);
+            if (batch == null) {
+                throw new IllegalArgumentException(String.format("Batch %s not found", batchId));
+            }
+            TranscodeBatch.Item item = batch.getItem(index);
+            if (item == null) {
+                throw new IllegalArgumentException(String.format("Batch %s has no item %d", batchId, index));
+            }
+            if (!batch.retry(item)) {
+                throw new IllegalStateException(String.format("Item %d of batch %s is %s", index, batchId, item.state.toJsValue()));
             }
+
+            logInfo("batch %s: item %d queued again", batchId, index);
+
+            promise.resolve(item.requestId);
+            startBatchItems(batch);
+        } catch (Throwable e) {
+            logError(e.getMessage(), e);
+            promise.reject("error", e.getMessage());
         }
+    }
 
-        return audioFormat;
+    @Nullable
+    private TranscodeBatch getBatch(String batchId) {
+        synchronized (mBatches) {
+            return mBatches.get(batchId);
+        }
     }
 
-    private MediaFormat getSourceVideoMediaFormat(final MediaExtractor mediaExtractor) {
-        MediaFormat videoFormat = null;
+    /**
+     * Drops the oldest finished batches beyond {@link #MAX_FINISHED_BATCHES}.
+     */
+    private void pruneBatches() {
+        List<TranscodeBatch> finished = new ArrayList<>();
+        for (TranscodeBatch batch : mBatches.values()) {
+            if (batch.isDone()) {
+                finished.add(batch);
+            }
+        }
 
-        for (int track = 0; track < mediaExtractor.getTrackCount(); track++) {
-            MediaFormat mediaFormat = mediaExtractor.getTrackFormat(track);
-            String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
+        for (int index = 0; index < finished.size() - MAX_FINISHED_BATCHES; index++) {
+            TranscodeBatch batch = finished.get(index);
+            mBatches.remove(batch.batchId);
+            for (TranscodeBatch.Item item : batch.getItems()) {
+                mBatchItems.remove(item.requestId);
+            }
+        }
+    }
 
-            if (mimeType.startsWith("video")) {
-                videoFormat = mediaFormat;
-                break;
+    /**
+     * Starts queued items while the batch has free slots. Items that fail before they
+     * reach the scheduler, e.g. without a video track, fail alone.
+     */
+    private void startBatchItems(TranscodeBatch batch) {
+        for (TranscodeBatch.Item item : batch.takeStartable()) {
+            try {
+                startCompress(item.requestId, item.sourcePath, item.options);
+            } catch (Throwable e) {
+                logError(e.getMessage(), e);
+                sendOnFailure(item.requestId, e);
             }
         }
+    }
 
-        return videoFormat;
+    private void cancelBatchItem(TranscodeBatch batch, TranscodeBatch.Item item) {
+        if (item.state == TranscodeBatch.State.QUEUED) {
+            sendOnCancelled(item.requestId);
+        } else if (item.state == TranscodeBatch.State.RUNNING) {
+            cancelCompress(item.requestId);
+        }
     }
 
-    private MediaFormat getTargetAudioMediaFormat(final MediaFormat sourceFormat) {
-        MediaFormat targetFormat = new MediaFormat();
+    /**
+     * Moves the progress of the batch along with the progress of one of its items.
+     */
+    private void updateBatchProgress(String requestId, float progress) {
+        TranscodeBatch batch = mBatchItems.get(requestId);
+        TranscodeBatch.Item item = batch != null ? batch.getItem(requestId) : null;
+        if (item != null) {
+            batch.setProgress(item, progress);
+            mProgressDispatcher.update(batch.batchId, batch.getProgress() * 100);
+        }
+    }
 
-        targetFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, getInt(sourceFormat, MediaFormat.KEY_CHANNEL_COUNT));
-        targetFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, getInt(sourceFormat, MediaFormat.KEY_SAMPLE_RATE));
-        targetFormat.setLong(MediaFormat.KEY_DURATION, getLong(sourceFormat, MediaFormat.KEY_DURATION));
-        targetFormat.setInteger(MediaFormat.KEY_BIT_RATE, getInt(sourceFormat, MediaFormat.KEY_BIT_RATE));
-        targetFormat.setString(MediaFormat.KEY_MIME, sourceFormat.getString(MediaFormat.KEY_MIME));
+    /**
+     * Records the terminal event of a request that belongs to a batch, starts the next
+     * queued items and reports the batch once all of its items are final.
+     */
+    private void finishBatchItem(
+            String requestId,
+            TranscodeBatch.State state,
+            @Nullable String outputPath,
+            @Nullable Throwable cause
+    ) {
+        TranscodeBatch batch = mBatchItems.get(requestId);
+        TranscodeBatch.Item item = batch != null ? batch.getItem(requestId) : null;
+        if (item == null || !batch.finish(item, state, outputPath, cause != null ? cause.getMessage() : null)) {
+            return;
+        }
 
-        return targetFormat;
+        if (batch.isDone()) {
+            mProgressDispatcher.finish(batch.batchId);
+            sendOnBatchComplete(batch);
+        } else {
+            mProgressDispatcher.update(batch.batchId, batch.getProgress() * 100);
+            startBatchItems(batch);
+        }
     }
 
-    private MediaFormat getTargetVideoMediaFormat(
-            final MediaFormat sourceFormat,
-            final MediaMetadataRetriever mediaMetadataRetriever,
-            String quality, boolean keepOriginalResolution
+    private void submitJob(
+            final String requestId,
+            final TranscodeScheduler.Priority priority,
+            final int slots,
+            final TransformationListener listener,
+            final JobStarter starter
     ) {
-        MediaFormat targetFormat = new MediaFormat();
+        final TranscodeTrace trace = mTracer.get(requestId);
+        if (trace != null) {
+            trace.begin(TranscodeTrace.Stage.QUEUE);
+        }
 
-        targetFormat.setLong(MediaFormat.KEY_DURATION, getLong(sourceFormat, MediaFormat.KEY_DURATION));
-        targetFormat.setInteger(MediaFormat.KEY_FRAME_RATE, getInt(sourceFormat, MediaFormat.KEY_FRAME_RATE, 30));
-        targetFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getInt(sourceFormat, MediaFormat.KEY_I_FRAME_INTERVAL, 5));
-        targetFormat.setInteger(KEY_ROTATION, getInt(sourceFormat, KEY_ROTATION, 0));
+        mQueuedListeners.put(requestId, listener);
+        mScheduler.submit(new TranscodeScheduler.Job(requestId, priority, slots, () -> {
+            mQueuedListeners.remove(requestId);
+            synchronized (mStarting) {
+                mStarting.put(requestId, false);
+            }
+            // slots free up on the bridge or the main thread, trying encoder tunings must block neither
+            mStartExecutor.execute(() -> startJob(requestId, trace, listener, starter));
+        }));
+    }
+
+    private void startJob(
+            final String requestId,
+            @Nullable final TranscodeTrace trace,
+            final TransformationListener listener,
+            final JobStarter starter
+    ) {
+        boolean cancelled;
+        synchronized (mStarting) {
+            cancelled = Boolean.TRUE.equals(mStarting.get(requestId));
+            if (cancelled) {
+                mStarting.remove(requestId);
+            }
+        }
+        if (cancelled) {
+            listener.onCancelled(requestId, null);
+            return;
+        }
 
-        int bitrateData =
-                Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
-        int bitrate = getBitrate(bitrateData, quality);
+        boolean started = false;
+        // their messages still belong to the request
+        try (TranscodeTracer.Scope ignored = mTracer.enter(trace)) {
+            mTracer.next(trace, TranscodeTrace.Stage.QUEUE, TranscodeTrace.Stage.CODEC_SETUP);
+            starter.start(listener);
+            started = true;
+        } catch (Throwable e) {
+            logError(e.getMessage(), e);
+            listener.onError(requestId, e, null);
+        }
 
-        Map<String, Integer> size = generateWidthAndHeight(
-                getInt(sourceFormat, MediaFormat.KEY_WIDTH),
-                getInt(sourceFormat, MediaFormat.KEY_HEIGHT),
-                keepOriginalResolution
-        );
+        synchronized (mStarting) {
+            cancelled = Boolean.TRUE.equals(mStarting.remove(requestId));
+        }
+        if (started && cancelled) {
+            cancelRunning(requestId);
+        }
+    }
 
-        targetFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        targetFormat.setInteger(MediaFormat.KEY_WIDTH, size.get("width"));
-        targetFormat.setInteger(MediaFormat.KEY_HEIGHT, size.get("height"));
+    /**
+     * @return the target video format without the preset keys its encoder rejects, null if there is none
+     */
+    @Nullable
+    private MediaFormat withAcceptedKeys(final String requestId, @Nullable final MediaFormat targetFormat) {
+        if (targetFormat == null) {
+            return null;
+        }
 
-        targetFormat.setString(MediaFormat.KEY_MIME, CodecUtils.MIME_TYPE_VIDEO_AVC);
+        MediaFormat accepted = EncoderPreset.withAcceptedKeys(targetFormat, CodecCatalog.get());
+        if (accepted != targetFormat) {
+            logInfo("request %s: encoder rejected part of the preset, kept %s", requestId, accepted);
+        }
+        return accepted;
+    }
+
+    /**
+     * Runs a checkpointed job segment by segment, skipping segments an earlier run completed.
+     */
+    private void submitJournaledJob(
+            final TranscodeJournal journal,
+            final TranscodeScheduler.Priority priority,
+            final TranscodeMetrics.Record metrics
+    ) {
+        final String requestId = journal.requestId;
+        final Uri sourceUri = Uri.parse(journal.sourcePath);
 
-        logInfo(String.format("Target video format: " +
-            "KEY_DURATION: %d, " +
-            "KEY_FRAME_RATE: %d, " +
-            "KEY_I_FRAME_INTERVAL: %d, " +
-            "KEY_ROTATION: %d, " +
-            "KEY_BIT_RATE: %d, " +
-            "KEY_WIDTH: %d, " +
-            "KEY_HEIGHT: %d, " +
-            "KEY_MIME: %s",
-          targetFormat.getLong(MediaFormat.KEY_DURATION),
-          targetFormat.getInteger(MediaFormat.KEY_FRAME_RATE),
-          targetFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL),
-          targetFormat.getInteger(KEY_ROTATION),
-          targetFormat.getInteger(MediaFormat.KEY_BIT_RATE),
-          targetFormat.getInteger(MediaFormat.KEY_WIDTH),
-          targetFormat.getInteger(MediaFormat.KEY_HEIGHT),
-          targetFormat.getString(MediaFormat.KEY_MIME)
-          ));
+        // the concurrency may have been lowered since the job was journaled
+        final int parallelism = Math.max(1, Math.min(journal.parallelism, mScheduler.getMaxSlots()));
+        metrics.parallelism = parallelism;
 
-        return targetFormat;
+        mJournals.put(requestId, journal);
+
+        submitJob(requestId, priority, parallelism, createListener(requestId, journal.outputPath, metrics), listener ->
+                startSegmented(requestId, sourceUri, journal.outputPath, withAcceptedKeys(requestId, journal.targetVideoFormat),
+                        journal.targetAudioFormat, SourceRanges.fromBoundaries(journal.boundaries), journal.rotation,
+                        parallelism, journal, listener));
     }
 
+    /**
+     * Splitting only pays off when the video track is actually encoded, and only up to the slots the
+     * scheduler can give a job, segments beyond that would run one after the other anyway.
+     *
+     * @return segments of a compress job that are encoded at the same time
+     */
+    private int getParallelism(
+            final boolean segmented,
+            @Nullable final MediaFormat targetVideoFormat,
+            @Nullable final SourceRanges ranges,
+            final long durationUs
+    ) {
+        if (!segmented || targetVideoFormat == null) {
+            return 1;
+        }
+
+        String mimeType = targetVideoFormat.getString(MediaFormat.KEY_MIME);
+        if (ranges != null) {
+            return Math.min(Math.min(ranges.size(), mScheduler.getMaxSlots()), KeyframeSegmenter.getMaxParallelTransforms(mimeType));
+        }
+        return Math.min(mScheduler.getMaxSlots(), KeyframeSegmenter.chooseSegmentCount(mimeType, durationUs));
+    }
 
-    private int getBitrate(int bitrate, String quality) {
-        int resultBitrate;
+    private TranscodeMetrics.Record createMetricsRecord(
+            final String requestId,
+            final TranscodePath path,
+            final TranscodeScheduler.Priority priority,
+            final SourceProbe.Result probe,
+            @Nullable final SourceRanges ranges
+    ) {
+        if (ranges == null || probe.durationMs <= 0) {
+            return new TranscodeMetrics.Record(requestId, path, priority, probe.sizeBytes, probe.durationMs);
+        }
 
-        switch (quality) {
-            case "VERY_LOW":
-                resultBitrate = getBitrateByParams(bitrate, 0.08, 1000000);
-                break;
+        // a trimmed job reads about its share of the source
+        long durationMs = ranges.getDurationUs() / 1000;
+        long inputBytes = probe.sizeBytes * durationMs / probe.durationMs;
+        return new TranscodeMetrics.Record(requestId, path, priority, inputBytes, durationMs);
+    }
 
-            case "MEDIUM":
-                resultBitrate = getBitrateByParams(bitrate, 0.2, 1500000);
-                break;
+    /**
+     * Reads the ranges to keep from the startMs/endMs or ranges options.
+     *
+     * @return the ranges, or null when the whole source is kept
+     */
+    @Nullable
+    private SourceRanges parseRanges(final ReadableMap options, final long durationUs) {
+        long[] startsUs;
+        long[] endsUs;
+
+        if (options.hasKey("ranges")) {
+            ReadableArray array = options.getArray("ranges");
+            startsUs = new long[array.size()];
+            endsUs = new long[array.size()];
+            for (int index = 0; index < array.size(); index++) {
+                ReadableMap range = array.getMap(index);
+                startsUs[index] = range.hasKey("startMs") ? (long) (range.getDouble("startMs") * 1000) : 0;
+                endsUs[index] = range.hasKey("endMs") ? (long) (range.getDouble("endMs") * 1000) : durationUs;
+            }
+        } else if (options.hasKey("startMs") || options.hasKey("endMs")) {
+            startsUs = new long[] { options.hasKey("startMs") ? (long) (options.getDouble("startMs") * 1000) : 0 };
+            endsUs = new long[] { options.hasKey("endMs") ? (long) (options.getDouble("endMs") * 1000) : durationUs };
+        } else {
+            return null;
+        }
 
-            case "HIGH":
-                resultBitrate = getBitrateByParams(bitrate, 0.3, 2000000);
-                break;
+        SourceRanges ranges = SourceRanges.of(startsUs, endsUs, durationUs);
+        if (ranges.isWhole(durationUs)) {
+            return null;
+        }
 
-            case "VERY_HIGH":
-                resultBitrate = getBitrateByParams(bitrate, 0.5, 3000000);
-                break;
+        if (mTracer.isEnabled(TranscodeTrace.Level.INFO)) {
+            logInfo("ranges: %s us, %d ms of output", ranges.describe(), ranges.getDurationUs() / 1000);
+        }
+        return ranges;
+    }
 
-            case "LOW":
-            default:
-                resultBitrate = getBitrateByParams(bitrate, 0.1, 1000000);
-                break;
+    /**
+     * Moves the start of every range back to the video keyframe preceding it.
+     */
+    private SourceRanges snapToKeyframes(final Uri sourceUri, final SourceRanges ranges) throws IOException {
+        long[] startsUs = new long[ranges.size()];
+        for (int range = 0; range < startsUs.length; range++) {
+            startsUs[range] = ranges.getStartUs(range);
+        }
 
+        SourceRanges snapped = ranges.withStartsAt(KeyframeSegmenter.findPrecedingKeyframes(this.appContext, sourceUri, startsUs));
+        if (mTracer.isEnabled(TranscodeTrace.Level.INFO)) {
+            logInfo("ranges moved to keyframes: %s us", snapped.describe());
         }
-        logInfo(String.format("bitrate - original: %d, result: %d", bitrate, resultBitrate));
+        return snapped;
+    }
 
-        return resultBitrate;
+    private File getJournalRoot() {
+        return new File(reactContext.getFilesDir(), "transcode_jobs");
     }
 
-    private int getBitrateByParams(int bitrate, double multiplier, int minValue) {
-        int resultBitrate;
-        boolean isValidOriginal = bitrate > 0;
+    /**
+     * @return keyframe aligned segment boundaries, or null when the source is too short to split
+     */
+    @Nullable
+    private long[] planSegments(final Uri sourceUri, final long durationUs, final int segmentCount) {
+        if (segmentCount < 2) {
+            return null;
+        }
 
-        if (!isValidOriginal) {
-            resultBitrate = minValue;
-            logInfo(String.format("no origin bitrate - returning minValue: %d", minValue));
-        } else {
-          if (bitrate < minValue) {
-              logInfo(String.format("origin bitrate %d is lower then minValue %d - returning origin: %d", bitrate,  minValue, bitrate));
-              resultBitrate = bitrate;
-          } else {
-              resultBitrate = (int) (bitrate * multiplier);
-
-            if (resultBitrate < minValue) {
-                logInfo(String.format("result bitrate %d (%d * %,.2f) is lower then minValue %d - returning minValue: %d", resultBitrate,  bitrate, multiplier, minValue, minValue));
-                resultBitrate = minValue;
+        try {
+            long[] boundaries = KeyframeSegmenter.split(this.appContext, sourceUri, durationUs, segmentCount);
+            logInfo("source split into %d segments", boundaries.length - 1);
+
+            return boundaries.length > 2 ? boundaries : null;
+        } catch (Exception e) {
+            logError(String.format("could not split source, transcoding it as a whole: %s", e.getMessage()), e);
+            return null;
+        }
+    }
+
+    private void startSegmented(
+            final String requestId,
+            final Uri sourceUri,
+            final String outputPath,
+            @Nullable final MediaFormat targetVideoFormat,
+            @Nullable final MediaFormat targetAudioFormat,
+            final SourceRanges parts,
+            final int rotation,
+            final int parallelism,
+            @Nullable final TranscodeJournal journal,
+            final TransformationListener listener
+    ) throws Exception {
+        File segmentDir = journal != null ? journal.dir : getSegmentDir(requestId);
+        if (!segmentDir.isDirectory() && !segmentDir.mkdirs()) {
+            throw new IllegalStateException(String.format("Can not create %s", segmentDir.getPath()));
+        }
+
+        final List<String> partPaths = new ArrayList<>();
+        final long[] partStartsUs = new long[parts.size()];
+
+        final TranscodeTrace trace = mTracer.get(requestId);
+        TransformGroup group = new TransformGroup(mMediaTransformer, requestId, parallelism, listener, () -> {
+            if (trace != null) {
+                trace.begin(TranscodeTrace.Stage.MUX);
+            }
+            Mp4Joiner.join(partPaths, partStartsUs, outputPath, rotation);
+            mTracer.end(trace, TranscodeTrace.Stage.MUX);
+        });
+
+        for (int segment = 0; segment < parts.size(); segment++) {
+            String partPath = journal != null
+                    ? journal.getSegmentFile(segment).getPath()
+                    : new File(segmentDir, String.format("segment_%d.mp4", segment)).getPath();
+            partPaths.add(partPath);
+            partStartsUs[segment] = parts.getOutputStartUs(segment);
+
+            TransformationOptions transformationOptions = new TransformationOptions.Builder()
+                    .setSourceMediaRange(new MediaRange(parts.getStartUs(segment), parts.getEndUs(segment)))
+                    .build();
+
+            TransformGroup.Part part = new TransformGroup.Part(
+                    String.format("%s_segment_%d", requestId, segment),
+                    sourceUri,
+                    partPath,
+                    targetVideoFormat,
+                    targetAudioFormat,
+                    transformationOptions,
+                    parts.getEndUs(segment) - parts.getStartUs(segment)
+            );
+
+            if (journal != null && journal.completed[segment]) {
+                group.addCompletedPart(part);
             } else {
-                logInfo(String.format("result bitrate %d (%d * %,.2f) - returning result: %d", resultBitrate,  bitrate, multiplier, resultBitrate));
+                group.addPart(part);
             }
-          }
         }
 
-        return resultBitrate;
+        if (journal != null) {
+            group.setOnPartCompletedListener(index -> {
+                try {
+                    journal.markCompleted(index);
+                } catch (IOException e) {
+                    logError(String.format("could not checkpoint segment %d of %s", index, requestId), e);
+                }
+            });
+        }
+
+        mGroups.put(requestId, group);
+        group.start();
+    }
+
+    /**
+     * Segment directories are never listed back, so they are named after a hash of the job id
+     * and the id itself never becomes part of a path.
+     */
+    private File getSegmentDir(String jobId) {
+        return new File(reactContext.getCacheDir(),
+                String.format("segments_%s", UUID.nameUUIDFromBytes(jobId.getBytes(Charset.forName("UTF-8")))));
     }
 
-    private Map<String, Integer> generateWidthAndHeight(int width, int height, boolean keepOriginalResolution) {
-        Map<String, Integer> size = new HashMap<>();
+    /**
+     * Deletes the checkpoints of a job that will not be resumed. Failed jobs keep them.
+     */
+    private void discardJournal(String jobId) {
+        TranscodeJournal journal = mJournals.remove(jobId);
+        if (journal != null) {
+            journal.delete();
+        }
+    }
 
-        int newWidth;
-        int newHeight;
+    /**
+     * Frees everything a job held once it reached a terminal state.
+     */
+    private void releaseJob(String jobId, boolean cancelled) {
+        mScheduler.finish(jobId, cancelled);
+        mOutputCache.release(jobId);
+        mGroups.remove(jobId);
+        mSizeCappedTransforms.remove(jobId);
+        mPipelines.remove(jobId);
+        mJournals.remove(jobId);
+
+        File segmentDir = getSegmentDir(jobId);
+        File[] segments = segmentDir.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                //noinspection ResultOfMethodCallIgnored
+                segment.delete();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            segmentDir.delete();
+        }
+    }
 
-        if (keepOriginalResolution) {
-            newWidth = width;
-            newHeight = height;
-        } else if (width >= 1920 || height >= 1920) {
-            newWidth = generateWidthHeightValue(width, 0.5);
-            newHeight = generateWidthHeightValue(height, 0.5);
-        } else if (width >= 1280 || height >= 1280) {
-            newWidth = generateWidthHeightValue(width, 0.75);
-            newHeight = generateWidthHeightValue(height, 0.75);
-        } else if (width >= 960 || height >= 960) {
-            newWidth = generateWidthHeightValue(width, 0.95);
-            newHeight = generateWidthHeightValue(height, 0.95);
-        } else {
-            newWidth = generateWidthHeightValue(width, 0.9);
-            newHeight = generateWidthHeightValue(height, 0.9);
+    /**
+     * Lowers the frame rate of the target format to the cap.
+     *
+     * @return true if the source has more frames per second than the cap, so frames have to be dropped
+     */
+    private boolean applyFrameRateCap(final MediaFormat targetFormat, final int maxFrameRate) {
+        if (maxFrameRate < 0) {
+            throw new IllegalArgumentException(String.format("Invalid maxFrameRate %d", maxFrameRate));
+        }
+
+        int frameRate = targetFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        if (maxFrameRate == 0 || frameRate <= maxFrameRate) {
+            return false;
+        }
+
+        targetFormat.setInteger(MediaFormat.KEY_FRAME_RATE, maxFrameRate);
+        logInfo("frame rate cap: %d -> %d fps", frameRate, maxFrameRate);
+
+        return true;
+    }
+
+    /**
+     * Switches the target format to HEVC when that is allowed and a hardware encoder takes it,
+     * then fits size, frame rate and bitrate to the encoder that will run it and applies the preset.
+     * Only CodecPipeline creates that encoder by name; MediaTransformer creates the default encoder
+     * for the mime type, which is normally, but not necessarily, the same one.
+     */
+    private void applyEncoderCapabilities(final MediaFormat targetFormat, final boolean allowHevc,
+                                          @Nullable final EncoderPreset preset) {
+        CodecCatalog catalog = CodecCatalog.get();
+
+        if (allowHevc
+                && !MediaFormat.MIMETYPE_VIDEO_HEVC.equals(targetFormat.getString(MediaFormat.KEY_MIME))
+                && catalog.canEncodeHevc(targetFormat.getInteger(MediaFormat.KEY_WIDTH), targetFormat.getInteger(MediaFormat.KEY_HEIGHT))) {
+            targetFormat.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_VIDEO_HEVC);
+            targetFormat.setInteger(MediaFormat.KEY_BIT_RATE,
+                    (int) (targetFormat.getInteger(MediaFormat.KEY_BIT_RATE) * CodecCatalog.HEVC_BITRATE_FACTOR));
+        }
+
+        CodecCatalog.Codec encoder = catalog.fit(targetFormat);
+        if (encoder == null) {
+            logInfo("no encoder listed for %s, keeping target format", targetFormat.getString(MediaFormat.KEY_MIME));
+            return;
+        }
+
+        if (mTracer.isEnabled(TranscodeTrace.Level.INFO)) {
+            logInfo("encoder %s (%s): %s, width/height %d/%d, frame rate %d, bitrate %d",
+                    encoder.name,
+                    encoder.hardware ? "hardware" : "software",
+                    targetFormat.getString(MediaFormat.KEY_MIME),
+                    targetFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    targetFormat.getInteger(MediaFormat.KEY_HEIGHT),
+                    targetFormat.getInteger(MediaFormat.KEY_FRAME_RATE),
+                    targetFormat.getInteger(MediaFormat.KEY_BIT_RATE));
+        }
+
+        if (preset != null) {
+            Map<String, Integer> tuning = preset.apply(targetFormat, encoder);
+            logInfo("preset %s: keyframe interval %d, %s",
+                    preset.toJsValue(), targetFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL), tuning);
+        }
+    }
+
+    /**
+     * Video can be copied without a codec when it already has the target mime type and
+     * re-encoding would neither lower the bitrate nor the resolution.
+     */
+    private boolean canCopyVideo(final SourceProbe.Result probe, final MediaFormat targetFormat) {
+        MediaFormat sourceFormat = probe.videoFormat;
+
+        if (!targetFormat.getString(MediaFormat.KEY_MIME).equals(sourceFormat.getString(MediaFormat.KEY_MIME))) {
+            return false;
         }
 
-        size.put("width", newWidth);
-        size.put("height", newHeight);
+        int sourceBitrate = getInt(sourceFormat, MediaFormat.KEY_BIT_RATE, probe.bitrate);
+        if (sourceBitrate <= 0 || sourceBitrate > targetFormat.getInteger(MediaFormat.KEY_BIT_RATE)) {
+            return false;
+        }
+
+        return getInt(sourceFormat, MediaFormat.KEY_WIDTH) <= targetFormat.getInteger(MediaFormat.KEY_WIDTH)
+                && getInt(sourceFormat, MediaFormat.KEY_HEIGHT) <= targetFormat.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    /**
+     * Replaces the table bitrate of the target format with one chosen from the complexity of the source.
+     *
+     * @return the decision, or null when the source could not be analyzed and the table bitrate is kept
+     */
+    @Nullable
+    private ComplexityProbe.Decision applyAdaptiveBitrate(
+            final SourceProbe.Result probe,
+            final String quality,
+            final MediaFormat targetFormat
+    ) {
+        ComplexityProbe.Result complexity;
+        try {
+            complexity = mComplexityProbe.analyze(probe);
+        } catch (IOException e) {
+            logError(String.format("could not analyze source, keeping table bitrate: %s", e.getMessage()), e);
+            return null;
+        }
+
+        ComplexityProbe.Decision decision = ComplexityProbe.chooseBitrate(
+                complexity,
+                TranscodePolicy.Quality.fromString(quality),
+                targetFormat.getInteger(MediaFormat.KEY_WIDTH),
+                targetFormat.getInteger(MediaFormat.KEY_HEIGHT),
+                targetFormat.getInteger(MediaFormat.KEY_FRAME_RATE),
+                probe.bitrate
+        );
+        targetFormat.setInteger(MediaFormat.KEY_BIT_RATE, decision.bitrate);
+
+        logInfo("adaptive bitrate: %d, %s", decision.bitrate, decision.reason);
+
+        return decision;
+    }
+
+    /**
+     * @return bitrate the audio track of the output will have, 0 without audio
+     */
+    private int getOutputAudioBitrate(final SourceProbe.Result probe, @Nullable final MediaFormat targetAudioFormat) {
+        MediaFormat audioFormat = targetAudioFormat != null ? targetAudioFormat : probe.audioFormat;
+        if (audioFormat == null) {
+            return 0;
+        }
+
+        int bitrate = getInt(audioFormat, MediaFormat.KEY_BIT_RATE);
+        return bitrate > 0 ? bitrate : OutputSizeBudget.DEFAULT_AUDIO_BITRATE;
+    }
 
-        logInfo(String.format("width/height - original: %d/%d, result: %d/%d", width, height, newWidth, newHeight));
+    /**
+     * @param targetVideoFormat format video is encoded into, null when it is copied
+     * @param sourceAudioBitrate bitrate of the source audio, copied video is what is left of the input next to it
+     * @return size the output will have at the target bitrates
+     */
+    private long getExpectedOutputBytes(
+            @Nullable final MediaFormat targetVideoFormat,
+            final int audioBitrate,
+            final int sourceAudioBitrate,
+            final long durationMs,
+            final long inputBytes
+    ) {
+        long videoBytes = targetVideoFormat != null
+                ? TranscodePolicy.getBytes(targetVideoFormat.getInteger(MediaFormat.KEY_BIT_RATE), durationMs)
+                : Math.max(0, inputBytes - TranscodePolicy.getBytes(sourceAudioBitrate, durationMs));
+        return videoBytes + TranscodePolicy.getBytes(audioBitrate, durationMs);
+    }
+
+    /**
+     * Lowers the bitrate, and if needed the size, of the target format so the output fits the budget.
+     */
+    private void applySizeBudget(
+            final OutputSizeBudget budget,
+            final long durationMs,
+            final MediaFormat targetFormat,
+            final int audioBitrate
+    ) {
+        int videoBitrate = budget.getVideoBitrate(durationMs, audioBitrate);
+        if (videoBitrate >= targetFormat.getInteger(MediaFormat.KEY_BIT_RATE)) {
+            logInfo("size budget %d bytes allows %d, keeping bitrate", budget.maxBytes, videoBitrate);
+            return;
+        }
+
+        int[] size = OutputSizeBudget.fitSize(
+                targetFormat.getInteger(MediaFormat.KEY_WIDTH),
+                targetFormat.getInteger(MediaFormat.KEY_HEIGHT),
+                targetFormat.getInteger(MediaFormat.KEY_FRAME_RATE),
+                videoBitrate
+        );
+
+        targetFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
+        targetFormat.setInteger(MediaFormat.KEY_WIDTH, size[0]);
+        targetFormat.setInteger(MediaFormat.KEY_HEIGHT, size[1]);
 
-        return size;
+        logInfo("size budget %d bytes: bitrate %d, width/height %d/%d",
+                budget.maxBytes, videoBitrate, size[0], size[1]);
     }
 
-    private int roundEven(int value) {
-        return value + 1 & ~1;
+    private AudioOptions parseAudioOptions(final ReadableMap options, final boolean allowPassthrough) {
+        AudioOptions audioOptions = new AudioOptions();
+        audioOptions.drop = options.hasKey("dropAudio") && options.getBoolean("dropAudio");
+        audioOptions.allowPassthrough = allowPassthrough;
+        audioOptions.bitrate = options.hasKey("audioBitrate") ? options.getInt("audioBitrate") : 0;
+        audioOptions.maxChannels = options.hasKey("audioChannels") ? options.getInt("audioChannels") : 0;
+        audioOptions.maxSampleRate = options.hasKey("maxAudioSampleRate") ? options.getInt("maxAudioSampleRate") : 0;
+        audioOptions.validate();
+        return audioOptions;
+    }
+
+    private MediaFormat getTargetVideoMediaFormat(
+            final SourceProbe.Result probe,
+            String quality, boolean keepOriginalResolution
+    ) {
+        final MediaFormat sourceFormat = probe.videoFormat;
+        MediaFormat targetFormat = new MediaFormat();
+
+        targetFormat.setLong(MediaFormat.KEY_DURATION, getLong(sourceFormat, MediaFormat.KEY_DURATION));
+        targetFormat.setInteger(MediaFormat.KEY_FRAME_RATE, getInt(sourceFormat, MediaFormat.KEY_FRAME_RATE, 30));
+        targetFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getInt(sourceFormat, MediaFormat.KEY_I_FRAME_INTERVAL, 5));
+        targetFormat.setInteger(KEY_ROTATION, getInt(sourceFormat, KEY_ROTATION, 0));
+
+        int width = getInt(sourceFormat, MediaFormat.KEY_WIDTH);
+        int height = getInt(sourceFormat, MediaFormat.KEY_HEIGHT);
+        TranscodePolicy.Target target = TranscodePolicy.resolve(
+                width, height, probe.bitrate, TranscodePolicy.Quality.fromString(quality), keepOriginalResolution);
+        logInfo("bitrate - original: %d, result: %d", probe.bitrate, target.bitrate);
+        logInfo("width/height - original: %d/%d, result: %d/%d", width, height, target.width, target.height);
+
+        targetFormat.setInteger(MediaFormat.KEY_BIT_RATE, target.bitrate);
+        targetFormat.setInteger(MediaFormat.KEY_WIDTH, target.width);
+        targetFormat.setInteger(MediaFormat.KEY_HEIGHT, target.height);
+
+        targetFormat.setString(MediaFormat.KEY_MIME, CodecUtils.MIME_TYPE_VIDEO_AVC);
+
+        if (mTracer.isEnabled(TranscodeTrace.Level.INFO)) {
+            logInfo("Target video format: " +
+                "KEY_DURATION: %d, " +
+                "KEY_FRAME_RATE: %d, " +
+                "KEY_I_FRAME_INTERVAL: %d, " +
+                "KEY_ROTATION: %d, " +
+                "KEY_BIT_RATE: %d, " +
+                "KEY_WIDTH: %d, " +
+                "KEY_HEIGHT: %d, " +
+                "KEY_MIME: %s",
+              targetFormat.getLong(MediaFormat.KEY_DURATION),
+              targetFormat.getInteger(MediaFormat.KEY_FRAME_RATE),
+              targetFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL),
+              targetFormat.getInteger(KEY_ROTATION),
+              targetFormat.getInteger(MediaFormat.KEY_BIT_RATE),
+              targetFormat.getInteger(MediaFormat.KEY_WIDTH),
+              targetFormat.getInteger(MediaFormat.KEY_HEIGHT),
+              targetFormat.getString(MediaFormat.KEY_MIME)
+              );
+        }
+
+        return targetFormat;
     }
 
-    private int generateWidthHeightValue(double value, double factor) {
-        return this.roundEven((int) (Math.round(value * factor)));
+    private void onThrottleChanged(@NonNull DeviceCondition condition, @NonNull ThrottlePolicy.Decision decision) {
+        if (decision.isThrottled()) {
+            logInfo("throttled (%s): max concurrency %d, background held %b, size scale %.2f, max frame rate %d",
+                    decision.reason, decision.maxConcurrency, decision.holdBackground, decision.sizeScale, decision.maxFrameRate);
+        } else {
+            logInfo("throttle lifted (%s)", condition);
+        }
     }
 
     private void emitEvent(String eventName, @Nullable WritableMap params) {
@@ -314,46 +1919,129 @@ public class VideoTranscoderModule extends ReactContextBaseJavaModule {
                 .emit(eventName, params);
     }
 
-    private void logInfo(String message) {
-      Log.i(NAME, message);
-
-      emitOnDebug(message);
+    /**
+     * Logs to the trace of the request running on this thread, formatted only when
+     * the trace or logcat keeps info messages.
+     */
+    private void logInfo(String format, Object... args) {
+      mTracer.log(TranscodeTrace.Level.INFO, null, format, args);
     }
 
     private void logError(String message, @Nullable Throwable error) {
-      Log.e(NAME, message, error);
+      mTracer.log(TranscodeTrace.Level.ERROR, error, "%s", String.valueOf(message));
+    }
+
+    private void emitOnDebug(TranscodeTrace trace, TranscodeTrace.Level level, String message) {
+        WritableMap params = Arguments.createMap();
+        params.putString("requestId", trace.requestId);
+        params.putString("level", level.toJsValue());
+        params.putString("message", message);
+
+        emitEvent("onDebug", params);
+    }
 
-      emitOnDebug(message);
+    /**
+     * Traces a request at the level of its options, {@code debugEnabled} records and emits everything.
+     */
+    private TranscodeTrace startTrace(String requestId, ReadableMap options) {
+        boolean debugEnabled = options.hasKey("debugEnabled") && options.getBoolean("debugEnabled");
+        TranscodeTrace.Level level = debugEnabled
+                ? TranscodeTrace.Level.DEBUG
+                : TranscodeTrace.Level.fromString(options.hasKey("traceLevel") ? options.getString("traceLevel") : null,
+                        TranscodeTrace.Level.ERROR);
+        return mTracer.start(requestId, level, debugEnabled);
     }
 
-    private void emitOnDebug(String message) {
-        if (mDebugEnabled) {
-            WritableMap params = Arguments.createMap();
-            params.putString("message", message);
+    private void sendOnProgressBatch(List<ProgressDispatcher.Update> updates) {
+        WritableArray items = Arguments.createArray();
 
-            emitEvent("onDebug", params);
+        for (ProgressDispatcher.Update update : updates) {
+            WritableMap item = Arguments.createMap();
+            item.putString("requestId", update.requestId);
+            item.putDouble("progress", update.progress);
+            items.pushMap(item);
         }
-    }
 
-    private void sendOnProgress(String requestId, float progress) {
         WritableMap params = Arguments.createMap();
-        params.putString("requestId", requestId);
-        params.putDouble("progress", progress);
+        params.putArray("items", items);
 
-        emitEvent("onProgress", params);
+        emitEvent("onProgressBatch", params);
     }
 
     private void sendOnStart(String requestId) {
+        TranscodeScheduler.Job job = mScheduler.getJob(requestId);
+
         WritableMap params = Arguments.createMap();
         params.putString("requestId", requestId);
+        params.putDouble("queueWaitMs", job != null ? job.getWaitMs() : 0);
 
         emitEvent("onStart", params);
     }
 
-    private void sendOnSuccess(String requestId, String outputPath) {
+    private void sendOnChunkReady(String requestId, String outputPath, int index, long offset, long length, boolean last) {
+        WritableMap params = Arguments.createMap();
+        params.putString("requestId", requestId);
+        params.putString("outputPath", outputPath);
+        params.putInt("index", index);
+        params.putDouble("offset", offset);
+        params.putDouble("length", length);
+        params.putBoolean("last", last);
+
+        emitEvent("onChunkReady", params);
+    }
+
+    private void sendOnSuccess(
+            String requestId,
+            String outputPath,
+            TranscodePath path,
+            boolean cached,
+            @Nullable TranscodeMetrics.Record metrics
+    ) {
         WritableMap params = Arguments.createMap();
         params.putString("requestId", requestId);
         params.putString("outputPath", outputPath);
+        params.putString("path", path.toJsValue());
+        params.putBoolean("cached", cached);
+        params.putMap("metrics", metrics != null ? createMetricsMap(metrics) : null);
+
+        emitEvent("onSuccess", params);
+        finishBatchItem(requestId, TranscodeBatch.State.SUCCEEDED, outputPath, null);
+    }
+
+    private void sendOnLadderSuccess(
+            String requestId,
+            List<Rendition> ladder,
+            @Nullable TranscodeMetrics.Record metrics
+    ) {
+        WritableArray renditions = Arguments.createArray();
+        boolean allCached = true;
+
+        for (Rendition rendition : ladder) {
+            Rendition produced = rendition.sameAs != null ? rendition.sameAs : rendition;
+            allCached &= produced.cached;
+
+            WritableMap item = Arguments.createMap();
+            item.putString("quality", rendition.quality);
+            item.putString("outputPath", produced.outputPath);
+            item.putString("path", produced.path.toJsValue());
+            item.putBoolean("cached", produced.cached);
+            if (produced.targetVideoFormat != null) {
+                item.putInt("width", produced.targetVideoFormat.getInteger(MediaFormat.KEY_WIDTH));
+                item.putInt("height", produced.targetVideoFormat.getInteger(MediaFormat.KEY_HEIGHT));
+                item.putInt("bitrate", produced.targetVideoFormat.getInteger(MediaFormat.KEY_BIT_RATE));
+            }
+            renditions.pushMap(item);
+        }
+
+        Rendition first = ladder.get(0).sameAs != null ? ladder.get(0).sameAs : ladder.get(0);
+
+        WritableMap params = Arguments.createMap();
+        params.putString("requestId", requestId);
+        params.putString("outputPath", first.outputPath);
+        params.putString("path", first.path.toJsValue());
+        params.putBoolean("cached", allCached);
+        params.putMap("metrics", metrics != null ? createMetricsMap(metrics) : null);
+        params.putArray("renditions", renditions);
 
         emitEvent("onSuccess", params);
     }
@@ -363,6 +2051,7 @@ public class VideoTranscoderModule extends ReactContextBaseJavaModule {
         params.putString("requestId", requestId);
 
         emitEvent("onCancelled", params);
+        finishBatchItem(requestId, TranscodeBatch.State.CANCELLED, null, null);
     }
 
     private void sendOnFailure(String requestId, @Nullable Throwable cause) {
@@ -371,47 +2060,268 @@ public class VideoTranscoderModule extends ReactContextBaseJavaModule {
         params.putString("error", cause != null ? cause.getMessage() : null);
 
         emitEvent("onFailure", params);
+        finishBatchItem(requestId, TranscodeBatch.State.FAILED, null, cause);
+    }
+
+    private void sendOnBatchComplete(TranscodeBatch batch) {
+        WritableArray items = Arguments.createArray();
+        int succeeded = 0;
+
+        for (TranscodeBatch.Item item : batch.getItems()) {
+            WritableMap result = Arguments.createMap();
+            result.putInt("index", item.index);
+            result.putString("requestId", item.requestId);
+            result.putString("sourcePath", item.sourcePath);
+            result.putString("state", item.state.toJsValue());
+            result.putString("outputPath", item.outputPath);
+            result.putString("error", item.error);
+            items.pushMap(result);
+
+            if (item.state == TranscodeBatch.State.SUCCEEDED) {
+                succeeded++;
+            }
+        }
+
+        WritableMap params = Arguments.createMap();
+        params.putString("batchId", batch.batchId);
+        params.putInt("succeeded", succeeded);
+        params.putInt("total", items.size());
+        params.putArray("items", items);
+
+        emitEvent("onBatchComplete", params);
+    }
+
+    /**
+     * Finishes the cached output of a job, if it has one.
+     *
+     * @return requests that should receive the terminal event of the job
+     */
+    private List<String> completeResult(String jobId, boolean succeeded) {
+        TranscodeResultCache.InFlight inFlight = mResultCache.complete(jobId, succeeded);
+
+        return inFlight != null ? inFlight.requestIds : Collections.singletonList(jobId);
     }
 
-    private TransformationListener createListener(@NonNull final String requestId, final String outputPath) {
+    private TransformationListener createListener(
+            @NonNull final String requestId,
+            final String outputPath,
+            final TranscodeMetrics.Record metrics
+    ) {
+        // progress arrives for every few frames, the trace is looked up once and the stage ends on the first
+        final TranscodeTrace trace = mTracer.get(requestId);
         return new TransformationListener() {
+            private boolean mEncoding = false;
+
             @Override
             public void onStarted(@NonNull String id) {
                 if (TextUtils.equals(requestId, id)) {
-                    sendOnStart(requestId);
+                    mTracer.next(trace, TranscodeTrace.Stage.CODEC_SETUP, TranscodeTrace.Stage.FIRST_FRAME);
+                    mResultCache.markStarted(requestId);
+                    for (String subscriber : mResultCache.getRequestIds(requestId)) {
+                        sendOnStart(subscriber);
+                    }
                 }
             }
 
             @Override
             public void onProgress(@NonNull String id, float progress) {
                 if (TextUtils.equals(requestId, id)) {
-                    sendOnProgress(requestId, progress * 100);
+                    if (!mEncoding) {
+                        mEncoding = true;
+                        mTracer.next(trace, TranscodeTrace.Stage.FIRST_FRAME, TranscodeTrace.Stage.ENCODE);
+                    }
+                    for (String subscriber : mResultCache.getRequestIds(requestId)) {
+                        mProgressDispatcher.update(subscriber, progress * 100);
+                        updateBatchProgress(subscriber, progress);
+                    }
                 }
             }
 
             @Override
             public void onCompleted(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
                 if (TextUtils.equals(requestId, id)) {
-                    sendOnSuccess(requestId, outputPath);
+                    mTracer.end(trace, TranscodeTrace.Stage.ENCODE);
+                    TranscodeScheduler.Job job = mScheduler.getJob(requestId);
+                    discardJournal(requestId);
+                    List<String> subscribers = completeResult(requestId, true);
+                    boolean outputExists = new File(outputPath).isFile();
+                    mMetrics.close(metrics, outputExists
+                            ? TranscodeMetrics.Outcome.SUCCEEDED
+                            : TranscodeMetrics.Outcome.FAILED, job, outputPath, trackTransformationInfos);
+                    mThroughput.record(metrics);
+
+                    for (String subscriber : subscribers) {
+                        mProgressDispatcher.finish(subscriber);
+                        if (outputExists) {
+                            sendOnSuccess(subscriber, outputPath, metrics.path, false, metrics);
+                        } else {
+                            sendOnFailure(subscriber, new IllegalStateException("Output file was not written"));
+                        }
+                    }
+
+                    // the output stays protected until every subscriber has its path
+                    releaseJob(requestId, false);
+                    mOutputCache.trimAsync();
                 }
             }
 
             @Override
             public void onCancelled(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
                 if (TextUtils.equals(requestId, id)) {
-                    sendOnCancelled(requestId);
+                    mMetrics.close(metrics, TranscodeMetrics.Outcome.CANCELLED, mScheduler.getJob(requestId),
+                            null, trackTransformationInfos);
+                    discardJournal(requestId);
+                    releaseJob(requestId, true);
+                    for (String subscriber : completeResult(requestId, false)) {
+                        mProgressDispatcher.finish(subscriber);
+                        sendOnCancelled(subscriber);
+                    }
                 }
             }
 
             @Override
             public void onError(@NonNull String id, @Nullable Throwable cause, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
                 if (TextUtils.equals(requestId, id)) {
-                    sendOnFailure(requestId, cause);
+                    mTracer.log(trace, TranscodeTrace.Level.ERROR, cause,
+                            "request %s failed: %s", requestId, cause != null ? cause.getMessage() : null);
+                    mMetrics.close(metrics, TranscodeMetrics.Outcome.FAILED, mScheduler.getJob(requestId),
+                            null, trackTransformationInfos);
+                    releaseJob(requestId, false);
+                    for (String subscriber : completeResult(requestId, false)) {
+                        mProgressDispatcher.finish(subscriber);
+                        sendOnFailure(subscriber, cause);
+                    }
+                }
+            }
+        };
+    }
+
+    private TransformationListener createLadderListener(
+            @NonNull final String requestId,
+            final List<Rendition> ladder,
+            final List<Rendition> toTranscode,
+            final TranscodeMetrics.Record metrics
+    ) {
+        return new TransformationListener() {
+            @Override
+            public void onStarted(@NonNull String id) {
+                sendOnStart(requestId);
+            }
+
+            @Override
+            public void onProgress(@NonNull String id, float progress) {
+                mProgressDispatcher.update(requestId, progress * 100);
+            }
+
+            @Override
+            public void onCompleted(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+                TranscodeScheduler.Job job = mScheduler.getJob(requestId);
+                mProgressDispatcher.finish(requestId);
+
+                boolean outputsExist = true;
+                for (Rendition rendition : toTranscode) {
+                    File outputFile = new File(rendition.outputPath);
+                    outputsExist &= outputFile.isFile();
+                    metrics.outputBytes += outputFile.length();
+                    metrics.videoFrames += TranscodeMetrics.countVideoFrames(outputFile);
+                }
+
+                mMetrics.close(metrics, outputsExist
+                        ? TranscodeMetrics.Outcome.SUCCEEDED
+                        : TranscodeMetrics.Outcome.FAILED, job, null, trackTransformationInfos);
+
+                if (outputsExist) {
+                    sendOnLadderSuccess(requestId, ladder, metrics);
+                } else {
+                    deleteOutputs(toTranscode);
+                    sendOnFailure(requestId, new IllegalStateException("Output file was not written"));
                 }
+
+                releaseJob(requestId, false);
+                mOutputCache.trimAsync();
+            }
+
+            @Override
+            public void onCancelled(@NonNull String id, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+                mMetrics.close(metrics, TranscodeMetrics.Outcome.CANCELLED, mScheduler.getJob(requestId),
+                        null, trackTransformationInfos);
+                releaseJob(requestId, true);
+                deleteOutputs(toTranscode);
+                mProgressDispatcher.finish(requestId);
+                sendOnCancelled(requestId);
+            }
+
+            @Override
+            public void onError(@NonNull String id, @Nullable Throwable cause, @Nullable List<TrackTransformationInfo> trackTransformationInfos) {
+                mMetrics.close(metrics, TranscodeMetrics.Outcome.FAILED, mScheduler.getJob(requestId),
+                        null, trackTransformationInfos);
+                releaseJob(requestId, false);
+                deleteOutputs(toTranscode);
+                mProgressDispatcher.finish(requestId);
+                sendOnFailure(requestId, cause);
             }
         };
     }
 
+    private void deleteOutputs(List<Rendition> renditions) {
+        for (Rendition rendition : renditions) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(rendition.outputPath).delete();
+        }
+    }
+
+    private WritableMap createMetricsMap(@NonNull TranscodeMetrics.Record record) {
+        WritableArray tracks = Arguments.createArray();
+        for (TranscodeMetrics.Track track : record.tracks) {
+            WritableMap trackMap = Arguments.createMap();
+            trackMap.putString("mime", track.mime);
+            trackMap.putString("decoder", track.decoder);
+            trackMap.putString("encoder", track.encoder);
+            trackMap.putDouble("transformMs", track.transformMs);
+            tracks.pushMap(trackMap);
+        }
+
+        WritableMap params = Arguments.createMap();
+        params.putString("requestId", record.requestId);
+        params.putString("outcome", record.outcome != null ? record.outcome.toJsValue() : null);
+        params.putString("path", record.path.toJsValue());
+        params.putString("priority", record.priority.name().toLowerCase());
+        params.putDouble("queueWaitMs", record.queueWaitMs);
+        params.putDouble("wallMs", record.wallMs);
+        params.putDouble("mediaDurationMs", record.mediaDurationMs);
+        params.putDouble("encodeFps", record.getEncodeFps());
+        params.putDouble("realtimeFactor", record.getRealtimeFactor());
+        params.putDouble("inputBytes", record.inputBytes);
+        params.putDouble("outputBytes", record.outputBytes);
+        params.putDouble("inputBitrate", record.getInputBitrate());
+        params.putDouble("outputBitrate", record.getOutputBitrate());
+        params.putDouble("finishedAt", record.finishedAt);
+        params.putInt("targetBitrate", record.targetBitrate);
+        params.putString("bitrateReason", record.bitrateReason);
+        params.putArray("tracks", tracks);
+
+        return params;
+    }
+
+    private WritableMap createFormatMap(@NonNull MediaFormat mediaFormat) {
+        WritableMap params = Arguments.createMap();
+        params.putString("mime", mediaFormat.getString(MediaFormat.KEY_MIME));
+        params.putDouble("duration", getLong(mediaFormat, MediaFormat.KEY_DURATION) / 1000);
+        params.putInt("bitrate", getInt(mediaFormat, MediaFormat.KEY_BIT_RATE));
+
+        if (mediaFormat.containsKey(MediaFormat.KEY_WIDTH)) {
+            params.putInt("width", getInt(mediaFormat, MediaFormat.KEY_WIDTH));
+            params.putInt("height", getInt(mediaFormat, MediaFormat.KEY_HEIGHT));
+            params.putInt("frameRate", getInt(mediaFormat, MediaFormat.KEY_FRAME_RATE));
+        }
+        if (mediaFormat.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+            params.putInt("sampleRate", getInt(mediaFormat, MediaFormat.KEY_SAMPLE_RATE));
+            params.putInt("channelCount", getInt(mediaFormat, MediaFormat.KEY_CHANNEL_COUNT));
+        }
+
+        return params;
+    }
+
     private int getInt(@NonNull MediaFormat mediaFormat, @NonNull String key, int defaultValue) {
         if (mediaFormat.containsKey(key)) {
             return mediaFormat.getInteger(key);
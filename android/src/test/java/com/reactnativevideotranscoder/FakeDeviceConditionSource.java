@@ -0,0 +1,39 @@
+package com.reactnativevideotranscoder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Stands in for the device: the condition only changes when {@link #set(DeviceCondition)} is called.
+ */
+class FakeDeviceConditionSource implements DeviceConditionSource {
+    private DeviceCondition mCondition = DeviceCondition.UNKNOWN;
+    private Listener mListener;
+
+    @NonNull
+    @Override
+    public DeviceCondition getCondition() {
+        return mCondition;
+    }
+
+    @Override
+    public void start(@NonNull Listener listener) {
+        mListener = listener;
+        listener.onConditionChanged(mCondition);
+    }
+
+    @Override
+    public void stop() {
+        mListener = null;
+    }
+
+    void set(@NonNull DeviceCondition condition) {
+        mCondition = condition;
+        if (mListener != null) {
+            mListener.onConditionChanged(condition);
+        }
+    }
+
+    boolean isStarted() {
+        return mListener != null;
+    }
+}
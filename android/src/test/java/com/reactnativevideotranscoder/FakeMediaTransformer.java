@@ -0,0 +1,173 @@
+package com.reactnativevideotranscoder;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.linkedin.android.litr.MediaTransformer;
+import com.linkedin.android.litr.TransformationListener;
+import com.linkedin.android.litr.TransformationOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Stands in for MediaTransformer: reports the events of a transformation to its listener
+ * on the main looper the way MediaTransformer does, but a job only moves on when
+ * {@link #step()} is called. Events are delivered once the test idles the main looper.
+ * A completed transformation leaves an empty output file behind. The module starts jobs
+ * off the calling thread, {@link #awaitRunning(int)} waits for them.
+ */
+class FakeMediaTransformer extends MediaTransformer {
+    private static final long AWAIT_TIMEOUT_MS = 10_000;
+
+    private static class Transformation {
+        final String requestId;
+        final String outputPath;
+        final TransformationListener listener;
+        int step = 0;
+
+        Transformation(String requestId, String outputPath, TransformationListener listener) {
+            this.requestId = requestId;
+            this.outputPath = outputPath;
+            this.listener = listener;
+        }
+    }
+
+    private final int steps;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Transformation> mRunning = new ArrayList<>();
+    private int mStarted = 0;
+
+    /**
+     * @param steps progress updates a transformation reports before it completes
+     */
+    FakeMediaTransformer(@NonNull Context context, int steps) {
+        super(context, Looper.getMainLooper(), Executors.newSingleThreadExecutor());
+        this.steps = Math.max(1, steps);
+    }
+
+    @Override
+    public void transform(
+            @NonNull String requestId,
+            @NonNull Uri inputUri,
+            @NonNull String outputFilePath,
+            @Nullable MediaFormat targetVideoFormat,
+            @Nullable MediaFormat targetAudioFormat,
+            @NonNull TransformationListener listener,
+            @Nullable TransformationOptions transformationOptions
+    ) {
+        synchronized (this) {
+            mRunning.add(new Transformation(requestId, outputFilePath, listener));
+            mStarted++;
+            notifyAll();
+        }
+        mMainHandler.post(() -> listener.onStarted(requestId));
+    }
+
+    @Override
+    public void cancel(@NonNull String requestId) {
+        Transformation cancelled = remove(requestId);
+        if (cancelled != null) {
+            mMainHandler.post(() -> cancelled.listener.onCancelled(requestId, null));
+        }
+    }
+
+    /**
+     * Ends a running transformation with an error.
+     */
+    void fail(@NonNull String requestId, @NonNull Throwable cause) {
+        Transformation failed = remove(requestId);
+        if (failed == null) {
+            throw new IllegalStateException(String.format("Transformation %s is not running", requestId));
+        }
+        mMainHandler.post(() -> failed.listener.onError(requestId, cause, null));
+    }
+
+    /**
+     * Moves every running transformation one step on. Transformations started by
+     * listeners meanwhile wait for the next step.
+     *
+     * @return whether transformations are left
+     */
+    boolean step() {
+        List<Transformation> running;
+        synchronized (this) {
+            running = new ArrayList<>(mRunning);
+        }
+
+        for (Transformation transformation : running) {
+            String requestId = transformation.requestId;
+            TransformationListener listener = transformation.listener;
+            transformation.step++;
+            if (transformation.step < steps) {
+                float progress = (float) transformation.step / steps;
+                mMainHandler.post(() -> listener.onProgress(requestId, progress));
+            } else {
+                remove(requestId);
+                writeOutput(transformation.outputPath);
+                mMainHandler.post(() -> {
+                    listener.onProgress(requestId, 1f);
+                    listener.onCompleted(requestId, null);
+                });
+            }
+        }
+
+        synchronized (this) {
+            return !mRunning.isEmpty();
+        }
+    }
+
+    /**
+     * Waits until the given number of transformations runs.
+     */
+    synchronized void awaitRunning(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MS;
+        while (mRunning.size() < count) {
+            long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                throw new IllegalStateException(String.format("%d of %d transformations running", mRunning.size(), count));
+            }
+            wait(remainingMs);
+        }
+    }
+
+    synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    synchronized int getStartedCount() {
+        return mStarted;
+    }
+
+    @Nullable
+    private synchronized Transformation remove(@NonNull String requestId) {
+        Iterator<Transformation> iterator = mRunning.iterator();
+        while (iterator.hasNext()) {
+            Transformation transformation = iterator.next();
+            if (transformation.requestId.equals(requestId)) {
+                iterator.remove();
+                return transformation;
+            }
+        }
+        return null;
+    }
+
+    private static void writeOutput(@NonNull String outputPath) {
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            new File(outputPath).createNewFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Can not write %s", outputPath), e);
+        }
+    }
+}
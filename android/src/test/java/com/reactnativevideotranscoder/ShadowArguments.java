@@ -0,0 +1,27 @@
+package com.reactnativevideotranscoder;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Event payloads of the module are built with {@link Arguments}, whose maps live in native code;
+ * on the JVM they are Java maps instead.
+ */
+@Implements(Arguments.class)
+public class ShadowArguments {
+    @Implementation
+    protected static WritableMap createMap() {
+        return new JavaOnlyMap();
+    }
+
+    @Implementation
+    protected static WritableArray createArray() {
+        return new JavaOnlyArray();
+    }
+}
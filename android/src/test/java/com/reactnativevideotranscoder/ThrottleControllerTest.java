@@ -0,0 +1,117 @@
+package com.reactnativevideotranscoder;
+
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottleControllerTest {
+    private static final DeviceCondition COOL = new DeviceCondition(DeviceCondition.THERMAL_NONE, 80, false, false);
+    private static final DeviceCondition WARM = new DeviceCondition(DeviceCondition.THERMAL_MODERATE, 80, false, false);
+    private static final DeviceCondition HOT = new DeviceCondition(DeviceCondition.THERMAL_SEVERE, 80, false, false);
+    private static final DeviceCondition LOW_BATTERY = new DeviceCondition(DeviceCondition.THERMAL_NONE, 10, false, false);
+
+    private final FakeDeviceConditionSource mSource = new FakeDeviceConditionSource();
+    private final TranscodeScheduler mScheduler = new TranscodeScheduler(2);
+    private final List<ThrottlePolicy.Decision> mDecisions = new ArrayList<>();
+    private final List<String> mStarted = new ArrayList<>();
+    private final ThrottleController mController = new ThrottleController(mSource, mScheduler,
+            (condition, decision) -> mDecisions.add(decision));
+
+    @Test
+    public void coolDeviceIsNotThrottled() {
+        mController.start();
+        mSource.set(COOL);
+
+        assertTrue(mSource.isStarted());
+        assertTrue(mDecisions.isEmpty());
+        assertFalse(mController.getDecision().isThrottled());
+    }
+
+    @Test
+    public void warmDeviceRunsOneJobAndHoldsBackgroundJobs() {
+        mController.start();
+        mSource.set(WARM);
+        submit("a", TranscodeScheduler.Priority.INTERACTIVE);
+        submit("b", TranscodeScheduler.Priority.INTERACTIVE);
+        submit("background", TranscodeScheduler.Priority.BACKGROUND);
+
+        assertEquals(Arrays.asList("a"), mStarted);
+
+        mScheduler.finish("a", false);
+        mScheduler.finish("b", false);
+
+        assertEquals(Arrays.asList("a", "b"), mStarted);
+
+        mSource.set(COOL);
+
+        assertEquals(Arrays.asList("a", "b", "background"), mStarted);
+        assertEquals(2, mDecisions.size());
+        assertFalse(mDecisions.get(1).isThrottled());
+    }
+
+    @Test
+    public void hotDeviceAlsoReducesNewOutputs() {
+        mController.start();
+        mSource.set(HOT);
+
+        ThrottlePolicy.Decision decision = mController.getDecision();
+        assertEquals(1, decision.maxConcurrency);
+        assertEquals(0.75f, decision.sizeScale, 0f);
+        assertEquals(30, decision.maxFrameRate);
+        assertEquals(HOT, mController.getCondition());
+    }
+
+    @Test
+    public void unchangedDecisionIsReportedOnce() {
+        mController.start();
+        mSource.set(WARM);
+        mSource.set(new DeviceCondition(DeviceCondition.THERMAL_MODERATE, 70, true, false));
+
+        assertEquals(1, mDecisions.size());
+    }
+
+    @Test
+    public void frameRateCapIsTheLowerOfRequestedAndThrottled() {
+        mController.start();
+        mSource.set(LOW_BATTERY);
+        MediaFormat format = new MediaFormat();
+
+        assertEquals(30, mController.applyToFormat(format, 0));
+        assertEquals(30, mController.applyToFormat(format, 60));
+        assertEquals(24, mController.applyToFormat(format, 24));
+    }
+
+    @Test
+    public void disabledPolicyLimitsNothing() {
+        mController.start();
+        mSource.set(HOT);
+        mController.setPolicy(new DefaultThrottlePolicy(), false);
+        MediaFormat format = new MediaFormat();
+
+        assertFalse(mController.getDecision().isThrottled());
+        assertEquals(60, mController.applyToFormat(format, 60));
+        assertEquals(0, mController.applyToFormat(format, 0));
+    }
+
+    @Test
+    public void stopDetachesFromTheSource() {
+        mController.start();
+        mController.stop();
+        mSource.set(HOT);
+
+        assertFalse(mSource.isStarted());
+        assertFalse(mController.getDecision().isThrottled());
+    }
+
+    private void submit(final String requestId, TranscodeScheduler.Priority priority) {
+        mScheduler.submit(new TranscodeScheduler.Job(requestId, priority, () -> mStarted.add(requestId)));
+    }
+}
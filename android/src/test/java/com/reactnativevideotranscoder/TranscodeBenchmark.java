@@ -0,0 +1,301 @@
+package com.reactnativevideotranscoder;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.JavaScriptModule;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static android.os.Looper.getMainLooper;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Runs the policy and whole jobs through the module, from compress through the scheduler
+ * and a fake transformer to the events JS receives. Policy resolution has to stay under a
+ * fixed budget per call; the job timings come from the test report and the assertions only
+ * check that every job ends with the right events.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, shadows = ShadowArguments.class, instrumentedPackages = "com.facebook.react.bridge")
+public class TranscodeBenchmark {
+    private static final int WARMUP_ITERATIONS = 50_000;
+    private static final int POLICY_ITERATIONS = 500_000;
+    // a resolve is a handful of arithmetic on the JS thread, well under a microsecond on a
+    // desktop JVM; the budget leaves room for slow CI machines but not for a regression
+    // that starts allocating or looking up codecs per call
+    private static final long MAX_NS_PER_RESOLVE = 5_000;
+
+    private static final int JOBS = 500;
+    private static final int MAX_CONCURRENCY = 2;
+    private static final int PROGRESS_STEPS = 20;
+    private static final String SOURCE_PATH = "file:///benchmark/source.mp4";
+
+    private static final int[][] SOURCES = {
+            { 3840, 2160, 45_000_000 },
+            { 1920, 1080, 12_000_000 },
+            { 1080, 1920, 8_000_000 },
+            { 1280, 720, 4_000_000 },
+            { 640, 360, 700_000 },
+            { 480, 270, 0 },
+    };
+
+    private final EventRecorder mEvents = new EventRecorder();
+    private FakeMediaTransformer mTransformer;
+    private VideoTranscoderModule mModule;
+    private File mOutputDir;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application;
+        mTransformer = new FakeMediaTransformer(context, PROGRESS_STEPS);
+        mModule = new VideoTranscoderModule(new RecordingContext(context, mEvents), mTransformer, new FakeSourceProbe(context));
+        mModule.setMaxConcurrency(MAX_CONCURRENCY);
+        mOutputDir = new File(context.getFilesDir(), "benchmark");
+        //noinspection ResultOfMethodCallIgnored
+        mOutputDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        mModule.onCatalystInstanceDestroy();
+    }
+
+    @Test
+    public void policyThroughput() {
+        long checksum = resolveAll(WARMUP_ITERATIONS);
+        long startNs = System.nanoTime();
+        checksum += resolveAll(POLICY_ITERATIONS);
+        long nsPerResolve = (System.nanoTime() - startNs) / POLICY_ITERATIONS;
+
+        assertTrue(checksum > 0);
+        assertTrue(String.format("%d ns per resolve, budget is %d ns", nsPerResolve, MAX_NS_PER_RESOLVE),
+                nsPerResolve <= MAX_NS_PER_RESOLVE);
+    }
+
+    @Test
+    public void jobsRunThroughTheModule() throws InterruptedException {
+        for (int job = 0; job < JOBS; job++) {
+            compress("job_" + job);
+        }
+
+        int maxRunning = 0;
+        int succeeded = 0;
+        while (succeeded < JOBS) {
+            mTransformer.awaitRunning(Math.min(MAX_CONCURRENCY, JOBS - succeeded));
+            maxRunning = Math.max(maxRunning, mTransformer.getRunningCount());
+            mTransformer.step();
+            shadowOf(getMainLooper()).idle();
+            succeeded = mEvents.get("onSuccess").size();
+        }
+
+        assertEquals(MAX_CONCURRENCY, maxRunning);
+        assertEquals(JOBS, mTransformer.getStartedCount());
+        assertEquals(JOBS, mEvents.get("onStart").size());
+        assertEquals(0, mEvents.get("onFailure").size());
+        for (ReadableMap success : mEvents.get("onSuccess")) {
+            assertEquals(getOutputPath(success.getString("requestId")), success.getString("outputPath"));
+        }
+
+        // progress of a job only goes up and never follows its terminal event
+        Map<String, Double> progress = new HashMap<>();
+        Set<String> finished = new HashSet<>();
+        for (Event event : mEvents.getAll()) {
+            if (event.name.equals("onSuccess")) {
+                finished.add(event.params.getString("requestId"));
+            } else if (event.name.equals("onProgressBatch")) {
+                ReadableArray items = event.params.getArray("items");
+                for (int index = 0; index < items.size(); index++) {
+                    ReadableMap item = items.getMap(index);
+                    String requestId = item.getString("requestId");
+                    Double last = progress.get(requestId);
+                    assertFalse(finished.contains(requestId));
+                    assertTrue(last == null || item.getDouble("progress") >= last);
+                    progress.put(requestId, item.getDouble("progress"));
+                }
+            }
+        }
+        assertEquals(JOBS, progress.size());
+    }
+
+    @Test
+    public void cancelledAndFailedJobsReleaseTheirSlots() throws InterruptedException {
+        compress("cancelled");
+        compress("failed");
+        compress("queued");
+        mTransformer.awaitRunning(MAX_CONCURRENCY);
+
+        mModule.cancelCompress("queued");
+        mModule.cancelCompress("cancelled");
+        mTransformer.fail("failed", new IllegalStateException("Encoder failed"));
+
+        assertEquals("queued", mEvents.await("onCancelled", "queued").getString("requestId"));
+        assertEquals("cancelled", mEvents.await("onCancelled", "cancelled").getString("requestId"));
+        assertEquals("Encoder failed", mEvents.await("onFailure", "failed").getString("error"));
+        assertEquals(0, mTransformer.getRunningCount());
+
+        // both slots are free again
+        compress("next_1");
+        compress("next_2");
+        mTransformer.awaitRunning(MAX_CONCURRENCY);
+        while (mTransformer.step()) {
+            shadowOf(getMainLooper()).idle();
+        }
+
+        assertEquals(getOutputPath("next_1"), mEvents.await("onSuccess", "next_1").getString("outputPath"));
+        assertEquals(getOutputPath("next_2"), mEvents.await("onSuccess", "next_2").getString("outputPath"));
+        assertEquals(2, mEvents.get("onSuccess").size());
+    }
+
+    private void compress(String requestId) {
+        ReadableMap options = JavaOnlyMap.of("targetPath", getOutputPath(requestId), "passthrough", false);
+        mModule.compress(requestId, SOURCE_PATH, options, new PromiseImpl(args -> { }, args -> {
+            throw new AssertionError(String.format("compress %s rejected: %s", requestId, args[0]));
+        }));
+    }
+
+    private String getOutputPath(String requestId) {
+        return new File(mOutputDir, requestId + ".mp4").getPath();
+    }
+
+    private static long resolveAll(int iterations) {
+        TranscodePolicy.Quality[] qualities = TranscodePolicy.Quality.values();
+        long checksum = 0;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            int[] source = SOURCES[iteration % SOURCES.length];
+            TranscodePolicy.Target target = TranscodePolicy.resolve(source[0], source[1], source[2],
+                    qualities[iteration % qualities.length], false);
+            checksum += target.width + target.height + target.bitrate;
+        }
+        return checksum;
+    }
+
+    /**
+     * A 10 s 1080p AVC source without audio, without reading a file.
+     */
+    private static class FakeSourceProbe extends SourceProbe {
+        FakeSourceProbe(@NonNull Context context) {
+            super(context);
+        }
+
+        @NonNull
+        @Override
+        Result probe(@NonNull Uri uri) {
+            MediaFormat videoFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1920, 1080);
+            videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+            videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, 12_000_000);
+            videoFormat.setLong(MediaFormat.KEY_DURATION, 10_000_000);
+            return new Result(uri, uri.toString(), videoFormat, null, 12_000_000, 0, 10_000, 1920, 1080, 15_000_000, 0);
+        }
+    }
+
+    /**
+     * Hands the events the module emits to the recorder instead of the JS runtime.
+     */
+    private static class RecordingContext extends ReactApplicationContext {
+        private final EventRecorder events;
+
+        RecordingContext(@NonNull Context context, @NonNull EventRecorder events) {
+            super(context);
+            this.events = events;
+        }
+
+        @Override
+        public <T extends JavaScriptModule> T getJSModule(Class<T> jsInterface) {
+            return jsInterface.cast(events);
+        }
+    }
+
+    private static class Event {
+        final String name;
+        final ReadableMap params;
+
+        Event(String name, ReadableMap params) {
+            this.name = name;
+            this.params = params;
+        }
+    }
+
+    /**
+     * Events in the order they were emitted, from any thread.
+     */
+    private static class EventRecorder implements DeviceEventManagerModule.RCTDeviceEventEmitter {
+        private static final long AWAIT_TIMEOUT_MS = 10_000;
+        private static final long POLL_INTERVAL_MS = 10;
+
+        private final List<Event> mAll = new ArrayList<>();
+        private final Map<String, List<ReadableMap>> mEvents = new HashMap<>();
+
+        @Override
+        public synchronized void emit(@NonNull String eventName, @Nullable Object data) {
+            List<ReadableMap> events = mEvents.get(eventName);
+            if (events == null) {
+                events = new ArrayList<>();
+                mEvents.put(eventName, events);
+            }
+            events.add((ReadableMap) data);
+            mAll.add(new Event(eventName, (ReadableMap) data));
+            notifyAll();
+        }
+
+        synchronized List<Event> getAll() {
+            return new ArrayList<>(mAll);
+        }
+
+        synchronized List<ReadableMap> get(String eventName) {
+            List<ReadableMap> events = mEvents.get(eventName);
+            return events != null ? new ArrayList<>(events) : Collections.<ReadableMap>emptyList();
+        }
+
+        /**
+         * Waits for the event of a request, jobs are started and cancelled off the calling thread
+         * and their events wait on the main looper, which only the test thread runs.
+         */
+        ReadableMap await(String eventName, String requestId) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MS;
+            while (true) {
+                shadowOf(getMainLooper()).idle();
+                synchronized (this) {
+                    for (ReadableMap event : get(eventName)) {
+                        if (requestId.equals(event.getString("requestId"))) {
+                            return event;
+                        }
+                    }
+                    long remainingMs = deadline - System.currentTimeMillis();
+                    if (remainingMs <= 0) {
+                        throw new AssertionError(String.format("No %s for %s", eventName, requestId));
+                    }
+                    wait(Math.min(remainingMs, POLL_INTERVAL_MS));
+                }
+            }
+        }
+    }
+}
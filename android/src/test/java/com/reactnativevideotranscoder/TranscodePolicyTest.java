@@ -0,0 +1,95 @@
+package com.reactnativevideotranscoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TranscodePolicyTest {
+    private static final int[] SOURCE_BITRATES = { 0, 500_000, 2_000_000, 8_000_000, 20_000_000 };
+    private static final long DURATION_MS = 60_000;
+    /** Video bytes of all qualities for all source bitrates, changes of the policy show up here. */
+    private static final long EXPECTED_MATRIX_BYTES = 390_750_000L;
+
+    @Test
+    public void unknownBitrateGetsMinimum() {
+        assertEquals(1_000_000, TranscodePolicy.getBitrate(0, TranscodePolicy.Quality.LOW));
+        assertEquals(3_000_000, TranscodePolicy.getBitrate(-1, TranscodePolicy.Quality.VERY_HIGH));
+    }
+
+    @Test
+    public void bitrateBelowMinimumIsKept() {
+        assertEquals(500_000, TranscodePolicy.getBitrate(500_000, TranscodePolicy.Quality.MEDIUM));
+    }
+
+    @Test
+    public void bitrateFollowsQuality() {
+        assertEquals(1_000_000, TranscodePolicy.getBitrate(10_000_000, TranscodePolicy.Quality.VERY_LOW));
+        assertEquals(1_000_000, TranscodePolicy.getBitrate(10_000_000, TranscodePolicy.Quality.LOW));
+        assertEquals(2_000_000, TranscodePolicy.getBitrate(10_000_000, TranscodePolicy.Quality.MEDIUM));
+        assertEquals(3_000_000, TranscodePolicy.getBitrate(10_000_000, TranscodePolicy.Quality.HIGH));
+        assertEquals(5_000_000, TranscodePolicy.getBitrate(10_000_000, TranscodePolicy.Quality.VERY_HIGH));
+    }
+
+    @Test
+    public void unknownQualityIsLow() {
+        assertEquals(TranscodePolicy.Quality.LOW, TranscodePolicy.Quality.fromString(null));
+        assertEquals(TranscodePolicy.Quality.LOW, TranscodePolicy.Quality.fromString("ULTRA"));
+        assertEquals(TranscodePolicy.Quality.HIGH, TranscodePolicy.Quality.fromString("HIGH"));
+    }
+
+    @Test
+    public void bitsPerPixelGrowWithQuality() {
+        TranscodePolicy.Quality[] qualities = TranscodePolicy.Quality.values();
+        for (int index = 1; index < qualities.length; index++) {
+            assertTrue(qualities[index].bitsPerPixel > qualities[index - 1].bitsPerPixel);
+        }
+    }
+
+    @Test
+    public void sizeShrinksMoreForLargerSources() {
+        assertArrayEquals(new int[] { 960, 540 }, TranscodePolicy.getSize(1920, 1080, false));
+        assertArrayEquals(new int[] { 540, 960 }, TranscodePolicy.getSize(1080, 1920, false));
+        assertArrayEquals(new int[] { 960, 540 }, TranscodePolicy.getSize(1280, 720, false));
+        assertArrayEquals(new int[] { 912, 514 }, TranscodePolicy.getSize(960, 540, false));
+        assertArrayEquals(new int[] { 576, 324 }, TranscodePolicy.getSize(640, 360, false));
+    }
+
+    @Test
+    public void sizeIsEven() {
+        assertArrayEquals(new int[] { 952, 536 }, TranscodePolicy.getSize(1001, 563, false));
+    }
+
+    @Test
+    public void originalResolutionIsKept() {
+        assertArrayEquals(new int[] { 1001, 563 }, TranscodePolicy.getSize(1001, 563, true));
+    }
+
+    @Test
+    public void resolveCombinesBitrateAndSize() {
+        TranscodePolicy.Target target = TranscodePolicy.resolve(1920, 1080, 12_000_000, TranscodePolicy.Quality.MEDIUM, false);
+
+        assertEquals(960, target.width);
+        assertEquals(540, target.height);
+        assertEquals(2_400_000, target.bitrate);
+    }
+
+    @Test
+    public void bytesFollowBitrateAndDuration() {
+        assertEquals(7_500_000, TranscodePolicy.getBytes(1_000_000, 60_000));
+        assertEquals(0, TranscodePolicy.getBytes(1_000_000, 0));
+    }
+
+    @Test
+    public void outputSizeOfMatrixIsStable() {
+        long bytes = 0;
+        for (int bitrate : SOURCE_BITRATES) {
+            for (TranscodePolicy.Quality quality : TranscodePolicy.Quality.values()) {
+                bytes += TranscodePolicy.getBytes(TranscodePolicy.getBitrate(bitrate, quality), DURATION_MS);
+            }
+        }
+
+        assertEquals(EXPECTED_MATRIX_BYTES, bytes);
+    }
+}
@@ -0,0 +1,94 @@
+package com.reactnativevideotranscoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TranscodeSchedulerTest {
+    private final List<String> mStarted = new ArrayList<>();
+
+    @Test
+    public void startsUpToMaxConcurrency() {
+        TranscodeScheduler scheduler = new TranscodeScheduler(2);
+        submit(scheduler, "a", TranscodeScheduler.Priority.INTERACTIVE, 1);
+        submit(scheduler, "b", TranscodeScheduler.Priority.INTERACTIVE, 1);
+        submit(scheduler, "c", TranscodeScheduler.Priority.INTERACTIVE, 1);
+
+        assertEquals(Arrays.asList("a", "b"), mStarted);
+        assertEquals(TranscodeScheduler.State.QUEUED, scheduler.getState("c"));
+
+        scheduler.finish("a", false);
+
+        assertEquals(Arrays.asList("a", "b", "c"), mStarted);
+        assertEquals(TranscodeScheduler.State.FINISHED, scheduler.getState("a"));
+    }
+
+    @Test
+    public void interactiveJobsGoFirst() {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        submit(scheduler, "running", TranscodeScheduler.Priority.INTERACTIVE, 1);
+        submit(scheduler, "background", TranscodeScheduler.Priority.BACKGROUND, 1);
+        submit(scheduler, "interactive", TranscodeScheduler.Priority.INTERACTIVE, 1);
+
+        scheduler.finish("running", false);
+
+        assertEquals(Arrays.asList("running", "interactive"), mStarted);
+    }
+
+    @Test
+    public void largeJobRunsAlone() {
+        TranscodeScheduler scheduler = new TranscodeScheduler(2);
+        submit(scheduler, "small", TranscodeScheduler.Priority.INTERACTIVE, 1);
+        submit(scheduler, "large", TranscodeScheduler.Priority.INTERACTIVE, 4);
+        submit(scheduler, "after", TranscodeScheduler.Priority.INTERACTIVE, 1);
+
+        assertEquals(Arrays.asList("small"), mStarted);
+
+        scheduler.finish("small", false);
+
+        assertEquals(Arrays.asList("small", "large"), mStarted);
+    }
+
+    @Test
+    public void throttleLimitsSlotsAndHoldsBackgroundJobs() {
+        TranscodeScheduler scheduler = new TranscodeScheduler(2);
+        scheduler.setThrottle(1, true);
+        submit(scheduler, "a", TranscodeScheduler.Priority.INTERACTIVE, 1);
+        submit(scheduler, "b", TranscodeScheduler.Priority.INTERACTIVE, 1);
+        submit(scheduler, "background", TranscodeScheduler.Priority.BACKGROUND, 1);
+
+        assertEquals(Arrays.asList("a"), mStarted);
+
+        scheduler.finish("a", false);
+        scheduler.finish("b", false);
+
+        assertEquals(Arrays.asList("a", "b"), mStarted);
+
+        scheduler.setThrottle(0, false);
+
+        assertEquals(Arrays.asList("a", "b", "background"), mStarted);
+    }
+
+    @Test
+    public void queuedJobCanBeCancelled() {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        submit(scheduler, "a", TranscodeScheduler.Priority.INTERACTIVE, 1);
+        submit(scheduler, "b", TranscodeScheduler.Priority.INTERACTIVE, 1);
+
+        assertTrue(scheduler.cancelQueued("b"));
+        assertFalse(scheduler.cancelQueued("a"));
+        assertNull(scheduler.getJob("b"));
+        assertEquals(TranscodeScheduler.State.CANCELLED, scheduler.getState("b"));
+    }
+
+    private void submit(TranscodeScheduler scheduler, final String requestId, TranscodeScheduler.Priority priority, int slots) {
+        scheduler.submit(new TranscodeScheduler.Job(requestId, priority, slots, () -> mStarted.add(requestId)));
+    }
+}
@@ -11,6 +11,75 @@ export const Quality = {
   VeryHigh: 'VERY_HIGH',
 };
 
+export const Priority = {
+  Interactive: 'interactive',
+  Background: 'background',
+};
+
+export const TraceLevel = {
+  Error: 'error',
+  Info: 'info',
+  Debug: 'debug',
+};
+
+export const Preset = {
+  Fast: 'fast',
+  Balanced: 'balanced',
+  Small: 'small',
+};
+
+function getCompressOptions({
+  quality = Quality.Low,
+  targetPath,
+  keepOriginalResolution = false,
+  passthrough = true,
+  dropAudio = false,
+  audioBitrate,
+  audioChannels,
+  maxAudioSampleRate,
+  segmented = false,
+  fragmented = false,
+  fragmentDurationMs,
+  resumable = false,
+  adaptive = false,
+  maxOutputBytes,
+  maxFrameRate,
+  allowHevc = false,
+  preset,
+  startMs,
+  endMs,
+  ranges,
+  priority = Priority.Interactive,
+  traceLevel,
+  debugEnabled = false,
+}) {
+  return {
+    quality,
+    targetPath,
+    keepOriginalResolution,
+    passthrough,
+    dropAudio,
+    audioBitrate,
+    audioChannels,
+    maxAudioSampleRate,
+    segmented,
+    fragmented,
+    fragmentDurationMs,
+    resumable,
+    adaptive,
+    maxOutputBytes,
+    maxFrameRate,
+    allowHevc,
+    preset,
+    startMs,
+    endMs,
+    ranges,
+    priority,
+    traceLevel,
+    debugEnabled,
+  };
+}
+
 let _requestId = -1;
 function getId() {
   return `${++_requestId}${Date.now()}`;
@@ -19,13 +88,17 @@ function getId() {
 class VideoTranscoder {
   constructor() {
     this._requestsListeners = new Map();
+    this._batches = new Map();
 
     this._onStart = this._onStart.bind(this);
     this._onProgress = this._onProgress.bind(this);
+    this._onProgressBatch = this._onProgressBatch.bind(this);
+    this._onChunkReady = this._onChunkReady.bind(this);
     this._onSuccess = this._onSuccess.bind(this);
     this._onCancelled = this._onCancelled.bind(this);
     this._onFailure = this._onFailure.bind(this);
     this._onDebug = this._onDebug.bind(this);
+    this._onBatchComplete = this._onBatchComplete.bind(this);
 
     this._initialized = false;
   }
@@ -37,19 +110,28 @@ class VideoTranscoder {
 
     VideoTranscoderEmitter.addListener('onStart', this._onStart);
     VideoTranscoderEmitter.addListener('onProgress', this._onProgress);
+    VideoTranscoderEmitter.addListener(
+      'onProgressBatch',
+      this._onProgressBatch
+    );
+    VideoTranscoderEmitter.addListener('onChunkReady', this._onChunkReady);
     VideoTranscoderEmitter.addListener('onSuccess', this._onSuccess);
     VideoTranscoderEmitter.addListener('onCancelled', this._onCancelled);
     VideoTranscoderEmitter.addListener('onFailure', this._onFailure);
+    VideoTranscoderEmitter.addListener(
+      'onBatchComplete',
+      this._onBatchComplete
+    );
 
     VideoTranscoderEmitter.addListener('onDebug', this._onDebug);
 
     this._initialized = true;
   }
 
-  async _onStart({ requestId }) {
+  async _onStart({ requestId, queueWaitMs }) {
     const listeners = this._requestsListeners.get(requestId);
     if (listeners) {
-      listeners.onStart({ requestId });
+      listeners.onStart({ requestId, queueWaitMs });
     }
   }
 
@@ -60,10 +142,42 @@ class VideoTranscoder {
     }
   }
 
-  async _onSuccess({ requestId, outputPath }) {
+  async _onProgressBatch({ items }) {
+    items.forEach(this._onProgress);
+  }
+
+  async _onChunkReady({ requestId, outputPath, index, offset, length, last }) {
     const listeners = this._requestsListeners.get(requestId);
     if (listeners) {
-      listeners.onSuccess({ requestId, outputPath });
+      listeners.onChunkReady({
+        requestId,
+        outputPath,
+        index,
+        offset,
+        length,
+        last,
+      });
+    }
+  }
+
+  async _onSuccess({
+    requestId,
+    outputPath,
+    path,
+    cached,
+    metrics,
+    renditions,
+  }) {
+    const listeners = this._requestsListeners.get(requestId);
+    if (listeners) {
+      listeners.onSuccess({
+        requestId,
+        outputPath,
+        path,
+        cached,
+        metrics,
+        renditions,
+      });
 
       this._requestsListeners.delete(requestId);
     }
@@ -87,16 +201,25 @@ class VideoTranscoder {
     }
   }
 
-  async _onDebug({ message }) {
-    this._requestsListeners.forEach((listeners) => {
-      listeners.onDebug({ message });
-    });
+  async _onBatchComplete({ batchId, succeeded, total, items }) {
+    const batch = this._batches.get(batchId);
+    if (batch) {
+      batch.onComplete({ batchId, succeeded, total, items });
+    }
+  }
+
+  async _onDebug({ requestId, level, message }) {
+    const listeners = this._requestsListeners.get(requestId);
+    if (listeners) {
+      listeners.onDebug({ requestId, level, message });
+    }
   }
 
   addListeners({
     requestId,
     onStart = () => {},
     onProgress = () => {},
+    onChunkReady = () => {},
     onSuccess = () => {},
     onCancelled = () => {},
     onFailure = () => {},
@@ -109,6 +232,7 @@ class VideoTranscoder {
     this._requestsListeners.set(requestId, {
       onStart,
       onProgress,
+      onChunkReady,
       onSuccess,
       onCancelled,
       onFailure,
@@ -120,12 +244,253 @@ class VideoTranscoder {
     NativeVideoTranscoder.cancelCompress(requestId);
   }
 
+  cancelBatchItem(batchId, index) {
+    NativeVideoTranscoder.cancelBatchItem(batchId, index);
+  }
+
+  async retryBatchItem(batchId, index) {
+    if (this._batches.has(batchId)) {
+      this._addBatchItemListeners(batchId, index);
+    }
+
+    return NativeVideoTranscoder.retryBatchItem(batchId, index);
+  }
+
+  _addBatchItemListeners(batchId, index) {
+    const batch = this._batches.get(batchId);
+    const batchListeners = this._requestsListeners.get(batchId);
+
+    this.addListeners({
+      requestId: `${batchId}_${index}`,
+      onStart: (event) => batch.onItemStart({ ...event, batchId, index }),
+      onProgress: (event) => batch.onItemProgress({ ...event, batchId, index }),
+      onSuccess: (event) => batch.onItemSuccess({ ...event, batchId, index }),
+      onCancelled: (event) =>
+        batch.onItemCancelled({ ...event, batchId, index }),
+      onFailure: (event) => batch.onItemFailure({ ...event, batchId, index }),
+      onDebug: (event) => batchListeners.onDebug({ ...event, batchId, index }),
+    });
+  }
+
+  probe(sourcePath) {
+    return NativeVideoTranscoder.probe(sourcePath);
+  }
+
+  extractFrames(sourcePath, timestamps, size, { quality } = {}) {
+    const { width, height } =
+      typeof size === 'number' ? { width: size, height: size } : size;
+
+    return NativeVideoTranscoder.extractFrames(sourcePath, timestamps, {
+      width,
+      height,
+      quality,
+    });
+  }
+
+  estimate(sourcePath, options = {}) {
+    return NativeVideoTranscoder.estimate(
+      sourcePath,
+      getCompressOptions(options)
+    );
+  }
+
+  async resume(
+    requestId,
+    { onStart, onProgress, onSuccess, onCancelled, onFailure, onDebug }
+  ) {
+    this.addListeners({
+      requestId,
+      onStart,
+      onProgress,
+      onSuccess,
+      onCancelled,
+      onFailure,
+      onDebug,
+    });
+
+    try {
+      await NativeVideoTranscoder.resumeCompress(requestId);
+
+      return requestId;
+    } catch (error) {
+      this._onFailure({ requestId, error });
+    }
+  }
+
+  getResumableJobs() {
+    return NativeVideoTranscoder.getResumableJobs();
+  }
+
+  discardResumable(requestId) {
+    NativeVideoTranscoder.discardResumable(requestId);
+  }
+
+  setCacheOptions({ maxBytes, maxAgeMs }) {
+    NativeVideoTranscoder.setCacheOptions({ maxBytes, maxAgeMs });
+  }
+
+  getCacheUsage() {
+    return NativeVideoTranscoder.getCacheUsage();
+  }
+
+  trimCache({ maxBytes, maxAgeMs } = {}) {
+    return NativeVideoTranscoder.trimCache({ maxBytes, maxAgeMs });
+  }
+
+  setMaxConcurrency(maxConcurrency) {
+    NativeVideoTranscoder.setMaxConcurrency(maxConcurrency);
+  }
+
+  setProgressOptions({ intervalMs, minDelta }) {
+    NativeVideoTranscoder.setProgressOptions({ intervalMs, minDelta });
+  }
+
+  setThrottleOptions({
+    enabled,
+    moderateThermalStatus,
+    severeThermalStatus,
+    lowBatteryLevel,
+    throttleOnPowerSave,
+    severeSizeScale,
+    severeMaxFrameRate,
+    lowBatteryMaxFrameRate,
+  }) {
+    NativeVideoTranscoder.setThrottleOptions({
+      enabled,
+      moderateThermalStatus,
+      severeThermalStatus,
+      lowBatteryLevel,
+      throttleOnPowerSave,
+      severeSizeScale,
+      severeMaxFrameRate,
+      lowBatteryMaxFrameRate,
+    });
+  }
+
+  dumpTrace(requestId) {
+    return NativeVideoTranscoder.dumpTrace(requestId);
+  }
+
+  setLogLevel(level) {
+    NativeVideoTranscoder.setLogLevel(level);
+  }
+
+  getQueueStats() {
+    return NativeVideoTranscoder.getQueueStats();
+  }
+
+  getJobState(requestId) {
+    return NativeVideoTranscoder.getJobState(requestId);
+  }
+
+  getTranscodeStats() {
+    return NativeVideoTranscoder.getTranscodeStats();
+  }
+
   async compress(
     sourcePath,
+    options,
+    {
+      onStart,
+      onProgress,
+      onChunkReady,
+      onSuccess,
+      onCancelled,
+      onFailure,
+      onDebug,
+    }
+  ) {
+    const requestId = getId();
+
+    this.addListeners({
+      requestId,
+      onStart,
+      onProgress,
+      onChunkReady,
+      onSuccess,
+      onCancelled,
+      onFailure,
+      onDebug,
+    });
+
+    try {
+      await NativeVideoTranscoder.compress(
+        requestId,
+        sourcePath,
+        getCompressOptions(options)
+      );
+
+      return requestId;
+    } catch (error) {
+      this._onFailure({ requestId, error });
+    }
+  }
+
+  async compressLadder(
+    sourcePath,
+    renditions,
+    {
+      passthrough = true,
+      allowHevc = false,
+      preset,
+      priority = Priority.Interactive,
+      traceLevel,
+      debugEnabled = false,
+    },
+    { onStart, onProgress, onSuccess, onCancelled, onFailure, onDebug }
+  ) {
+    const requestId = getId();
+
+    this.addListeners({
+      requestId,
+      onStart,
+      onProgress,
+      onSuccess,
+      onCancelled,
+      onFailure,
+      onDebug,
+    });
+
+    try {
+      await NativeVideoTranscoder.compressLadder(
+        requestId,
+        sourcePath,
+        renditions.map(({ quality, targetPath, keepOriginalResolution }) => ({
+          quality,
+          targetPath,
+          keepOriginalResolution,
+        })),
+        {
+          passthrough,
+          allowHevc,
+          preset,
+          priority,
+          traceLevel,
+          debugEnabled,
+        }
+      );
+
+      return requestId;
+    } catch (error) {
+      this._onFailure({ requestId, error });
+    }
+  }
+
+  async compressConcat(
+    sources,
     {
       quality = Quality.Low,
       targetPath,
       keepOriginalResolution = false,
+      maxFrameRate,
+      allowHevc = false,
+      dropAudio = false,
+      audioBitrate,
+      audioChannels,
+      maxAudioSampleRate,
+      preset,
+      priority = Priority.Interactive,
+      traceLevel,
       debugEnabled = false,
     },
     { onStart, onProgress, onSuccess, onCancelled, onFailure, onDebug }
@@ -143,18 +508,101 @@ class VideoTranscoder {
     });
 
     try {
-      await NativeVideoTranscoder.compress(requestId, sourcePath, {
-        quality,
-        targetPath,
-        keepOriginalResolution,
-        debugEnabled,
-      });
+      await NativeVideoTranscoder.compressConcat(
+        requestId,
+        sources.map((source) =>
+          typeof source === 'string'
+            ? { path: source }
+            : {
+                path: source.path,
+                startMs: source.startMs,
+                endMs: source.endMs,
+              }
+        ),
+        {
+          quality,
+          targetPath,
+          keepOriginalResolution,
+          maxFrameRate,
+          allowHevc,
+          preset,
+          dropAudio,
+          audioBitrate,
+          audioChannels,
+          maxAudioSampleRate,
+          priority,
+          traceLevel,
+          debugEnabled,
+        }
+      );
 
       return requestId;
     } catch (error) {
       this._onFailure({ requestId, error });
     }
   }
+
+  async compressBatch(
+    items,
+    { parallelism, ...options },
+    {
+      onItemStart = () => {},
+      onItemProgress = () => {},
+      onItemSuccess = () => {},
+      onItemCancelled = () => {},
+      onItemFailure = () => {},
+      onProgress,
+      onComplete = () => {},
+      onFailure,
+      onDebug,
+    }
+  ) {
+    const batchId = getId();
+
+    this._batches.set(batchId, {
+      onItemStart,
+      onItemProgress,
+      onItemSuccess,
+      onItemCancelled,
+      onItemFailure,
+      onComplete,
+    });
+    // progress of the whole batch arrives under the batch id
+    this.addListeners({ requestId: batchId, onProgress, onFailure, onDebug });
+    items.forEach((_, index) => this._addBatchItemListeners(batchId, index));
+
+    try {
+      await NativeVideoTranscoder.compressBatch(
+        batchId,
+        items.map((item) => {
+          const { path, ...itemOptions } =
+            typeof item === 'string' ? { path: item } : item;
+
+          return {
+            path,
+            options: getCompressOptions({
+              priority: Priority.Background,
+              ...options,
+              ...itemOptions,
+            }),
+          };
+        }),
+        {
+          parallelism,
+          traceLevel: options.traceLevel,
+          debugEnabled: options.debugEnabled,
+        }
+      );
+
+      return batchId;
+    } catch (error) {
+      items.forEach((_, index) =>
+        this._requestsListeners.delete(`${batchId}_${index}`)
+      );
+      this._batches.delete(batchId);
+      this._onFailure({ requestId: batchId, error });
+    }
+  }
 }
 
 export default new VideoTranscoder();